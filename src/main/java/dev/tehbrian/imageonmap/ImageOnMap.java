@@ -9,10 +9,13 @@ import fr.moribus.imageonmap.commands.maptool.GetRemainingCommand;
 import fr.moribus.imageonmap.commands.maptool.GiveCommand;
 import fr.moribus.imageonmap.commands.maptool.ListCommand;
 import fr.moribus.imageonmap.commands.maptool.NewCommand;
+import fr.moribus.imageonmap.commands.maptool.QueueCommand;
 import fr.moribus.imageonmap.commands.maptool.RenameCommand;
 import fr.moribus.imageonmap.commands.maptool.UpdateCommand;
 import fr.moribus.imageonmap.gui.Gui;
 import fr.moribus.imageonmap.i18n.I18n;
+import fr.moribus.imageonmap.image.ImageIOExecutor;
+import fr.moribus.imageonmap.image.ImageRendererExecutor;
 import fr.moribus.imageonmap.image.MapInitEvent;
 import fr.moribus.imageonmap.map.MapManager;
 import fr.moribus.imageonmap.ui.MapItemManager;
@@ -56,6 +59,37 @@ public final class ImageOnMap extends JavaPlugin {
         return imagesDirectory.resolve("map" + mapId + ".png");
     }
 
+    /**
+     * Returns the directory of the tile store segments.
+     */
+    public Path getTilesDirectory() {
+        return imagesDirectory.resolve("tiles");
+    }
+
+    /**
+     * Returns the file caching the RGB → map palette lookup table.
+     */
+    public Path getPaletteCacheFile() {
+        return getDataFolder().toPath().resolve("palette.cache");
+    }
+
+    /**
+     * Returns the directory of the downloaded images kept for the next renders.
+     */
+    public Path getDownloadCacheDirectory() {
+        return getDataFolder().toPath().resolve("downloads");
+    }
+
+    /**
+     * Returns the file holding the pre-quantized palette indices of the given map.
+     * <p>
+     * Only used by maps rendered before the tile store existed: these files are
+     * migrated into the store on startup.
+     */
+    public Path getTileFile(int mapId) {
+        return imagesDirectory.resolve("map" + mapId + ".dat");
+    }
+
     @Override
     public void onEnable() {
         // create images and maps directories if necessary.
@@ -87,6 +121,15 @@ public final class ImageOnMap extends JavaPlugin {
 
         I18n.setPrimaryLocale(PluginConfiguration.LANG.get());
 
+        try {
+            ImageIOExecutor.init();
+        } catch (final IOException e) {
+            getSLF4JLogger().error("Failed to open the tile store.", e);
+            this.setEnabled(false);
+            return;
+        }
+
+        ImageRendererExecutor.init();
         MapManager.init();
         MapInitEvent.init();
         MapItemManager.init();
@@ -101,7 +144,8 @@ public final class ImageOnMap extends JavaPlugin {
                 GiveCommand.class,
                 GetRemainingCommand.class,
                 ExploreCommand.class,
-                UpdateCommand.class
+                UpdateCommand.class,
+                QueueCommand.class
         );
 
         Commands.registerShortcut("maptool", NewCommand.class, "tomap");
@@ -129,8 +173,11 @@ public final class ImageOnMap extends JavaPlugin {
 
     @Override
     public void onDisable() {
+        MapInitEvent.exit();
+        ImageRendererExecutor.exit();
         MapManager.exit();
         MapItemManager.exit();
+        ImageIOExecutor.exit();
 
         Gui.clearOpenGuis();
     }
@@ -43,6 +43,8 @@ import dev.tehbrian.imageonmap.ImageOnMap;
 import org.bukkit.configuration.file.FileConfiguration;
 
 import fr.moribus.imageonmap.i18n.I18n;
+import fr.moribus.imageonmap.image.ImageUtils;
+import fr.moribus.imageonmap.image.PaletteTable;
 
 public final class PluginConfiguration {
 
@@ -78,4 +80,46 @@ public final class PluginConfiguration {
 
     public static final Supplier<Integer> LIMIT_SIZE_Y = () -> PLUGIN.getConfig().getInt("limit-map-size-y");
 
+    public static final Supplier<ImageUtils.ResamplingFilter> RESAMPLING_FILTER = () -> {
+        ImageUtils.ResamplingFilter filter =
+                ImageUtils.ResamplingFilter.fromName(PLUGIN.getConfig().getString("resampling-filter", "nearest"));
+        return filter != null ? filter : ImageUtils.ResamplingFilter.NEAREST;
+    };
+
+    public static final Supplier<ImageUtils.DitherMode> DITHERING = () -> {
+        ImageUtils.DitherMode mode =
+                ImageUtils.DitherMode.fromName(PLUGIN.getConfig().getString("dithering", "none"));
+        return mode != null ? mode : ImageUtils.DitherMode.NONE;
+    };
+
+    public static final Supplier<PaletteTable.ColorDistance> COLOR_DISTANCE = () -> {
+        PaletteTable.ColorDistance distance =
+                PaletteTable.ColorDistance.fromName(PLUGIN.getConfig().getString("color-matching", "weighted-rgb"));
+        return distance != null ? distance : PaletteTable.ColorDistance.WEIGHTED_RGB;
+    };
+
+    public static final Supplier<Integer> DOWNLOAD_TIMEOUT = () -> PLUGIN.getConfig().getInt("download-timeout", 30);
+
+    public static final Supplier<Integer> MAX_IMAGE_SIZE = () -> PLUGIN.getConfig().getInt("max-image-size", 32);
+
+    public static final Supplier<Integer> DOWNLOAD_CACHE_SIZE = () -> PLUGIN.getConfig().getInt("download-cache-size", 256);
+
+    public static final Supplier<Integer> DOWNLOAD_CACHE_TTL = () -> PLUGIN.getConfig().getInt("download-cache-ttl", 1440);
+
+    public static final Supplier<Integer> RENDER_PIXEL_BUDGET = () -> PLUGIN.getConfig().getInt("render-pixel-budget", 128);
+
+    public static final Supplier<Integer> RENDER_PLAYER_CONCURRENCY = () -> PLUGIN.getConfig().getInt("render-player-concurrency", 1);
+
+    public static final Supplier<Integer> MAP_ID_RESERVE = () -> PLUGIN.getConfig().getInt("map-id-reserve", 32);
+
+    public static final Supplier<Integer> MAP_ID_QUARANTINE = () -> PLUGIN.getConfig().getInt("map-id-quarantine", 1440);
+
+    public static final Supplier<Integer> MAP_SAVE_INTERVAL = () -> PLUGIN.getConfig().getInt("map-save-interval", 60);
+
+    public static final Supplier<Integer> STORE_EVICTION_DELAY = () -> PLUGIN.getConfig().getInt("map-store-eviction-delay", 10);
+
+    public static final Supplier<Integer> MAP_INIT_BUDGET = () -> PLUGIN.getConfig().getInt("map-init-per-tick", 32);
+
+    public static final Supplier<Integer> TILE_CACHE_SIZE = () -> PLUGIN.getConfig().getInt("tile-cache-size", 64);
+
 }
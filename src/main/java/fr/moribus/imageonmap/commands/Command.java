@@ -34,15 +34,17 @@ import dev.tehbrian.imageonmap.ImageOnMap;
 import fr.moribus.imageonmap.commands.CommandException.Reason;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.regex.Pattern;
 import org.bukkit.command.CommandSender;
 import org.bukkit.entity.Player;
 
 public abstract class Command {
-    private static final Pattern FLAG_PATTERN = Pattern.compile("(--?)[a-zA-Z0-9-]+");
+    private static final Pattern FLAG_PATTERN = Pattern.compile("(--?)[a-zA-Z0-9-]+|--[a-zA-Z0-9-]+=\\S*");
 
     protected CommandGroup commandGroup;
     protected String commandName;
@@ -56,6 +58,7 @@ public abstract class Command {
     protected CommandSender sender;
     protected String[] args;
     protected Set<String> flags;
+    protected Map<String, String> flagValues;
 
     /**
      * Parses arguments to extract flags.
@@ -71,9 +74,11 @@ public abstract class Command {
      *                      arguments, ordered.
      * @param flags         An initially empty set filled with flags found in
      *                      the raw arguments.
+     * @param flagValues    An initially empty map filled with the values given
+     *                      to flags, like {@code --flag=value}.
      */
     private static void parseArgs(final String[] args, final Set<String> acceptedFlags, List<String> realArgs,
-            Set<String> flags) {
+            Set<String> flags, Map<String, String> flagValues) {
         for (final String arg : args) {
             if (!FLAG_PATTERN.matcher(arg).matches()) {
                 realArgs.add(arg);
@@ -82,9 +87,14 @@ public abstract class Command {
 
             final Set<String> flagsInArg;
             if (arg.startsWith("--")) {
-                final String flatFlag = arg.replace("--", "").trim().toLowerCase();
+                final int valueIndex = arg.indexOf('=');
+                final String flagName = valueIndex < 0 ? arg : arg.substring(0, valueIndex);
+                final String flatFlag = flagName.replace("--", "").trim().toLowerCase();
                 if (isValidFlag(acceptedFlags, flatFlag)) {
                     flagsInArg = Collections.singleton(flatFlag);
+                    if (valueIndex >= 0) {
+                        flagValues.put(flatFlag, arg.substring(valueIndex + 1));
+                    }
                 } else {
                     realArgs.add(arg);
                     continue;
@@ -121,13 +131,15 @@ public abstract class Command {
         if (!flagsEnabled) {
             this.args = args;
             this.flags = null;
+            this.flagValues = null;
             return;
         }
 
         final List<String> argsList = new ArrayList<>(args.length);
         flags = new HashSet<>();
+        flagValues = new HashMap<>();
 
-        parseArgs(args, acceptedFlags, argsList, flags);
+        parseArgs(args, acceptedFlags, argsList, flags, flagValues);
 
         this.args = argsList.toArray(new String[0]);
     }
@@ -498,4 +510,20 @@ public abstract class Command {
     protected boolean isConfirmed() {
         return flags != null && flags.contains("confirm");
     }
+
+    /**
+     * Retrieves the value given to a flag.
+     *
+     * <p>
+     * Multiple-letter flags can be given a value using the syntax
+     * {@code --flag=value}. The value is case-sensitive, and may be empty.
+     * </p>
+     *
+     * @param flag The flag, in lowercase.
+     * @return The value of the flag, or {@code null} if the flag was not
+     *         passed, or passed without a value.
+     */
+    protected String getFlagValue(String flag) {
+        return flagValues != null ? flagValues.get(flag) : null;
+    }
 }
@@ -39,9 +39,11 @@ package fr.moribus.imageonmap.commands.maptool;
 import dev.tehbrian.imageonmap.ImageOnMap;
 import dev.tehbrian.imageonmap.Permission;
 import dev.tehbrian.imageonmap.util.ActionBar;
+import fr.moribus.imageonmap.PluginConfiguration;
 import fr.moribus.imageonmap.commands.CommandException;
 import fr.moribus.imageonmap.commands.CommandInfo;
 import fr.moribus.imageonmap.commands.IoMCommand;
+import fr.moribus.imageonmap.commands.WithFlags;
 import fr.moribus.imageonmap.i18n.I;
 import fr.moribus.imageonmap.image.ImageRendererExecutor;
 import fr.moribus.imageonmap.image.ImageUtils;
@@ -55,7 +57,8 @@ import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URI;
 
-@CommandInfo(name = "new", usageParameters = "<URL> [resize]")
+@CommandInfo(name = "new", usageParameters = "<URL> [resize] [--filter=<filter>] [--dither=<mode>]")
+@WithFlags({"filter", "dither"})
 public class NewCommand extends IoMCommand {
 
     private ImageUtils.ScalingType resizeMode() throws CommandException {
@@ -70,6 +73,32 @@ public class NewCommand extends IoMCommand {
         };
     }
 
+    private ImageUtils.ResamplingFilter resamplingFilter() throws CommandException {
+        String name = getFlagValue("filter");
+        if (name == null) {
+            return PluginConfiguration.RESAMPLING_FILTER.get();
+        }
+
+        ImageUtils.ResamplingFilter filter = ImageUtils.ResamplingFilter.fromName(name);
+        if (filter == null) {
+            throwInvalidArgument(I.t("Invalid resampling filter. Available filters: nearest, box, bilinear, lanczos."));
+        }
+        return filter;
+    }
+
+    private ImageUtils.DitherMode ditherMode() throws CommandException {
+        String name = getFlagValue("dither");
+        if (name == null) {
+            return PluginConfiguration.DITHERING.get();
+        }
+
+        ImageUtils.DitherMode mode = ImageUtils.DitherMode.fromName(name);
+        if (mode == null) {
+            throwInvalidArgument(I.t("Invalid dithering mode. Available modes: none, bayer, floyd-steinberg."));
+        }
+        return mode;
+    }
+
     @Override
     protected void run() throws CommandException {
         final Player player = playerSender();
@@ -96,10 +125,12 @@ public class NewCommand extends IoMCommand {
             }
             scaling = resizeMode();
         }
+        final ImageUtils.ResamplingFilter filter = resamplingFilter();
+        final ImageUtils.DitherMode dither = ditherMode();
         try {
             ActionBar.showPermanentMessage(player,
                     Component.text(I.t("Rendering...")).color(NamedTextColor.DARK_GREEN));
-            ImageRendererExecutor.render(url, scaling, player.getUniqueId(), width, height)
+            ImageRendererExecutor.render(url, scaling, filter, dither, player.getUniqueId(), width, height)
                     .exceptionallyAsync((exception) -> {
                         player.sendMessage(I.t("{ce}Map rendering failed: {0}", exception.getMessage()));
                         ImageOnMap.get().getLogger().warning("Rendering from " + player.getName() + " failed: "
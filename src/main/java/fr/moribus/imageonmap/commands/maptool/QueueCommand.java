@@ -0,0 +1,112 @@
+/*
+ * Copyright or © or Copr. Moribus (2013)
+ * Copyright or © or Copr. ProkopyL <prokopylmc@gmail.com> (2015)
+ * Copyright or © or Copr. Amaury Carrade <amaury@carrade.eu> (2016 – 2021)
+ * Copyright or © or Copr. Vlammar <valentin.jabre@gmail.com> (2019 – 2021)
+ *
+ * This software is a computer program whose purpose is to allow insertion of
+ * custom images in a Minecraft world.
+ *
+ * This software is governed by the CeCILL license under French law and
+ * abiding by the rules of distribution of free software.  You can  use,
+ * modify and/ or redistribute the software under the terms of the CeCILL
+ * license as circulated by CEA, CNRS and INRIA at the following URL
+ * "http://www.cecill.info".
+ *
+ * As a counterpart to the access to the source code and  rights to copy,
+ * modify and redistribute granted by the license, users are provided only
+ * with a limited warranty  and the software's author,  the holder of the
+ * economic rights,  and the successive licensors  have only  limited
+ * liability.
+ *
+ * In this respect, the user's attention is drawn to the risks associated
+ * with loading,  using,  modifying and/or developing or reproducing the
+ * software by the user in light of its specific status of free software,
+ * that may mean  that it is complicated to manipulate,  and  that  also
+ * therefore means  that it is reserved for developers  and  experienced
+ * professionals having in-depth computer knowledge. Users are therefore
+ * encouraged to load and test the software's suitability as regards their
+ * requirements in conditions enabling the security of their systems and/or
+ * data to be ensured and,  more generally, to use and operate it in the
+ * same conditions as regards security.
+ *
+ * The fact that you are presently reading this means that you have had
+ * knowledge of the CeCILL license and that you accept its terms.
+ */
+
+package fr.moribus.imageonmap.commands.maptool;
+
+import dev.tehbrian.imageonmap.Permission;
+import fr.moribus.imageonmap.commands.CommandException;
+import fr.moribus.imageonmap.commands.CommandInfo;
+import fr.moribus.imageonmap.commands.IoMCommand;
+import fr.moribus.imageonmap.i18n.I;
+import fr.moribus.imageonmap.image.ImageRendererExecutor;
+import fr.moribus.imageonmap.image.RenderJob;
+
+import java.util.List;
+import java.util.UUID;
+import org.bukkit.Bukkit;
+import org.bukkit.command.CommandSender;
+
+@CommandInfo(name = "queue")
+public class QueueCommand extends IoMCommand {
+    @Override
+    protected void run() throws CommandException {
+        // Administrators see every render, the other players only theirs.
+        final boolean all = Permission.ADMINISTRATIVE.grantedTo(sender);
+        final UUID playerUUID = all ? null : playerSender().getUniqueId();
+
+        List<RenderJob> jobs = ImageRendererExecutor.getQueue();
+        long count = jobs.stream().filter(job -> playerUUID == null || playerUUID.equals(job.getPlayerUUID())).count();
+        if (count == 0) {
+            info(I.t("No image is being rendered."));
+            return;
+        }
+
+        info(I.tn("{white}{bold}{0} render running or waiting.", "{white}{bold}{0} renders running or waiting.",
+                (int) count));
+
+        int position = 0;
+        for (RenderJob job : jobs) {
+            boolean queued = job.getStage() == RenderJob.Stage.QUEUED;
+            if (queued) {
+                position++;
+            }
+            if (playerUUID != null && !playerUUID.equals(job.getPlayerUUID())) {
+                continue;
+            }
+
+            String state = queued ? I.t("waiting, position {0}", position) : getStageName(job.getStage());
+            if (playerUUID == null) {
+                info(I.t("{white}{0}{gray} ({1}): {2}", getPlayerName(job.getPlayerUUID()), state, job.getURL()));
+            } else {
+                info(I.t("{white}{0}{gray}: {1}", state, job.getURL()));
+            }
+        }
+    }
+
+    private static String getPlayerName(UUID uuid) {
+        String name = Bukkit.getOfflinePlayer(uuid).getName();
+        return name != null ? name : uuid.toString();
+    }
+
+    private static String getStageName(RenderJob.Stage stage) {
+        return switch (stage) {
+            case QUEUED -> I.t("waiting");
+            case JOINED -> I.t("waiting for the same image");
+            case FETCH -> I.t("downloading");
+            case ADMIT -> I.t("waiting for memory");
+            case DECODE -> I.t("decoding");
+            case SPLIT -> I.t("resizing");
+            case ALLOCATE -> I.t("waiting for maps");
+            case PERSIST -> I.t("saving");
+            case INSTALL, DONE -> I.t("finishing");
+        };
+    }
+
+    @Override
+    public boolean canExecute(CommandSender sender) {
+        return Permission.NEW.grantedTo(sender) || Permission.ADMINISTRATIVE.grantedTo(sender);
+    }
+}
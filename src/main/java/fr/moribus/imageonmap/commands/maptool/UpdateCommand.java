@@ -160,10 +160,6 @@ public class UpdateCommand extends IoMCommand {
             URL url1;
             try {
                 url1 = URI.create(url).toURL();
-                // TODO replace by a check of the load status.(if not loaded load the
-                // mapmanager)
-                MapManager.load();// we don't want to spam the console each time we reload the mapManager
-
                 Integer[] size = { 1, 1 };
                 if (map.getType() == ImageMap.Type.POSTER) {
                     size = ImageMap.getSize(map.getUserUUID(), map.getId());
@@ -0,0 +1,255 @@
+/*
+ * Copyright or © or Copr. Moribus (2013)
+ * Copyright or © or Copr. ProkopyL <prokopylmc@gmail.com> (2015)
+ * Copyright or © or Copr. Amaury Carrade <amaury@carrade.eu> (2016 – 2021)
+ * Copyright or © or Copr. Vlammar <valentin.jabre@gmail.com> (2019 – 2021)
+ *
+ * This software is a computer program whose purpose is to allow insertion of
+ * custom images in a Minecraft world.
+ *
+ * This software is governed by the CeCILL license under French law and
+ * abiding by the rules of distribution of free software.  You can  use,
+ * modify and/ or redistribute the software under the terms of the CeCILL
+ * license as circulated by CEA, CNRS and INRIA at the following URL
+ * "http://www.cecill.info".
+ *
+ * As a counterpart to the access to the source code and  rights to copy,
+ * modify and redistribute granted by the license, users are provided only
+ * with a limited warranty  and the software's author,  the holder of the
+ * economic rights,  and the successive licensors  have only  limited
+ * liability.
+ *
+ * In this respect, the user's attention is drawn to the risks associated
+ * with loading,  using,  modifying and/or developing or reproducing the
+ * software by the user in light of its specific status of free software,
+ * that may mean  that it is complicated to manipulate,  and  that  also
+ * therefore means  that it is reserved for developers  and  experienced
+ * professionals having in-depth computer knowledge. Users are therefore
+ * encouraged to load and test the software's suitability as regards their
+ * requirements in conditions enabling the security of their systems and/or
+ * data to be ensured and,  more generally, to use and operate it in the
+ * same conditions as regards security.
+ *
+ * The fact that you are presently reading this means that you have had
+ * knowledge of the CeCILL license and that you accept its terms.
+ */
+
+package fr.moribus.imageonmap.image;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.stream.IntStream;
+
+/**
+ * Matches the pixels of a poster to the map palette with a {@link ImageUtils.DitherMode},
+ * one band of rows at a time.
+ * <p>
+ * The bands are given in order, as wide as the whole poster: dithering runs across tile
+ * borders, and the error left by the last row of a band is carried to the next one.
+ * Ordered dithering only depends on the position of a pixel, so rows are matched in
+ * parallel. Error diffusion is run as a wavefront: every row is handled by its own
+ * worker, which follows the row above it two pixels behind, once the error it receives
+ * from there is final.
+ */
+final class Ditherer {
+
+    /**
+     * The 8×8 Bayer threshold matrix, from 0 to 63.
+     */
+    private static final int[] BAYER = {
+             0, 32,  8, 40,  2, 34, 10, 42,
+            48, 16, 56, 24, 50, 18, 58, 26,
+            12, 44,  4, 36, 14, 46,  6, 38,
+            60, 28, 52, 20, 62, 30, 54, 22,
+             3, 35, 11, 43,  1, 33,  9, 41,
+            51, 19, 59, 27, 49, 17, 57, 25,
+            15, 47,  7, 39, 13, 45,  5, 37,
+            63, 31, 55, 23, 61, 29, 53, 21,
+    };
+
+    /**
+     * The amplitude of the Bayer pattern, in color levels: about the distance between
+     * neighbouring colors of the map palette.
+     */
+    private static final int BAYER_SPREAD = 32;
+
+    /**
+     * A worker publishes its progress along its row every this many pixels.
+     */
+    private static final int PROGRESS_STEP = 32;
+
+    /**
+     * A worker waiting for the row above it spins this many times before yielding its thread.
+     */
+    private static final int MAX_SPINS = 256;
+
+    private final ImageUtils.DitherMode mode;
+    private final PaletteTable palette;
+    private final int width;
+    private final int workers;
+    /**
+     * The error diffused to the rows below, a ring of rows being dithered. Every row holds
+     * the sixteenths of the red, green and blue errors for each pixel, plus one pixel of
+     * padding on both sides.
+     */
+    private final int[][] errors;
+    /**
+     * The number of rows already dithered, in the previous bands.
+     */
+    private int rows;
+
+    /**
+     * @param mode  How the pixels are dithered; not {@link ImageUtils.DitherMode#NONE}.
+     * @param width The width of the bands, in pixels.
+     */
+    Ditherer(ImageUtils.DitherMode mode, int width) {
+        this(mode, width, PaletteTable.get());
+    }
+
+    /**
+     * @param mode    How the pixels are dithered; not {@link ImageUtils.DitherMode#NONE}.
+     * @param width   The width of the bands, in pixels.
+     * @param palette The table matching colors to the map palette.
+     */
+    Ditherer(ImageUtils.DitherMode mode, int width, PaletteTable palette) {
+        this.mode = mode;
+        this.palette = palette;
+        this.width = width;
+        this.workers = Math.max(1, ForkJoinPool.getCommonPoolParallelism());
+        // A row only starts once all the rows more than workers rows above it are over.
+        this.errors = mode == ImageUtils.DitherMode.FLOYD_STEINBERG ? new int[workers + 2][(width + 2) * 3] : null;
+    }
+
+    /**
+     * Matches the next band of the poster.
+     *
+     * @param argb   The ARGB pixels of the band, row after row.
+     * @param height The number of rows of the band.
+     * @param out    The palette indices, row after row.
+     */
+    void dither(int[] argb, int height, byte[] out) {
+        if (mode == ImageUtils.DitherMode.BAYER) {
+            final int firstRow = rows;
+            IntStream.range(0, height).parallel().forEach(y -> ordered(argb, out, y, firstRow + y));
+        } else {
+            final AtomicIntegerArray progress = new AtomicIntegerArray(height);
+            final AtomicInteger nextRow = new AtomicInteger();
+            IntStream.range(0, Math.min(workers, height)).parallel().forEach(worker -> {
+                // Rows are taken in order, so the row above is always being handled by another worker.
+                for (int y = nextRow.getAndIncrement(); y < height; y = nextRow.getAndIncrement()) {
+                    diffuse(argb, out, y, progress);
+                }
+            });
+        }
+        rows += height;
+    }
+
+    private void ordered(int[] argb, byte[] out, int y, int row) {
+        final int offset = y * width;
+        final int matrixRow = (row & 7) << 3;
+
+        for (int x = 0; x < width; x++) {
+            int color = argb[offset + x];
+            if ((color >>> 24) < PaletteTable.ALPHA_THRESHOLD) {
+                out[offset + x] = PaletteTable.TRANSPARENT;
+                continue;
+            }
+
+            int threshold = ((BAYER[matrixRow | (x & 7)] * 2 + 1 - 64) * BAYER_SPREAD) / 128;
+            out[offset + x] = palette.match(0xFF000000
+                    | clamp(((color >> 16) & 0xFF) + threshold) << 16
+                    | clamp(((color >> 8) & 0xFF) + threshold) << 8
+                    | clamp((color & 0xFF) + threshold));
+        }
+    }
+
+    /**
+     * Dithers a row with the Floyd–Steinberg weights: 7/16 of the error of a pixel goes
+     * to the next one, 3/16, 5/16 and 1/16 to the three pixels below.
+     */
+    private void diffuse(int[] argb, byte[] out, int y, AtomicIntegerArray progress) {
+        final int row = rows + y;
+        final int[] received = errors[row % errors.length];
+        final int[] diffused = errors[(row + 1) % errors.length];
+        final int offset = y * width;
+
+        // The row that received the diffused errors before must be over.
+        int previous = y + 1 - errors.length;
+        if (previous >= 0) {
+            awaitProgress(progress, previous, width);
+        }
+        Arrays.fill(diffused, 0);
+
+        int ready = y == 0 ? width : 0;
+        int carryR = 0;
+        int carryG = 0;
+        int carryB = 0;
+
+        for (int x = 0; x < width; x++) {
+            int needed = Math.min(x + 2, width);
+            if (ready < needed) {
+                ready = awaitProgress(progress, y - 1, needed);
+            }
+
+            int color = argb[offset + x];
+            int e = (x + 1) * 3;
+            if ((color >>> 24) < PaletteTable.ALPHA_THRESHOLD) {
+                out[offset + x] = PaletteTable.TRANSPARENT;
+                carryR = carryG = carryB = 0;
+            } else {
+                int r = clamp(((color >> 16) & 0xFF) + ((received[e] + carryR + 8) >> 4));
+                int g = clamp(((color >> 8) & 0xFF) + ((received[e + 1] + carryG + 8) >> 4));
+                int b = clamp((color & 0xFF) + ((received[e + 2] + carryB + 8) >> 4));
+
+                byte index = palette.match(0xFF000000 | r << 16 | g << 8 | b);
+                int matched = palette.getColor(index);
+                out[offset + x] = index;
+
+                int errorR = r - ((matched >> 16) & 0xFF);
+                int errorG = g - ((matched >> 8) & 0xFF);
+                int errorB = b - (matched & 0xFF);
+
+                carryR = errorR * 7;
+                carryG = errorG * 7;
+                carryB = errorB * 7;
+                spread(diffused, e - 3, errorR, errorG, errorB, 3);
+                spread(diffused, e, errorR, errorG, errorB, 5);
+                spread(diffused, e + 3, errorR, errorG, errorB, 1);
+            }
+
+            if ((x + 1) % PROGRESS_STEP == 0 || x + 1 == width) {
+                progress.set(y, x + 1);
+            }
+        }
+    }
+
+    private static void spread(int[] errors, int index, int r, int g, int b, int weight) {
+        errors[index] += r * weight;
+        errors[index + 1] += g * weight;
+        errors[index + 2] += b * weight;
+    }
+
+    /**
+     * Waits until the given row is dithered up to the given pixel. The wait is usually a
+     * few pixels long, so the worker spins, then yields if the row above is not running.
+     *
+     * @return The number of pixels dithered in this row.
+     */
+    private static int awaitProgress(AtomicIntegerArray progress, int y, int pixels) {
+        int done;
+        for (int spins = 0; (done = progress.get(y)) < pixels; spins++) {
+            if (spins < MAX_SPINS) {
+                Thread.onSpinWait();
+            } else {
+                Thread.yield();
+            }
+        }
+        return done;
+    }
+
+    private static int clamp(int level) {
+        return level < 0 ? 0 : Math.min(level, 255);
+    }
+}
@@ -0,0 +1,476 @@
+/*
+ * Copyright or © or Copr. Moribus (2013)
+ * Copyright or © or Copr. ProkopyL <prokopylmc@gmail.com> (2015)
+ * Copyright or © or Copr. Amaury Carrade <amaury@carrade.eu> (2016 – 2021)
+ * Copyright or © or Copr. Vlammar <valentin.jabre@gmail.com> (2019 – 2021)
+ *
+ * This software is a computer program whose purpose is to allow insertion of
+ * custom images in a Minecraft world.
+ *
+ * This software is governed by the CeCILL license under French law and
+ * abiding by the rules of distribution of free software.  You can  use,
+ * modify and/ or redistribute the software under the terms of the CeCILL
+ * license as circulated by CEA, CNRS and INRIA at the following URL
+ * "http://www.cecill.info".
+ *
+ * As a counterpart to the access to the source code and  rights to copy,
+ * modify and redistribute granted by the license, users are provided only
+ * with a limited warranty  and the software's author,  the holder of the
+ * economic rights,  and the successive licensors  have only  limited
+ * liability.
+ *
+ * In this respect, the user's attention is drawn to the risks associated
+ * with loading,  using,  modifying and/or developing or reproducing the
+ * software by the user in light of its specific status of free software,
+ * that may mean  that it is complicated to manipulate,  and  that  also
+ * therefore means  that it is reserved for developers  and  experienced
+ * professionals having in-depth computer knowledge. Users are therefore
+ * encouraged to load and test the software's suitability as regards their
+ * requirements in conditions enabling the security of their systems and/or
+ * data to be ensured and,  more generally, to use and operate it in the
+ * same conditions as regards security.
+ *
+ * The fact that you are presently reading this means that you have had
+ * knowledge of the CeCILL license and that you accept its terms.
+ */
+
+package fr.moribus.imageonmap.image;
+
+import dev.tehbrian.imageonmap.ImageOnMap;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URL;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+
+/**
+ * Keeps the downloaded images on disk, so rendering the same link again does not
+ * download it again.
+ * <p>
+ * Entries are keyed by the normalized link, and point to a file named after the SHA-256
+ * hash of its content: links serving the same image share the file. An entry younger than
+ * the configured time to live is used without any request; an older one is revalidated
+ * with a conditional request, using the validators the server sent with it. Once the files
+ * take more than the configured size, the least recently used entries are dropped.
+ * <p>
+ * The index is saved in {@code index.dat} at most once every {@link #SAVE_INTERVAL} when
+ * it changed, and when the plugin is disabled. Content files the saved index does not know
+ * about are deleted on the next start.
+ */
+final class DownloadCache {
+
+    private static final int MAGIC = 0x494f4d43; // "IOMC"
+    private static final int VERSION = 1;
+
+    private static final String INDEX_FILE = "index.dat";
+    private static final String DATA_EXTENSION = ".bin";
+
+    /**
+     * Minimal delay between two saves of the index.
+     */
+    private static final Duration SAVE_INTERVAL = Duration.ofMinutes(1);
+
+    private static final class Entry {
+        private final String contentHash;
+        private final long size;
+        private final String uri;
+        private final String etag;
+        private final String lastModified;
+        private long fetchedAt;
+
+        private Entry(String contentHash, long size, String uri, String etag, String lastModified, long fetchedAt) {
+            this.contentHash = contentHash;
+            this.size = size;
+            this.uri = uri;
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.fetchedAt = fetchedAt;
+        }
+    }
+
+    private final Path directory;
+    private final ImageSource source;
+    private final LongSupplier maxSize;
+    private final Supplier<Duration> timeToLive;
+
+    /**
+     * The entries by normalized link, least recently used first.
+     */
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    /**
+     * The number of entries pointing to every content file.
+     */
+    private final Map<String, Integer> references = new HashMap<>();
+    private long size = 0;
+    private boolean dirty = false;
+    private long lastSave = System.currentTimeMillis();
+
+    private DownloadCache(Path directory, ImageSource source, LongSupplier maxSize, Supplier<Duration> timeToLive) {
+        this.directory = directory;
+        this.source = source;
+        this.maxSize = maxSize;
+        this.timeToLive = timeToLive;
+    }
+
+    /**
+     * Opens the cache stored in the given directory, and deletes the content files no entry
+     * points to anymore.
+     *
+     * @param directory  The directory of the cache.
+     * @param source     How the images are downloaded.
+     * @param maxSize    The maximal size of the cached files, in bytes; {@code 0} to disable the cache.
+     * @param timeToLive How long an entry is used without asking the server whether it changed.
+     * @return The cache.
+     * @throws IOException If the directory could not be created or read.
+     */
+    static DownloadCache open(Path directory, ImageSource source, LongSupplier maxSize,
+            Supplier<Duration> timeToLive) throws IOException {
+        Files.createDirectories(directory);
+        DownloadCache cache = new DownloadCache(directory, source, maxSize, timeToLive);
+        cache.load();
+
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                boolean data = name.endsWith(DATA_EXTENSION)
+                        && cache.references.containsKey(name.substring(0, name.length() - DATA_EXTENSION.length()));
+                if (!data && !name.equals(INDEX_FILE)) {
+                    Files.deleteIfExists(file);
+                }
+            }
+        }
+        return cache;
+    }
+
+    /**
+     * Gets an image from the cache, or downloads it.
+     *
+     * @param url        The link of the image.
+     * @param revalidate {@code true} to ask the server whether the image changed, even if the entry is recent.
+     * @return The encoded image.
+     * @throws IOException If the image could not be downloaded.
+     */
+    byte[] fetch(URL url, boolean revalidate) throws IOException {
+        if (maxSize.getAsLong() <= 0) {
+            return source.fetch(source.resolve(url), null, null).data();
+        }
+
+        String key = normalize(url);
+        Entry entry;
+        synchronized (this) {
+            entry = entries.get(key);
+            if (entry != null) {
+                // Moved to the most recently used end.
+                dirty = true;
+            }
+        }
+
+        if (entry != null && !revalidate && System.currentTimeMillis() - entry.fetchedAt < timeToLive.get().toMillis()) {
+            byte[] data = read(key, entry);
+            if (data != null) {
+                return data;
+            }
+            entry = null;
+        }
+
+        ImageSource.Response response;
+        if (entry != null) {
+            response = source.fetch(URI.create(entry.uri).toURL(), entry.etag, entry.lastModified);
+            if (!response.isModified()) {
+                byte[] data = read(key, entry);
+                if (data != null) {
+                    synchronized (this) {
+                        entry.fetchedAt = System.currentTimeMillis();
+                        dirty = true;
+                    }
+                    return data;
+                }
+                response = source.fetch(URI.create(entry.uri).toURL(), null, null);
+            }
+        } else {
+            response = source.fetch(source.resolve(url), null, null);
+        }
+
+        store(key, response);
+        return response.data();
+    }
+
+    /**
+     * Reads the content of an entry, and drops the entry if its file is missing or corrupted.
+     *
+     * @return The content, or {@code null} if it could not be read.
+     */
+    private byte[] read(String key, Entry entry) {
+        try {
+            byte[] data = Files.readAllBytes(getDataFile(entry.contentHash));
+            if (hash(data).equals(entry.contentHash)) {
+                return data;
+            }
+            ImageOnMap.get().getLogger().warning("Dropping corrupted cached download " + entry.contentHash);
+        } catch (NoSuchFileException ex) {
+            // Deleted from the outside: the image is downloaded again.
+        } catch (IOException ex) {
+            ImageOnMap.get().getLogger().log(Level.WARNING, "Could not read cached download " + entry.contentHash, ex);
+        }
+
+        synchronized (this) {
+            if (entries.get(key) == entry) {
+                remove(key);
+            }
+        }
+        return null;
+    }
+
+    private void store(String key, ImageSource.Response response) {
+        byte[] data = response.data();
+        if (data.length > maxSize.getAsLong()) {
+            return;
+        }
+
+        String contentHash = hash(data);
+        Path file = getDataFile(contentHash);
+        Path temp = null;
+        try {
+            synchronized (this) {
+                if (references.containsKey(contentHash) && Files.isRegularFile(file)) {
+                    addEntry(key, contentHash, response);
+                    return;
+                }
+            }
+
+            // Written outside the lock, then moved in place under it: content files are only
+            // deleted under the lock, so the file cannot vanish before the entry points to it.
+            temp = Files.createTempFile(directory, contentHash, ".tmp");
+            Files.write(temp, data);
+            synchronized (this) {
+                Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                temp = null;
+                addEntry(key, contentHash, response);
+            }
+        } catch (IOException ex) {
+            ImageOnMap.get().getLogger().log(Level.WARNING, "Could not cache the download of " + key, ex);
+        } finally {
+            if (temp != null) {
+                try {
+                    Files.deleteIfExists(temp);
+                } catch (IOException ex) {
+                    // Deleted on the next start.
+                }
+            }
+        }
+    }
+
+    /**
+     * Points a link to a content file in place. Called with the lock held.
+     */
+    private void addEntry(String key, String contentHash, ImageSource.Response response) {
+        Entry entry = new Entry(contentHash, response.data().length, response.uri().toString(),
+                response.etag(), response.lastModified(), System.currentTimeMillis());
+        // Referenced before the previous entry is released, in case they share the file.
+        if (references.merge(contentHash, 1, Integer::sum) == 1) {
+            size += entry.size;
+        }
+        Entry previous = entries.put(key, entry);
+        if (previous != null) {
+            release(previous);
+        }
+        dirty = true;
+
+        evict();
+        saveIfDue();
+    }
+
+    /**
+     * Drops the least recently used entries until the files fit in the maximal size.
+     */
+    private void evict() {
+        long max = maxSize.getAsLong();
+        for (String key : new ArrayList<>(entries.keySet())) {
+            if (size <= max) {
+                break;
+            }
+            remove(key);
+        }
+    }
+
+    private void remove(String key) {
+        Entry entry = entries.remove(key);
+        if (entry == null) {
+            return;
+        }
+        dirty = true;
+        release(entry);
+    }
+
+    /**
+     * Drops a reference to the content file of an entry, and deletes the file once no entry
+     * points to it anymore.
+     */
+    private void release(Entry entry) {
+        int count = references.merge(entry.contentHash, -1, Integer::sum);
+        if (count <= 0) {
+            references.remove(entry.contentHash);
+            size -= entry.size;
+            try {
+                Files.deleteIfExists(getDataFile(entry.contentHash));
+            } catch (IOException ex) {
+                ImageOnMap.get().getLogger().log(Level.WARNING, "Could not delete cached download "
+                        + entry.contentHash, ex);
+            }
+        }
+    }
+
+    private Path getDataFile(String contentHash) {
+        return directory.resolve(contentHash + DATA_EXTENSION);
+    }
+
+    /**
+     * Saves the index, if it changed since it was last saved.
+     */
+    synchronized void close() {
+        if (dirty) {
+            saveQuietly();
+        }
+    }
+
+    /**
+     * Saves the index if it changed, and was not saved for a while.
+     */
+    private void saveIfDue() {
+        if (dirty && System.currentTimeMillis() - lastSave >= SAVE_INTERVAL.toMillis()) {
+            saveQuietly();
+        }
+    }
+
+    private void saveQuietly() {
+        try {
+            save();
+        } catch (IOException ex) {
+            ImageOnMap.get().getLogger().log(Level.WARNING, "Could not save the download cache index", ex);
+        }
+    }
+
+    private void save() throws IOException {
+        Path file = directory.resolve(INDEX_FILE);
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(entries.size());
+            // Least recently used first, so the order is restored on load.
+            for (Map.Entry<String, Entry> indexed : entries.entrySet()) {
+                Entry entry = indexed.getValue();
+                out.writeUTF(indexed.getKey());
+                out.writeUTF(entry.contentHash);
+                out.writeLong(entry.size);
+                out.writeUTF(entry.uri);
+                writeNullable(out, entry.etag);
+                writeNullable(out, entry.lastModified);
+                out.writeLong(entry.fetchedAt);
+            }
+        }
+
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        dirty = false;
+        lastSave = System.currentTimeMillis();
+    }
+
+    private void load() throws IOException {
+        Path file = directory.resolve(INDEX_FILE);
+        if (!Files.isRegularFile(file)) {
+            return;
+        }
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                ImageOnMap.get().getLogger().warning("Unsupported download cache index, starting from an empty cache.");
+                return;
+            }
+
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String key = in.readUTF();
+                Entry entry = new Entry(in.readUTF(), in.readLong(), in.readUTF(),
+                        readNullable(in), readNullable(in), in.readLong());
+                if (!Files.isRegularFile(getDataFile(entry.contentHash))) {
+                    continue;
+                }
+                entries.put(key, entry);
+                if (references.merge(entry.contentHash, 1, Integer::sum) == 1) {
+                    size += entry.size;
+                }
+            }
+        } catch (IOException ex) {
+            ImageOnMap.get().getLogger().log(Level.WARNING, "Could not read the download cache index, "
+                    + "starting from an empty cache", ex);
+            entries.clear();
+            references.clear();
+            size = 0;
+        }
+    }
+
+    private static void writeNullable(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static String readNullable(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    /**
+     * Normalizes a link, so the different ways to write it point to the same entry: the
+     * scheme and host are lower-cased, the default port and the fragment are dropped.
+     *
+     * @param url The link.
+     * @return The normalized link.
+     */
+    static String normalize(URL url) {
+        StringBuilder normalized = new StringBuilder()
+                .append(url.getProtocol().toLowerCase(Locale.ROOT))
+                .append("://");
+        if (url.getUserInfo() != null) {
+            normalized.append(url.getUserInfo()).append('@');
+        }
+        normalized.append(url.getHost().toLowerCase(Locale.ROOT));
+        if (url.getPort() != -1 && url.getPort() != url.getDefaultPort()) {
+            normalized.append(':').append(url.getPort());
+        }
+        normalized.append(url.getPath().isEmpty() ? "/" : url.getPath());
+        if (url.getQuery() != null) {
+            normalized.append('?').append(url.getQuery());
+        }
+        return normalized.toString();
+    }
+
+    private static String hash(byte[] data) {
+        try {
+            return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(data));
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException("SHA-256 is not available", ex);
+        }
+    }
+}
@@ -38,16 +38,26 @@ package fr.moribus.imageonmap.image;
 
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import dev.tehbrian.imageonmap.ImageOnMap;
+import fr.moribus.imageonmap.PluginConfiguration;
 import fr.moribus.imageonmap.map.ImageMap;
 import dev.tehbrian.imageonmap.util.ExceptionLogger;
+import dev.tehbrian.imageonmap.util.RunTask;
 
 import javax.imageio.ImageIO;
 import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntConsumer;
+import java.util.logging.Level;
 
 public class ImageIOExecutor {
 
@@ -60,13 +70,32 @@ public class ImageIOExecutor {
                     .build()
     );
 
+    /**
+     * Number of threads writing the rendered images, apart from the ones reading the tiles
+     * of the maps players see.
+     */
+    private static final int WRITER_THREADS = 2;
+
+    private static final ExecutorService writer = Executors.newFixedThreadPool(
+            WRITER_THREADS,
+            new ThreadFactoryBuilder()
+                    .setDaemon(true)
+                    .setNameFormat("Image Writer - #%d")
+                    .setUncaughtExceptionHandler(ExceptionLogger::log)
+                    .build()
+    );
+
     @FunctionalInterface
     interface ExceptionalRunnable {
         void run() throws Throwable;
     }
 
-    private static void run(ExceptionalRunnable runnable) {
-        CompletableFuture.runAsync(() -> {
+    private static CompletableFuture<Void> run(ExceptionalRunnable runnable) {
+        return run(runnable, executor);
+    }
+
+    private static CompletableFuture<Void> run(ExceptionalRunnable runnable, ExecutorService executor) {
+        return CompletableFuture.runAsync(() -> {
             try {
                 runnable.run();
             } catch (Throwable t) {
@@ -75,37 +104,312 @@ public class ImageIOExecutor {
         }, executor);
     }
 
-    public static void loadImage(final Path file, final Renderer mapRenderer) {
+    private static final int MIGRATION_BATCH_SIZE = 512;
+
+    private static TileStore tileStore = null;
+    private static TileCache tileCache = new TileCache(0);
+    private static volatile boolean legacyTilesMigrated = false;
+
+    /**
+     * The maps with a stored tile, so the server thread can tell whether a map has an image
+     * without touching the disk.
+     */
+    private static final MapIDSet storedMaps = new MapIDSet();
+    /**
+     * The maps already looked for among the legacy files, during the migration.
+     */
+    private static final MapIDSet probedMaps = new MapIDSet();
+
+    /**
+     * Opens the tile store, then migrates the legacy per-map files into it in the background.
+     *
+     * @throws IOException If the tile store could not be opened.
+     */
+    public static void init() throws IOException {
+        SegmentTileStore store = SegmentTileStore.open(ImageOnMap.get().getTilesDirectory());
+        tileStore = store;
+        tileCache = new TileCache(PluginConfiguration.TILE_CACHE_SIZE.get() * 1024L * 1024L);
+        for (int mapID : store.getMapIDs()) {
+            storedMaps.add(mapID);
+        }
+
         run(() -> {
-            BufferedImage image = ImageIO.read(file.toFile());
-            mapRenderer.setImage(image);
-            image.flush(); //Safe to free
+            int reclaimed = store.compact();
+            if (reclaimed > 0) {
+                ImageOnMap.get().getLogger().info("Reclaimed " + reclaimed + " tile segment(s).");
+            }
+            migrateLegacyTiles();
         });
     }
 
-    public static void saveImage(final Path file, final BufferedImage image) {
-        run(() -> ImageIO.write(image, "png", file.toFile()));
+    /**
+     * Waits for the pending writes, then closes the tile store.
+     */
+    public static void exit() {
+        writer.shutdown();
+        executor.shutdown();
+        try {
+            if (!writer.awaitTermination(30, TimeUnit.SECONDS) || !executor.awaitTermination(30, TimeUnit.SECONDS)) {
+                ImageOnMap.get().getLogger().warning("Some map images could not be saved in time.");
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+
+        ImageOnMap.get().getLogger().info("Tile cache: " + tileCache.getHits() + " hits, "
+                + tileCache.getMisses() + " misses, " + tileCache.getEvictions() + " evictions.");
+
+        if (tileStore != null) {
+            try {
+                tileStore.close();
+            } catch (IOException ex) {
+                ImageOnMap.get().getLogger().log(Level.SEVERE, "Could not close the tile store", ex);
+            }
+            tileStore = null;
+        }
+    }
+
+    /**
+     * Moves the tiles stored as one file per map ({@code mapN.png}, and {@code mapN.dat} palette
+     * files) into the tile store, then deletes these files.
+     */
+    private static void migrateLegacyTiles() throws IOException {
+        Path imagesDirectory = ImageOnMap.get().getImagesDirectory();
+        List<Path> migratedFiles = new ArrayList<>();
+        int migrated = 0;
+
+        // Palette files first: they are already converted, and take precedence over the PNG files.
+        for (String extension : new String[] {"dat", "png"}) {
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(imagesDirectory, "map*." + extension)) {
+                for (Path file : files) {
+                    int mapID = getLegacyMapID(file);
+                    if (mapID < 0) {
+                        continue;
+                    }
+
+                    try {
+                        if (!tileStore.contains(mapID)) {
+                            tileStore.write(mapID, extension.equals("dat") ? readTile(file) : convertImage(file));
+                            migrated++;
+                        }
+                        storedMaps.add(mapID);
+                        migratedFiles.add(file);
+                    } catch (IOException | RuntimeException ex) {
+                        ImageOnMap.get().getLogger().log(Level.WARNING, "Could not migrate map image " + file, ex);
+                    }
+
+                    if (migratedFiles.size() >= MIGRATION_BATCH_SIZE) {
+                        deleteMigratedFiles(migratedFiles);
+                    }
+                }
+            }
+        }
+        deleteMigratedFiles(migratedFiles);
+
+        legacyTilesMigrated = true;
+        probedMaps.clear();
+        if (migrated > 0) {
+            ImageOnMap.get().getLogger().info("Migrated " + migrated + " map image(s) to the tile store.");
+        }
     }
 
-    public static void saveImage(int mapID, BufferedImage image) {
-        saveImage(ImageOnMap.get().getImageFile(mapID), image);
+    /**
+     * Deletes legacy files, once their tiles are safely on disk.
+     */
+    private static void deleteMigratedFiles(List<Path> files) throws IOException {
+        tileStore.flush();
+        for (Path file : files) {
+            Files.deleteIfExists(file);
+        }
+        files.clear();
     }
 
-    public static void saveImage(int[] mapsIDs, PosterImage image) {
-        for (int i = 0, c = mapsIDs.length; i < c; i++) {
-            BufferedImage img = image.getImageAt(i);
-            ImageIOExecutor.saveImage(ImageOnMap.get().getImageFile(mapsIDs[i]), img);
-            img.flush();//Safe to free
+    private static int getLegacyMapID(Path file) {
+        String name = file.getFileName().toString();
+        int extension = name.lastIndexOf('.');
+        if (!name.startsWith("map") || extension <= 3) {
+            return -1;
+        }
+        try {
+            return Integer.parseInt(name.substring(3, extension));
+        } catch (NumberFormatException ex) {
+            return -1;
         }
     }
 
-    public static void deleteImage(ImageMap map) {
+    /**
+     * Loads the palette indices of the given map and hands them to the renderer.
+     * <p>
+     * The tiles read are kept in the {@link TileCache}, so the renderers installed again,
+     * when their chunk is reloaded for instance, do not read them again.
+     * <p>
+     * Until the background migration is over, maps may still only have a legacy
+     * file; it is then read and converted here, off the server thread.
+     *
+     * @param mapID       The Minecraft map ID.
+     * @param mapRenderer The renderer to feed.
+     */
+    public static void loadImage(final int mapID, final Renderer mapRenderer) {
+        run(() -> {
+            byte[] pixels = tileCache.get(mapID);
+            if (pixels == null) {
+                tileCache.beginFill(mapID);
+                try {
+                    pixels = tileStore.read(mapID);
+                } finally {
+                    tileCache.endFill(mapID, pixels);
+                }
+                if (pixels == null && !legacyTilesMigrated) {
+                    pixels = readLegacyTile(mapID);
+                }
+            }
+            if (pixels != null) {
+                mapRenderer.setPixels(pixels);
+            }
+        });
+    }
+
+    private static byte[] readLegacyTile(int mapID) throws IOException {
+        try {
+            Path tileFile = ImageOnMap.get().getTileFile(mapID);
+            if (Files.isRegularFile(tileFile)) {
+                return readTile(tileFile);
+            }
+
+            Path imageFile = ImageOnMap.get().getImageFile(mapID);
+            if (Files.isRegularFile(imageFile)) {
+                return convertImage(imageFile);
+            }
+        } catch (NoSuchFileException ex) {
+            // Migrated in the meantime.
+            return tileStore.read(mapID);
+        }
+        return null;
+    }
+
+    /**
+     * Checks whether an image is stored for the given map, without any disk access.
+     * <p>
+     * Maps only stored as legacy files are not known until they are migrated, or found
+     * by {@link #probeLegacyImage(int, IntConsumer)}.
+     *
+     * @param mapID The Minecraft map ID.
+     * @return {@code true} if there is something to render on this map.
+     */
+    public static boolean hasImage(int mapID) {
+        return storedMaps.contains(mapID);
+    }
+
+    /**
+     * Looks for a legacy file of the given map in the background, while the migration is
+     * not over. A file found is moved to the tile store right away.
+     *
+     * @param mapID The Minecraft map ID.
+     * @param found Called on the server thread with the map ID, if an image was found.
+     */
+    public static void probeLegacyImage(int mapID, IntConsumer found) {
+        if (legacyTilesMigrated || probedMaps.contains(mapID)) {
+            return;
+        }
+        probedMaps.add(mapID);
+
+        run(() -> {
+            byte[] pixels = readLegacyTile(mapID);
+            if (pixels == null) {
+                return;
+            }
+            if (!tileStore.contains(mapID)) {
+                tileStore.write(mapID, pixels);
+            }
+            storedMaps.add(mapID);
+            RunTask.nextTick(() -> found.accept(mapID));
+        });
+    }
+
+    private static byte[] readTile(Path file) throws IOException {
+        byte[] pixels = Files.readAllBytes(file);
+        if (pixels.length != ImageMap.WIDTH * ImageMap.HEIGHT) {
+            throw new IOException("Invalid map tile " + file + ": expected " + ImageMap.WIDTH * ImageMap.HEIGHT
+                    + " bytes, got " + pixels.length);
+        }
+        return pixels;
+    }
+
+    private static byte[] convertImage(Path file) throws IOException {
+        BufferedImage image = ImageIO.read(file.toFile());
+        if (image == null) {
+            throw new IOException("Invalid map image " + file);
+        }
+
+        byte[] pixels = ImageUtils.toMapPixels(image);
+        image.flush(); //Safe to free
+        return pixels;
+    }
+
+    public static CompletableFuture<Void> saveImage(final Path file, final BufferedImage image) {
+        return run(() -> ImageIO.write(image, "png", file.toFile()), writer);
+    }
+
+    public static CompletableFuture<Void> saveTile(final int mapID, final byte[] pixels) {
+        return run(() -> {
+            tileStore.write(mapID, pixels);
+            tileCache.invalidate(mapID);
+            storedMaps.add(mapID);
+        }, writer);
+    }
+
+    /**
+     * Writes the tiles of a poster, in a single task of the writer threads.
+     *
+     * @param mapsIDs The IDs of the maps, in the order of the tiles.
+     * @param image   The poster.
+     * @return A future completed once all the tiles are written.
+     */
+    public static CompletableFuture<Void> saveTiles(int[] mapsIDs, PosterImage image) {
+        return run(() -> {
+            IOException error = null;
+            for (int i = 0, c = mapsIDs.length; i < c; i++) {
+                try {
+                    tileStore.write(mapsIDs[i], image.getPixelsAt(i));
+                    tileCache.invalidate(mapsIDs[i]);
+                    storedMaps.add(mapsIDs[i]);
+                } catch (IOException ex) {
+                    if (error == null) {
+                        error = ex;
+                    } else {
+                        error.addSuppressed(ex);
+                    }
+                }
+            }
+            if (error != null) {
+                throw error;
+            }
+        }, writer);
+    }
+
+    /**
+     * Deletes the tiles of the given map.
+     *
+     * @param map The map.
+     * @return A future completed once the tiles are deleted, so the map IDs can be reused.
+     */
+    public static CompletableFuture<Void> deleteImage(ImageMap map) {
+        List<CompletableFuture<Void>> deletions = new ArrayList<>();
         for (int mapsID : map.getMapsIDs()) {
-            deleteImage(ImageOnMap.get().getImageFile(mapsID));
+            storedMaps.remove(mapsID);
+            deletions.add(run(() -> {
+                tileStore.delete(mapsID);
+                tileCache.invalidate(mapsID);
+            }));
+            if (!legacyTilesMigrated) {
+                deletions.add(deleteImage(ImageOnMap.get().getTileFile(mapsID)));
+                deletions.add(deleteImage(ImageOnMap.get().getImageFile(mapsID)));
+            }
         }
+        return CompletableFuture.allOf(deletions.toArray(new CompletableFuture<?>[0]));
     }
 
-    public static void deleteImage(Path file) {
-        run(() -> Files.delete(file));
+    public static CompletableFuture<Void> deleteImage(Path file) {
+        return run(() -> Files.deleteIfExists(file));
     }
 }
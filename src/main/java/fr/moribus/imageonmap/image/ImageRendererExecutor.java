@@ -43,63 +43,168 @@ import fr.moribus.imageonmap.PluginConfiguration;
 import fr.moribus.imageonmap.i18n.I;
 import fr.moribus.imageonmap.map.ImageMap;
 import fr.moribus.imageonmap.map.MapManager;
+import fr.moribus.imageonmap.map.MapManagerException;
 import dev.tehbrian.imageonmap.util.ExceptionLogger;
 
 import org.bukkit.Bukkit;
 
 import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.net.URI;
 import java.net.URL;
+import java.time.Duration;
+import java.util.Iterator;
+import java.util.List;
 import java.util.UUID;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.function.Function;
+import java.util.logging.Level;
 
 public class ImageRendererExecutor {
 
+    private static final int THREADS = Math.min(Runtime.getRuntime().availableProcessors(), 4);
+
     private static final ExecutorService EXECUTOR = Executors.newFixedThreadPool(
-            Math.min(Runtime.getRuntime().availableProcessors(), 4),
+            THREADS,
             new ThreadFactoryBuilder()
                     .setDaemon(true)
                     .setNameFormat("Image Renderer - #%d")
                     .setUncaughtExceptionHandler(ExceptionLogger::log)
                     .build());
 
+    /**
+     * Images are downloaded on virtual threads, so a slow remote host never holds a render
+     * worker; the pixel budget and the scheduler bound how many downloads run at once.
+     */
+    private static final ExecutorService DOWNLOADER = Executors.newThreadPerTaskExecutor(
+            Thread.ofVirtual()
+                    .name("Image Downloader - #", 1)
+                    .uncaughtExceptionHandler(ExceptionLogger::log)
+                    .factory());
+
+    /**
+     * Renders running at once: twice the render workers, so the next renders download their
+     * image while the current ones are computed.
+     */
+    private static final RenderScheduler SCHEDULER = new RenderScheduler(THREADS * 2,
+            () -> PluginConfiguration.RENDER_PLAYER_CONCURRENCY.get());
+
+    private static final ImageSource SOURCE = ImageSource.create();
+
+    /**
+     * What a render computes: renders of the same image, resized the same way, compute their
+     * tiles once.
+     */
+    private record RenderKey(String url, ImageUtils.ScalingType scaling, ImageUtils.ResamplingFilter filter,
+            ImageUtils.DitherMode dither, int width, int height, boolean bypassSize) {
+    }
+
+    /**
+     * Tiles being computed, and the pixels reserved for them, which stay reserved until every
+     * render using them is over.
+     */
+    private record SharedRender(CompletableFuture<PosterImage> poster, PixelBudget.Shared pixels) {
+    }
+
+    /**
+     * The tiles being computed, by what they are computed from. Entries are removed once the
+     * tiles are split; later renders compute them again.
+     */
+    private static final ConcurrentHashMap<RenderKey, SharedRender> IN_FLIGHT = new ConcurrentHashMap<>();
+
+    private static DownloadCache downloads = null;
+
+    /**
+     * Large sources are decoded at about this many times the size they are drawn at, at
+     * least, so resizing them still smooths the pixels skipped by subsampling.
+     */
+    private static final int SUBSAMPLING_MARGIN = 2;
+
+    /**
+     * Lines of tiles reserved in the pixel budget for a line resized with a resampling filter:
+     * the line itself, and the source rows it covers, which are at most about
+     * {@link #SUBSAMPLING_MARGIN} times as many once subsampled, plus the filter support.
+     * These rows are kept as {@link Resampler#CHANNELS} floats per pixel, each as large as
+     * a whole pixel of the budget.
+     */
+    private static final int RESAMPLED_LINES = 1 + (SUBSAMPLING_MARGIN + 1) * Resampler.CHANNELS;
+
+    private static final PixelBudget PIXEL_BUDGET =
+            new PixelBudget(Math.max(1, PluginConfiguration.RENDER_PIXEL_BUDGET.get()) * 1_000_000L);
+
+    /**
+     * Opens the download cache. Renders still work without it if it cannot be opened.
+     */
+    public static void init() {
+        try {
+            downloads = DownloadCache.open(ImageOnMap.get().getDownloadCacheDirectory(), SOURCE,
+                    () -> Math.max(0, PluginConfiguration.DOWNLOAD_CACHE_SIZE.get()) * 1024L * 1024L,
+                    () -> Duration.ofMinutes(Math.max(0, PluginConfiguration.DOWNLOAD_CACHE_TTL.get())));
+        } catch (IOException ex) {
+            ImageOnMap.get().getLogger().log(Level.WARNING, "Could not open the download cache", ex);
+        }
+    }
+
+    /**
+     * Stops the downloads in progress, and saves the download cache.
+     */
+    public static void exit() {
+        DOWNLOADER.shutdownNow();
+        if (downloads != null) {
+            downloads.close();
+            downloads = null;
+        }
+    }
+
     public static Executor getMainThread() {
         return Bukkit.getScheduler().getMainThreadExecutor(ImageOnMap.get());
     }
 
     @FunctionalInterface
-    interface ExceptionalSupplier<T> {
-        T supply() throws Throwable;
+    interface ExceptionalConsumer<T> {
+        void accept(T value) throws Throwable;
     }
 
-    private static <T> CompletableFuture<T> supply(ExceptionalSupplier<T> supplier) {
-        return CompletableFuture.supplyAsync(() -> {
+    /**
+     * Wraps a render stage, so it can be chained to the previous one.
+     *
+     * @param stage  The stage the job enters.
+     * @param action What this stage does to the job.
+     * @return A function running the stage, then handing the job to the next one.
+     */
+    private static Function<RenderJob, RenderJob> stage(RenderJob.Stage stage, ExceptionalConsumer<RenderJob> action) {
+        return job -> {
+            job.setStage(stage);
             try {
-                return supplier.supply();
+                action.accept(job);
             } catch (Throwable t) {
                 throw new IllegalArgumentException(t);
             }
-        }, EXECUTOR);
+            return job;
+        };
     }
 
-    private static void checkSizeLimit(final UUID playerUUID, final BufferedImage image) throws IOException {
+    private static void checkSizeLimit(final UUID playerUUID, final int width, final int height) throws IOException {
         var player = Bukkit.getPlayer(playerUUID);
 
         if ((PluginConfiguration.LIMIT_SIZE_X.get() > 0 || PluginConfiguration.LIMIT_SIZE_Y.get() > 0)
                 && !(player != null && Permission.BYPASS_SIZE.grantedTo(player))) {
             if (PluginConfiguration.LIMIT_SIZE_X.get() > 0
-                    && image.getWidth() > PluginConfiguration.LIMIT_SIZE_X.get()) {
+                    && width > PluginConfiguration.LIMIT_SIZE_X.get()) {
                 throw new IOException(I.t("The image is too wide!"));
             }
 
             if (PluginConfiguration.LIMIT_SIZE_Y.get() > 0 &&
-                    image.getHeight() > PluginConfiguration.LIMIT_SIZE_Y.get()) {
+                    height > PluginConfiguration.LIMIT_SIZE_Y.get()) {
                 throw new IOException(I.t("The image is too tall!"));
             }
         }
@@ -108,124 +213,319 @@ public class ImageRendererExecutor {
     public static CompletableFuture<ImageMap> render(final URL url, final ImageUtils.ScalingType scaling,
             final UUID playerUUID,
             final int width, final int height) {
-        return supply(() -> {
-            BufferedImage image = null;
-            var strUrl = url.toString();
-            // If the link is an imgur one
-            if (strUrl.toLowerCase().startsWith("https://imgur.com/")) {
-                // Not handled, can't with the hash only access the image in
-                // i.imgur.com/<hash>.<extension>
-                if (strUrl.contains("gallery/")) {
-                    throw new IOException(
-                            "We do not support imgur gallery yet, please use direct link to image instead."
-                                    + " Right click on the picture you want "
-                                    + "to use then select copy picture link:) ");
-                }
-
-                for (Extension ext : Extension.values()) {
-                    var newLink = "https://i.imgur.com/" + strUrl.substring(18) + "." + ext.toString();
+        return render(url, scaling, PluginConfiguration.RESAMPLING_FILTER.get(), PluginConfiguration.DITHERING.get(),
+                playerUUID, width, height);
+    }
 
-                    try (InputStream stream = URI.create(newLink).toURL().openStream()) {
-                        image = ImageIO.read(stream);
-                    }
+    public static CompletableFuture<ImageMap> render(final URL url, final ImageUtils.ScalingType scaling,
+            final ImageUtils.ResamplingFilter filter, final ImageUtils.DitherMode dither, final UUID playerUUID,
+            final int width, final int height) {
+        var player = Bukkit.getPlayer(playerUUID);
+        boolean priority = player != null && Permission.ADMINISTRATIVE.grantedTo(player);
+        RenderJob job = new RenderJob(url, scaling, filter, dither, playerUUID, width, height, null, priority);
+
+        RenderKey key = new RenderKey(DownloadCache.normalize(url), scaling, filter, dither, width, height,
+                player != null && Permission.BYPASS_SIZE.grantedTo(player));
+        SharedRender created = new SharedRender(new CompletableFuture<>(), PIXEL_BUDGET.share());
+        // A render whose pixels are already released is over, even if it is not removed yet.
+        SharedRender inFlight = IN_FLIGHT.compute(key, (k, current) ->
+                current != null && current.pixels().retain() ? current : created);
+        job.pixels = inFlight.pixels();
+        if (inFlight != created) {
+            // The same image is already being rendered: only the maps are this player's own.
+            // The job takes a slot of the scheduler once the tiles are there, not to hold one
+            // while the render it waits for may itself be waiting for a slot.
+            job.setStage(RenderJob.Stage.JOINED);
+            SCHEDULER.join(job);
+            return finish(job, inFlight.poster().thenCompose(shared -> {
+                job.poster = shared;
+                job.setStage(RenderJob.Stage.QUEUED);
+                return SCHEDULER.submit(job);
+            }));
+        }
+        return run(job, key, created);
+    }
 
-                    // valid image
-                    if (image != null) {
-                        break;
-                    }
-                }
-            } else {
-                try (var stream = url.openStream()) {
-                    image = ImageIO.read(stream);
-                }
-            }
+    public static CompletableFuture<ImageMap> update(final URL url, final ImageUtils.ScalingType scaling,
+            final UUID playerUUID,
+            final ImageMap map, final int width, final int height) {
+        RenderJob job = new RenderJob(url, scaling, PluginConfiguration.RESAMPLING_FILTER.get(),
+                PluginConfiguration.DITHERING.get(), playerUUID, width, height, map, true);
+        job.pixels = PIXEL_BUDGET.share();
+        return run(job, null, null);
+    }
 
-            if (image == null) {
-                throw new IOException(I.t("The given URL is not a valid image"));
-            }
+    /**
+     * @return the running renders, the ones waiting for the tiles of another render, then the
+     * waiting ones in the order they should start.
+     */
+    public static List<RenderJob> getQueue() {
+        return SCHEDULER.getJobs();
+    }
 
-            // Limits are in place and the player does NOT have rights to avoid them.
-            checkSizeLimit(playerUUID, image);
+    /**
+     * Runs a render through the pipeline, once the scheduler lets it start. Every stage is
+     * handed to the executor it needs once the previous one completes: no thread ever waits
+     * for another one.
+     *
+     * @param job    The render.
+     * @param key    What the render computes, if other renders may share its tiles.
+     * @param shared Completed with the tiles once they are computed, for the renders sharing them.
+     * @return A future completed with the rendered map, once its renderers are installed.
+     */
+    private static CompletableFuture<ImageMap> run(RenderJob job, RenderKey key, SharedRender shared) {
+        CompletableFuture<RenderJob> split = SCHEDULER.submit(job)
+                .thenApplyAsync(stage(RenderJob.Stage.FETCH, ImageRendererExecutor::fetch), DOWNLOADER)
+                .thenComposeAsync(ImageRendererExecutor::admit, EXECUTOR)
+                .thenApplyAsync(stage(RenderJob.Stage.DECODE, ImageRendererExecutor::decode), EXECUTOR)
+                .thenApplyAsync(stage(RenderJob.Stage.SPLIT, ImageRendererExecutor::split), EXECUTOR);
+
+        if (shared != null) {
+            split.whenComplete((done, exception) -> {
+                IN_FLIGHT.remove(key, shared);
+                if (exception != null) {
+                    shared.poster().completeExceptionally(exception);
+                } else {
+                    shared.poster().complete(done.poster);
+                }
+            });
+        }
+        return finish(job, split);
+    }
 
-            if (scaling != ImageUtils.ScalingType.NONE && height <= 1 && width <= 1) {
-                ImageMap ret = renderSingle(scaling.resize(image, ImageMap.WIDTH, ImageMap.HEIGHT), playerUUID);
-                image.flush();
-                return ret;
-            } else {
-                var resizedImage = scaling.resize(image, ImageMap.WIDTH * width, ImageMap.HEIGHT * height);
-                image.flush();
+    /**
+     * Gives a split poster its own maps: takes their IDs, saves the tiles and installs the
+     * renderers.
+     *
+     * @param job   The render.
+     * @param split Completed once the tiles of the render are computed.
+     * @return A future completed with the rendered map, once its renderers are installed.
+     */
+    private static CompletableFuture<ImageMap> finish(RenderJob job, CompletableFuture<RenderJob> split) {
+        return split
+                .thenCompose(ImageRendererExecutor::allocate)
+                .thenApplyAsync(stage(RenderJob.Stage.PERSIST, ImageRendererExecutor::persist), EXECUTOR)
+                .thenApplyAsync(stage(RenderJob.Stage.INSTALL, ImageRendererExecutor::install), getMainThread())
+                .whenComplete((done, exception) -> {
+                    job.setStage(RenderJob.Stage.DONE);
+                    // The tiles and the image stay in memory until they are written.
+                    CompletableFuture<Void> written = job.written != null
+                            ? job.written : CompletableFuture.completedFuture(null);
+                    written.whenComplete((result, error) -> job.pixels.release());
+                    SCHEDULER.finished(job);
+                })
+                .thenApply(done -> done.map);
+    }
 
-                return renderPoster(resizedImage, playerUUID);
-            }
-        });
+    /**
+     * Downloads the raw image.
+     */
+    private static void fetch(RenderJob job) throws IOException {
+        DownloadCache cache = downloads;
+        if (cache != null) {
+            // Updates ask the server whether the image changed, however recent the cached copy is.
+            job.data = cache.fetch(job.url, job.update);
+        } else {
+            job.data = SOURCE.fetch(SOURCE.resolve(job.url), null, null).data();
+        }
     }
 
-    public static CompletableFuture<ImageMap> update(final URL url, final ImageUtils.ScalingType scaling,
-            final UUID playerUUID,
-            final ImageMap map, final int width, final int height) {
-        return supply(() -> {
-            BufferedImage image;
+    @FunctionalInterface
+    interface ReaderAction<T> {
+        T apply(ImageReader reader) throws IOException;
+    }
 
-            try (var stream = url.openStream()) {
-                image = ImageIO.read(stream);
+    /**
+     * Opens a reader on an encoded image.
+     *
+     * @param data   The encoded image.
+     * @param action What to do with the reader. The reader is disposed of afterward.
+     * @return The result of the action.
+     * @throws IOException If the image format is not supported, or the image could not be read.
+     */
+    private static <T> T withReader(byte[] data, ReaderAction<T> action) throws IOException {
+        try (ImageInputStream input = ImageIO.createImageInputStream(new ByteArrayInputStream(data))) {
+            Iterator<ImageReader> readers = input == null ? null : ImageIO.getImageReaders(input);
+            if (readers == null || !readers.hasNext()) {
+                throw new IOException(I.t("The given URL is not a valid image"));
             }
 
-            if (image == null) {
-                throw new IOException(I.t("The given URL is not a valid image"));
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(input, true, true);
+                return action.apply(reader);
+            } finally {
+                reader.dispose();
             }
+        }
+    }
+
+    /**
+     * Reads the size of the image from its header, without decoding it, then waits for
+     * enough pixels to be free in the render budget.
+     */
+    private static CompletableFuture<RenderJob> admit(RenderJob job) {
+        job.setStage(RenderJob.Stage.ADMIT);
+        long pixels;
+        try {
+            withReader(job.data, reader -> {
+                job.sourceWidth = reader.getWidth(0);
+                job.sourceHeight = reader.getHeight(0);
+                return null;
+            });
 
             // Limits are in place and the player does NOT have rights to avoid them.
-            checkSizeLimit(playerUUID, image);
+            checkSizeLimit(job.playerUUID, job.sourceWidth, job.sourceHeight);
+
+            if (job.scaling == ImageUtils.ScalingType.NONE) {
+                job.targetWidth = job.sourceWidth;
+                job.targetHeight = job.sourceHeight;
+            } else if (!job.update && job.height <= 1 && job.width <= 1) {
+                job.targetWidth = ImageMap.WIDTH;
+                job.targetHeight = ImageMap.HEIGHT;
+            } else {
+                job.targetWidth = ImageMap.WIDTH * job.width;
+                job.targetHeight = ImageMap.HEIGHT * job.height;
+            }
 
-            var resizedImage = scaling.resize(image, width * 128, height * 128);
+            planDecoding(job);
 
-            updateMap(new PosterImage(resizedImage), map.getMapsIDs());
+            long decodedPixels = (long) ceilDiv(job.sourceRegion.width, job.subsamplingX)
+                    * ceilDiv(job.sourceRegion.height, job.subsamplingY);
+            // Resized and dithered posters are drawn one line of tiles at a time; resampling
+            // filters also keep the source rows of a line, resized horizontally.
+            long resizedPixels;
+            if (job.scaling == ImageUtils.ScalingType.NONE) {
+                resizedPixels = job.dither == ImageUtils.DitherMode.NONE ? 0
+                        : (long) (ceilDiv(job.targetWidth, ImageMap.WIDTH) + 1) * ImageMap.WIDTH * ImageMap.HEIGHT;
+            } else {
+                resizedPixels = (long) (ceilDiv(job.targetWidth, ImageMap.WIDTH) + 1) * ImageMap.WIDTH * ImageMap.HEIGHT
+                        * (job.filter == ImageUtils.ResamplingFilter.NEAREST ? 1 : RESAMPLED_LINES);
+            }
+            // The full image is saved as it is drawn at the poster size, so it is kept whole.
+            if (PluginConfiguration.SAVE_FULL_IMAGE.get() && job.scaling != ImageUtils.ScalingType.NONE) {
+                resizedPixels += (long) job.targetWidth * job.targetHeight;
+            }
+            pixels = decodedPixels + resizedPixels;
+            if (job.sourceWidth <= 0 || job.sourceHeight <= 0 || pixels > PIXEL_BUDGET.getCapacity()) {
+                throw new IOException(I.t("The image is too big to be rendered!"));
+            }
+        } catch (IOException ex) {
+            throw new IllegalArgumentException(ex);
+        }
 
-            return map;
+        return PIXEL_BUDGET.acquire(pixels).thenApply(reserved -> {
+            job.pixels.reserved(pixels);
+            return job;
         });
     }
 
-    private static void updateMap(PosterImage poster, int[] mapsIDs) {
-        poster.splitImages();
-
-        ImageIOExecutor.saveImage(mapsIDs, poster);
-
-        if (PluginConfiguration.SAVE_FULL_IMAGE.get()) {
-            ImageIOExecutor.saveImage(ImageMap.getFullImageFile(mapsIDs[0], mapsIDs[mapsIDs.length - 1]),
-                    poster.getImage());
+    /**
+     * Decides which part of the source image is decoded, and at which resolution: only the
+     * part visible once covered, and no more pixels than needed to resize it.
+     */
+    private static void planDecoding(RenderJob job) {
+        int sourceWidth = job.sourceWidth;
+        int sourceHeight = job.sourceHeight;
+        double ratioW = (double) job.targetWidth / sourceWidth;
+        double ratioH = (double) job.targetHeight / sourceHeight;
+
+        job.sourceRegion = new Rectangle(0, 0, sourceWidth, sourceHeight);
+        switch (job.scaling) {
+            case CONTAINED -> {
+                double ratio = Math.min(ratioW, ratioH);
+                job.subsamplingX = job.subsamplingY = subsampling(ratio);
+            }
+            case COVERED -> {
+                double ratio = Math.max(ratioW, ratioH);
+                int visibleWidth = Math.min(sourceWidth, (int) Math.ceil(job.targetWidth / ratio));
+                int visibleHeight = Math.min(sourceHeight, (int) Math.ceil(job.targetHeight / ratio));
+                job.sourceRegion = new Rectangle((sourceWidth - visibleWidth) / 2, (sourceHeight - visibleHeight) / 2,
+                        visibleWidth, visibleHeight);
+                job.subsamplingX = job.subsamplingY = subsampling(ratio);
+            }
+            case STRETCHED -> {
+                job.subsamplingX = subsampling(ratioW);
+                job.subsamplingY = subsampling(ratioH);
+            }
+            default -> {
+            }
         }
-
-        getMainThread().execute(() -> Renderer.installRenderer(poster, mapsIDs));
     }
 
-    private static ImageMap renderSingle(final BufferedImage image, final UUID playerUUID) throws Throwable {
-        MapManager.checkMapLimit(1, playerUUID);
-
-        int mapID = CompletableFuture.supplyAsync(() -> MapManager.getNewMapsIds(1)[0], getMainThread()).join();
-
-        ImageIOExecutor.saveImage(mapID, image);
+    private static int subsampling(double ratio) {
+        return Math.max(1, (int) (1 / (ratio * SUBSAMPLING_MARGIN)));
+    }
 
-        getMainThread().execute(() -> Renderer.installRenderer(image, mapID));
+    private static int ceilDiv(int a, int b) {
+        return (a + b - 1) / b;
+    }
 
-        return MapManager.createMap(playerUUID, mapID);
+    private static void decode(RenderJob job) throws IOException {
+        job.image = withReader(job.data, reader -> {
+            ImageReadParam param = reader.getDefaultReadParam();
+            param.setSourceRegion(job.sourceRegion);
+            param.setSourceSubsampling(job.subsamplingX, job.subsamplingY, 0, 0);
+            return reader.read(0, param);
+        });
+        job.data = null;
     }
 
-    private static ImageMap renderPoster(final BufferedImage image, final UUID playerUUID) throws Throwable {
-        PosterImage poster = new PosterImage(image);
+    /**
+     * Resizes and dithers the image and splits it into tiles, one line of tiles at a time.
+     */
+    private static void split(RenderJob job) {
+        job.poster = new PosterImage(job.image, job.scaling, job.filter, job.dither,
+                job.targetWidth, job.targetHeight);
+        job.poster.splitImages(PluginConfiguration.SAVE_FULL_IMAGE.get());
+    }
 
-        int mapCount = poster.getImagesCount();
-        MapManager.checkMapLimit(mapCount, playerUUID);
+    /**
+     * Takes the IDs of the Minecraft maps from the pool. The job waits without holding a
+     * thread if the pool has to create new maps first.
+     */
+    private static CompletableFuture<RenderJob> allocate(RenderJob job) {
+        job.setStage(RenderJob.Stage.ALLOCATE);
+        if (job.update) {
+            job.mapsIDs = job.map.getMapsIDs();
+            return CompletableFuture.completedFuture(job);
+        }
 
-        int[] mapsIDs = CompletableFuture.supplyAsync(() -> MapManager.getNewMapsIds(mapCount), getMainThread()).join();
+        // Checked for every player once the tiles are computed, as they may be shared.
+        try {
+            MapManager.checkMapLimit(job.poster.getImagesCount(), job.playerUUID);
+        } catch (MapManagerException ex) {
+            return CompletableFuture.failedFuture(new IllegalArgumentException(ex));
+        }
 
-        updateMap(poster, mapsIDs);
+        return MapManager.takeNewMapsIds(job.poster.getImagesCount()).thenApply(mapsIDs -> {
+            job.mapsIDs = mapsIDs;
+            return job;
+        });
+    }
 
-        poster.getImage().flush();
+    /**
+     * Hands the tiles and the image to the writer threads, and registers the new map. The
+     * render goes on without waiting for the writes.
+     */
+    private static void persist(RenderJob job) throws MapManagerException {
+        CompletableFuture<Void> tiles = ImageIOExecutor.saveTiles(job.mapsIDs, job.poster);
+
+        if (PluginConfiguration.SAVE_FULL_IMAGE.get() && job.poster.getRenderedImage() != null) {
+            job.written = CompletableFuture.allOf(tiles, ImageIOExecutor.saveImage(
+                    ImageMap.getFullImageFile(job.mapsIDs[0], job.mapsIDs[job.mapsIDs.length - 1]),
+                    job.poster.getRenderedImage()));
+        } else {
+            job.written = tiles;
+            job.poster.getImage().flush();
+        }
 
-        return MapManager.createMap(poster, playerUUID, mapsIDs);
+        if (!job.update) {
+            job.map = MapManager.createMap(job.poster, job.playerUUID, job.mapsIDs);
+        }
     }
 
-    private enum Extension {
-        png, jpg, jpeg, gif
+    private static void install(RenderJob job) {
+        Renderer.installRenderer(job.poster, job.mapsIDs);
     }
 }
@@ -0,0 +1,344 @@
+/*
+ * Copyright or © or Copr. Moribus (2013)
+ * Copyright or © or Copr. ProkopyL <prokopylmc@gmail.com> (2015)
+ * Copyright or © or Copr. Amaury Carrade <amaury@carrade.eu> (2016 – 2021)
+ * Copyright or © or Copr. Vlammar <valentin.jabre@gmail.com> (2019 – 2021)
+ *
+ * This software is a computer program whose purpose is to allow insertion of
+ * custom images in a Minecraft world.
+ *
+ * This software is governed by the CeCILL license under French law and
+ * abiding by the rules of distribution of free software.  You can  use,
+ * modify and/ or redistribute the software under the terms of the CeCILL
+ * license as circulated by CEA, CNRS and INRIA at the following URL
+ * "http://www.cecill.info".
+ *
+ * As a counterpart to the access to the source code and  rights to copy,
+ * modify and redistribute granted by the license, users are provided only
+ * with a limited warranty  and the software's author,  the holder of the
+ * economic rights,  and the successive licensors  have only  limited
+ * liability.
+ *
+ * In this respect, the user's attention is drawn to the risks associated
+ * with loading,  using,  modifying and/or developing or reproducing the
+ * software by the user in light of its specific status of free software,
+ * that may mean  that it is complicated to manipulate,  and  that  also
+ * therefore means  that it is reserved for developers  and  experienced
+ * professionals having in-depth computer knowledge. Users are therefore
+ * encouraged to load and test the software's suitability as regards their
+ * requirements in conditions enabling the security of their systems and/or
+ * data to be ensured and,  more generally, to use and operate it in the
+ * same conditions as regards security.
+ *
+ * The fact that you are presently reading this means that you have had
+ * knowledge of the CeCILL license and that you accept its terms.
+ */
+
+package fr.moribus.imageonmap.image;
+
+import fr.moribus.imageonmap.PluginConfiguration;
+import fr.moribus.imageonmap.i18n.I;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Downloads the images to render.
+ * <p>
+ * HTTP and HTTPS images are fetched with a shared {@link HttpClient}, which keeps the
+ * connections to a host open between downloads and speaks HTTP/2 when the server does.
+ * Every download is bounded: the whole exchange times out after the configured delay, and
+ * the body is refused as soon as it grows past the configured size, before it is all
+ * received. Downloads can be conditional, with the validators of a previous response.
+ * <p>
+ * This class blocks the calling thread until the download is over, so it is meant to be
+ * called from virtual threads.
+ */
+public final class ImageSource {
+
+    private static final String IMGUR_PAGES = "https://imgur.com/";
+    private static final String IMGUR_IMAGES = "https://i.imgur.com/";
+
+    private static final String USER_AGENT = "ImageOnMap";
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * The extensions tried for an imgur page link, by order of preference.
+     */
+    private enum Extension {
+        png, jpg, jpeg, gif
+    }
+
+    /**
+     * A downloaded image, or the confirmation that it did not change.
+     *
+     * @param uri          The URI the image was downloaded from, after redirections.
+     * @param data         The encoded image, or {@code null} if it was not modified.
+     * @param etag         The entity tag of the image, if the server sent one.
+     * @param lastModified The modification date of the image, if the server sent one.
+     */
+    public record Response(URI uri, byte[] data, String etag, String lastModified) {
+        /**
+         * @return {@code false} if the image did not change since the validators of the request.
+         */
+        public boolean isModified() {
+            return data != null;
+        }
+    }
+
+    private final HttpClient client;
+    private final Supplier<Duration> timeout;
+    private final LongSupplier maxSize;
+
+    /**
+     * @param client  The client sending the requests.
+     * @param timeout The time a whole download may take.
+     * @param maxSize The maximal size of a downloaded image, in bytes.
+     */
+    ImageSource(HttpClient client, Supplier<Duration> timeout, LongSupplier maxSize) {
+        this.client = client;
+        this.timeout = timeout;
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * @return a source following the plugin configuration.
+     */
+    static ImageSource create() {
+        Supplier<Duration> timeout = () -> Duration.ofSeconds(Math.max(1, PluginConfiguration.DOWNLOAD_TIMEOUT.get()));
+        HttpClient client = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_2)
+                .followRedirects(HttpClient.Redirect.NORMAL)
+                .connectTimeout(timeout.get())
+                .build();
+        return new ImageSource(client, timeout,
+                () -> Math.max(1, PluginConfiguration.MAX_IMAGE_SIZE.get()) * 1024L * 1024L);
+    }
+
+    /**
+     * Finds the image behind an imgur page link ({@code https://imgur.com/<hash>}), by
+     * probing the possible extensions in parallel with {@code HEAD} requests. Other links are
+     * returned as is.
+     *
+     * @param url The link.
+     * @return The link of the image.
+     * @throws IOException If the link is an imgur gallery, or no image was found.
+     */
+    public URL resolve(URL url) throws IOException {
+        String link = url.toString();
+        if (!link.toLowerCase(Locale.ROOT).startsWith(IMGUR_PAGES)) {
+            return url;
+        }
+
+        // Not handled, can't with the hash only access the image in
+        // i.imgur.com/<hash>.<extension>
+        if (link.contains("gallery/")) {
+            throw new IOException(
+                    "We do not support imgur gallery yet, please use direct link to image instead."
+                            + " Right click on the picture you want "
+                            + "to use then select copy picture link:) ");
+        }
+
+        List<URI> candidates = new ArrayList<>();
+        List<CompletableFuture<HttpResponse<Void>>> probes = new ArrayList<>();
+        for (Extension extension : Extension.values()) {
+            URI candidate = toURI(IMGUR_IMAGES + link.substring(IMGUR_PAGES.length()) + "." + extension);
+            candidates.add(candidate);
+            probes.add(client.sendAsync(request(candidate).method("HEAD", HttpRequest.BodyPublishers.noBody()).build(),
+                    HttpResponse.BodyHandlers.discarding()));
+        }
+
+        await(CompletableFuture.allOf(probes.toArray(new CompletableFuture<?>[0])).exceptionally(ex -> null));
+        for (int i = 0; i < probes.size(); i++) {
+            HttpResponse<Void> response = probes.get(i).getNow(null);
+            if (!probes.get(i).isCompletedExceptionally() && response != null && response.statusCode() == 200) {
+                return candidates.get(i).toURL();
+            }
+        }
+        throw new IOException(I.t("This imgur image could not be found."));
+    }
+
+    /**
+     * Downloads an image.
+     *
+     * @param url          The link of the image.
+     * @param etag         The entity tag of the version already known, or {@code null}.
+     * @param lastModified The modification date of the version already known, or {@code null}.
+     * @return The image, or a response without data if the server confirmed the known
+     * version is still current.
+     * @throws IOException If the image could not be downloaded, in time, or is too big.
+     */
+    public Response fetch(URL url, String etag, String lastModified) throws IOException {
+        URI uri = toURI(url.toString());
+        String scheme = uri.getScheme() == null ? "" : uri.getScheme().toLowerCase(Locale.ROOT);
+        if (!scheme.equals("http") && !scheme.equals("https")) {
+            return new Response(uri, download(url), null, null);
+        }
+
+        HttpRequest.Builder request = request(uri).GET();
+        if (etag != null) {
+            request.header("If-None-Match", etag);
+        }
+        if (lastModified != null) {
+            request.header("If-Modified-Since", lastModified);
+        }
+
+        final long limit = maxSize.getAsLong();
+        HttpResponse<byte[]> response = await(client.sendAsync(request.build(), info -> {
+            if (info.statusCode() != 200) {
+                return HttpResponse.BodySubscribers.replacing(null);
+            }
+            if (info.headers().firstValueAsLong("Content-Length").orElse(0) > limit) {
+                throw new UncheckedIOException(new IOException(I.t("The image is too big to be downloaded!")));
+            }
+            return new LimitedBody(limit);
+        }));
+
+        String newEtag = response.headers().firstValue("ETag").orElse(etag);
+        String newLastModified = response.headers().firstValue("Last-Modified").orElse(lastModified);
+        return switch (response.statusCode()) {
+            case 200 -> new Response(response.uri(), response.body(), newEtag, newLastModified);
+            case 304 -> new Response(response.uri(), null, newEtag, newLastModified);
+            default -> throw new IOException(I.t("The server answered with the HTTP error {0}.", response.statusCode()));
+        };
+    }
+
+    private HttpRequest.Builder request(URI uri) {
+        return HttpRequest.newBuilder(uri)
+                .timeout(timeout.get())
+                .header("User-Agent", USER_AGENT);
+    }
+
+    /**
+     * Waits for an exchange, cancelling it if it takes longer than the timeout.
+     */
+    private <T> T await(CompletableFuture<T> exchange) throws IOException {
+        try {
+            return exchange.get(timeout.get().toMillis(), TimeUnit.MILLISECONDS);
+        } catch (TimeoutException ex) {
+            exchange.cancel(true);
+            throw new IOException(I.t("The image took too long to download."));
+        } catch (InterruptedException ex) {
+            exchange.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new IOException(ex);
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof UncheckedIOException unchecked) {
+                throw unchecked.getCause();
+            }
+            if (cause instanceof IOException io) {
+                throw io;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * Downloads an image from another kind of link, with the same limits.
+     */
+    private byte[] download(URL url) throws IOException {
+        long limit = maxSize.getAsLong();
+        long deadline = System.nanoTime() + timeout.get().toNanos();
+
+        URLConnection connection = url.openConnection();
+        connection.setConnectTimeout((int) timeout.get().toMillis());
+        connection.setReadTimeout((int) timeout.get().toMillis());
+
+        try (InputStream stream = connection.getInputStream()) {
+            ByteArrayOutputStream data = new ByteArrayOutputStream();
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int read;
+            while ((read = stream.read(buffer)) >= 0) {
+                data.write(buffer, 0, read);
+                if (data.size() > limit) {
+                    throw new IOException(I.t("The image is too big to be downloaded!"));
+                }
+                if (System.nanoTime() - deadline > 0) {
+                    throw new IOException(I.t("The image took too long to download."));
+                }
+            }
+            return data.toByteArray();
+        }
+    }
+
+    private static URI toURI(String link) throws IOException {
+        try {
+            return new URI(link);
+        } catch (URISyntaxException ex) {
+            throw new IOException(I.t("Invalid URL."), ex);
+        }
+    }
+
+    /**
+     * Collects a response body, and cancels the download as soon as it is bigger than allowed.
+     */
+    private static final class LimitedBody implements HttpResponse.BodySubscriber<byte[]> {
+        private final long limit;
+        private final CompletableFuture<byte[]> body = new CompletableFuture<>();
+        private final ByteArrayOutputStream data = new ByteArrayOutputStream();
+        private Flow.Subscription subscription;
+
+        private LimitedBody(long limit) {
+            this.limit = limit;
+        }
+
+        @Override
+        public CompletionStage<byte[]> getBody() {
+            return body;
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            this.subscription = subscription;
+            subscription.request(1);
+        }
+
+        @Override
+        public void onNext(List<ByteBuffer> buffers) {
+            for (ByteBuffer buffer : buffers) {
+                if (data.size() + (long) buffer.remaining() > limit) {
+                    subscription.cancel();
+                    body.completeExceptionally(new IOException(I.t("The image is too big to be downloaded!")));
+                    return;
+                }
+                byte[] bytes = new byte[buffer.remaining()];
+                buffer.get(bytes);
+                data.write(bytes, 0, bytes.length);
+            }
+            subscription.request(1);
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            body.completeExceptionally(throwable);
+        }
+
+        @Override
+        public void onComplete() {
+            body.complete(data.toByteArray());
+        }
+    }
+}
@@ -38,6 +38,7 @@ package fr.moribus.imageonmap.image;
 
 import dev.tehbrian.imageonmap.ImageOnMap;
 import java.awt.Graphics;
+import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
 
 /**
@@ -54,27 +55,39 @@ public class ImageUtils {
      * @return The new buffer, with the source buffer drawn on it
      */
     private static BufferedImage resize(BufferedImage source, int destinationW, int destinationH, boolean covered) {
-        float ratioW = (float) destinationW / (float) source.getWidth();
-        float ratioH = (float) destinationH / (float) source.getHeight();
+        Rectangle placement = getPlacement(source.getWidth(), source.getHeight(), destinationW, destinationH, covered);
+        return drawImage(source,
+                destinationW, destinationH,
+                placement.x, placement.y, placement.width, placement.height);
+    }
+
+    /**
+     * Computes where the source is drawn when it is resized keeping its proportions.
+     *
+     * @param sourceW      The width of the source
+     * @param sourceH      The height of the source
+     * @param destinationW resize width
+     * @param destinationH resize height
+     * @param covered      {@code true} if the source covers the whole destination, else it is
+     *                     contained in it
+     * @return The position and size of the source in the destination
+     */
+    private static Rectangle getPlacement(int sourceW, int sourceH, int destinationW, int destinationH,
+                                          boolean covered) {
+        float ratioW = (float) destinationW / (float) sourceW;
+        float ratioH = (float) destinationH / (float) sourceH;
         int finalW;
         int finalH;
-        int x;
-        int y;
 
         if (covered ? ratioW > ratioH : ratioW < ratioH) {
             finalW = destinationW;
-            finalH = (int) (source.getHeight() * ratioW);
+            finalH = (int) (sourceH * ratioW);
         } else {
-            finalW = (int) (source.getWidth() * ratioH);
+            finalW = (int) (sourceW * ratioH);
             finalH = destinationH;
         }
 
-        x = (destinationW - finalW) / 2;
-        y = (destinationH - finalH) / 2;
-
-        return drawImage(source,
-                destinationW, destinationH,
-                x, y, finalW, finalH);
+        return new Rectangle((destinationW - finalW) / 2, (destinationH - finalH) / 2, finalW, finalH);
     }
 
     /**
@@ -125,6 +138,115 @@ public class ImageUtils {
 
     }
 
+    /**
+     * Converts the given image into map palette indices, row by row.
+     * <p>
+     * This is the color-matching step, so it must never run on the server
+     * thread. Colors are matched through the shared {@link PaletteTable}.
+     *
+     * @param image The image to convert
+     * @return The palette indices, one byte per pixel
+     */
+    public static byte[] toMapPixels(BufferedImage image) {
+        return PaletteTable.get().quantize(image);
+    }
+
+    /**
+     * The filters used to resample images when they are resized.
+     */
+    public enum ResamplingFilter {
+        /**
+         * Java2D's default scaling: the nearest source pixel, without any filtering.
+         */
+        NEAREST(0),
+        /**
+         * The average of the source pixels covered by each resized pixel.
+         */
+        BOX(0.5),
+        BILINEAR(1),
+        LANCZOS(3),
+        ;
+
+        private final double support;
+
+        ResamplingFilter(double support) {
+            this.support = support;
+        }
+
+        /**
+         * @return the radius of the filter, in resized pixels
+         */
+        double getSupport() {
+            return support;
+        }
+
+        /**
+         * @param x The distance to the center of the filter, in resized pixels
+         * @return The weight of a source pixel at this distance
+         */
+        double weight(double x) {
+            return switch (this) {
+                case BOX -> x > -0.5 && x <= 0.5 ? 1 : 0;
+                case BILINEAR -> Math.max(0, 1 - Math.abs(x));
+                case LANCZOS -> x > -3 && x < 3 ? sinc(x) * sinc(x / 3) : 0;
+                default -> x == 0 ? 1 : 0;
+            };
+        }
+
+        private static double sinc(double x) {
+            if (x == 0) {
+                return 1;
+            }
+            x *= Math.PI;
+            return Math.sin(x) / x;
+        }
+
+        /**
+         * @param name The name of a filter, case-insensitive
+         * @return The filter, or {@code null} if there is no such filter
+         */
+        public static ResamplingFilter fromName(String name) {
+            for (ResamplingFilter filter : values()) {
+                if (filter.name().equalsIgnoreCase(name)) {
+                    return filter;
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * How the colors lost when the image is matched to the map palette are compensated.
+     */
+    public enum DitherMode {
+        /**
+         * Every pixel is matched to the nearest palette color.
+         */
+        NONE,
+        /**
+         * An 8×8 Bayer threshold pattern is added to the pixels before they are matched.
+         */
+        BAYER,
+        /**
+         * The error of every pixel is spread to its neighbours, across tile borders.
+         */
+        FLOYD_STEINBERG,
+        ;
+
+        /**
+         * @param name The name of a mode, case-insensitive, with dashes or underscores
+         * @return The mode, or {@code null} if there is no such mode
+         */
+        public static DitherMode fromName(String name) {
+            for (DitherMode mode : values()) {
+                if (mode.name().equalsIgnoreCase(name.replace('-', '_'))) {
+                    return mode;
+                }
+            }
+            return null;
+        }
+    }
+
     public enum ScalingType {
         NONE,
         CONTAINED,
@@ -140,5 +262,23 @@ public class ImageUtils {
                 default -> source;
             };
         }
+
+        /**
+         * Computes where the source is drawn when it is resized.
+         *
+         * @param sourceW      The width of the source
+         * @param sourceH      The height of the source
+         * @param destinationW resize width
+         * @param destinationH resize height
+         * @return The position and size of the source in the destination
+         */
+        public Rectangle getPlacement(int sourceW, int sourceH, int destinationW, int destinationH) {
+            return switch (this) {
+                case CONTAINED -> ImageUtils.getPlacement(sourceW, sourceH, destinationW, destinationH, false);
+                case COVERED -> ImageUtils.getPlacement(sourceW, sourceH, destinationW, destinationH, true);
+                case STRETCHED -> new Rectangle(0, 0, destinationW, destinationH);
+                default -> new Rectangle(0, 0, sourceW, sourceH);
+            };
+        }
     }
 }
\ No newline at end of file
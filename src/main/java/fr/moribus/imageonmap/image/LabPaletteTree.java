@@ -0,0 +1,226 @@
+/*
+ * Copyright or © or Copr. Moribus (2013)
+ * Copyright or © or Copr. ProkopyL <prokopylmc@gmail.com> (2015)
+ * Copyright or © or Copr. Amaury Carrade <amaury@carrade.eu> (2016 – 2021)
+ * Copyright or © or Copr. Vlammar <valentin.jabre@gmail.com> (2019 – 2021)
+ *
+ * This software is a computer program whose purpose is to allow insertion of
+ * custom images in a Minecraft world.
+ *
+ * This software is governed by the CeCILL license under French law and
+ * abiding by the rules of distribution of free software.  You can  use,
+ * modify and/ or redistribute the software under the terms of the CeCILL
+ * license as circulated by CEA, CNRS and INRIA at the following URL
+ * "http://www.cecill.info".
+ *
+ * As a counterpart to the access to the source code and  rights to copy,
+ * modify and redistribute granted by the license, users are provided only
+ * with a limited warranty  and the software's author,  the holder of the
+ * economic rights,  and the successive licensors  have only  limited
+ * liability.
+ *
+ * In this respect, the user's attention is drawn to the risks associated
+ * with loading,  using,  modifying and/or developing or reproducing the
+ * software by the user in light of its specific status of free software,
+ * that may mean  that it is complicated to manipulate,  and  that  also
+ * therefore means  that it is reserved for developers  and  experienced
+ * professionals having in-depth computer knowledge. Users are therefore
+ * encouraged to load and test the software's suitability as regards their
+ * requirements in conditions enabling the security of their systems and/or
+ * data to be ensured and,  more generally, to use and operate it in the
+ * same conditions as regards security.
+ *
+ * The fact that you are presently reading this means that you have had
+ * knowledge of the CeCILL license and that you accept its terms.
+ */
+
+package fr.moribus.imageonmap.image;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * The opaque colors of the map palette in the CIELAB color space, indexed by a k-d tree
+ * to find the perceptually nearest one to a color.
+ * <p>
+ * The tree is implicit and balanced: every range of entries is sorted along one of the
+ * L, a and b axes in turn, and its median entry splits it. A search only visits the
+ * ranges which may hold an entry nearer than the best one found so far, usually a few
+ * dozen entries instead of the whole palette. Instances are immutable, so they can be
+ * searched from several threads.
+ */
+final class LabPaletteTree {
+
+    /**
+     * Ranges of at most this many entries are scanned rather than split further.
+     */
+    private static final int LEAF_SIZE = 8;
+
+    /**
+     * The depth of the tree of a 256 colors palette is far below this.
+     */
+    private static final int MAX_DEPTH = 32;
+
+    /**
+     * The linear intensity of every sRGB level.
+     */
+    private static final double[] LINEAR = new double[256];
+
+    static {
+        for (int level = 0; level < LINEAR.length; level++) {
+            double c = level / 255.0;
+            LINEAR[level] = c <= 0.04045 ? c / 12.92 : Math.pow((c + 0.055) / 1.055, 2.4);
+        }
+    }
+
+    /**
+     * The L, a and b coordinates of the entries, in tree order.
+     */
+    private final float[] coordinates;
+    /**
+     * The palette index of each entry, in tree order.
+     */
+    private final byte[] indices;
+
+    /**
+     * @param palette The RGB palette colors, indexed by palette index. Transparent entries are negative.
+     */
+    LabPaletteTree(int[] palette) {
+        Entry[] entries = new Entry[palette.length];
+        int count = 0;
+        for (int i = 0; i < palette.length; i++) {
+            if (palette[i] >= 0) {
+                entries[count++] = new Entry(toLab(palette[i]), (byte) i);
+            }
+        }
+        entries = Arrays.copyOf(entries, count);
+
+        build(entries, 0, count, 0);
+
+        coordinates = new float[count * 3];
+        indices = new byte[count];
+        for (int i = 0; i < count; i++) {
+            System.arraycopy(entries[i].lab, 0, coordinates, i * 3, 3);
+            indices[i] = entries[i].index;
+        }
+    }
+
+    private record Entry(float[] lab, byte index) {
+    }
+
+    private static void build(Entry[] entries, int from, int to, int axis) {
+        if (to - from <= 1) {
+            return;
+        }
+        Arrays.sort(entries, from, to, Comparator.comparingDouble(entry -> entry.lab[axis]));
+        int median = (from + to) >>> 1;
+        build(entries, from, median, (axis + 1) % 3);
+        build(entries, median + 1, to, (axis + 1) % 3);
+    }
+
+    /**
+     * Finds the palette entry nearest to the given color, by Euclidean distance in the
+     * CIELAB space (CIE76). Ties go to the lowest palette index, as with a plain scan.
+     *
+     * @param rgb The color; its alpha is ignored.
+     * @return The palette index, or {@link PaletteTable#TRANSPARENT} if the palette has no opaque color.
+     */
+    byte nearest(int rgb) {
+        if (indices.length == 0) {
+            return PaletteTable.TRANSPARENT;
+        }
+
+        final float[] target = toLab(rgb);
+        // The ranges left to visit: their bounds and axis, and their distance to the target along it.
+        final int[] ranges = new int[MAX_DEPTH * 3];
+        final float[] planes = new float[MAX_DEPTH];
+        int pending = 0;
+
+        int best = -1;
+        float bestDistance = Float.MAX_VALUE;
+        int from = 0;
+        int to = indices.length;
+        int axis = 0;
+
+        while (true) {
+            // Down to a leaf, nearest side first; the other side is only visited afterwards
+            // if the splitting plane is nearer than the best entry found by then.
+            while (to - from > LEAF_SIZE) {
+                int median = (from + to) >>> 1;
+                float distance = distance(median, target);
+                if (distance < bestDistance
+                        || (distance == bestDistance && (indices[median] & 0xFF) < (indices[best] & 0xFF))) {
+                    bestDistance = distance;
+                    best = median;
+                }
+
+                float offset = target[axis] - coordinates[median * 3 + axis];
+                int nextAxis = (axis + 1) % 3;
+                planes[pending] = offset * offset;
+                ranges[pending * 3 + 2] = nextAxis;
+                if (offset < 0) {
+                    ranges[pending * 3] = median + 1;
+                    ranges[pending * 3 + 1] = to;
+                    to = median;
+                } else {
+                    ranges[pending * 3] = from;
+                    ranges[pending * 3 + 1] = median;
+                    from = median + 1;
+                }
+                pending++;
+                axis = nextAxis;
+            }
+
+            for (int i = from; i < to; i++) {
+                float distance = distance(i, target);
+                if (distance < bestDistance
+                        || (distance == bestDistance && (indices[i] & 0xFF) < (indices[best] & 0xFF))) {
+                    bestDistance = distance;
+                    best = i;
+                }
+            }
+
+            do {
+                if (pending == 0) {
+                    return indices[best];
+                }
+                pending--;
+            } while (planes[pending] > bestDistance);
+            from = ranges[pending * 3];
+            to = ranges[pending * 3 + 1];
+            axis = ranges[pending * 3 + 2];
+        }
+    }
+
+    private float distance(int entry, float[] target) {
+        float dl = coordinates[entry * 3] - target[0];
+        float da = coordinates[entry * 3 + 1] - target[1];
+        float db = coordinates[entry * 3 + 2] - target[2];
+        return dl * dl + da * da + db * db;
+    }
+
+    /**
+     * Converts an sRGB color to CIELAB, under the D65 illuminant.
+     *
+     * @param rgb The color; its alpha is ignored.
+     * @return The L, a and b coordinates.
+     */
+    static float[] toLab(int rgb) {
+        double r = LINEAR[(rgb >> 16) & 0xFF];
+        double g = LINEAR[(rgb >> 8) & 0xFF];
+        double b = LINEAR[rgb & 0xFF];
+
+        double x = (0.4124564 * r + 0.3575761 * g + 0.1804375 * b) / 0.95047;
+        double y = 0.2126729 * r + 0.7151522 * g + 0.0721750 * b;
+        double z = (0.0193339 * r + 0.1191920 * g + 0.9503041 * b) / 1.08883;
+
+        double fx = labCurve(x);
+        double fy = labCurve(y);
+        double fz = labCurve(z);
+        return new float[] {(float) (116 * fy - 16), (float) (500 * (fx - fy)), (float) (200 * (fy - fz))};
+    }
+
+    private static double labCurve(double t) {
+        return t > 216.0 / 24389 ? Math.cbrt(t) : (24389.0 / 27 * t + 16) / 116;
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright or © or Copr. Moribus (2013)
+ * Copyright or © or Copr. ProkopyL <prokopylmc@gmail.com> (2015)
+ * Copyright or © or Copr. Amaury Carrade <amaury@carrade.eu> (2016 – 2021)
+ * Copyright or © or Copr. Vlammar <valentin.jabre@gmail.com> (2019 – 2021)
+ *
+ * This software is a computer program whose purpose is to allow insertion of
+ * custom images in a Minecraft world.
+ *
+ * This software is governed by the CeCILL license under French law and
+ * abiding by the rules of distribution of free software.  You can  use,
+ * modify and/ or redistribute the software under the terms of the CeCILL
+ * license as circulated by CEA, CNRS and INRIA at the following URL
+ * "http://www.cecill.info".
+ *
+ * As a counterpart to the access to the source code and  rights to copy,
+ * modify and redistribute granted by the license, users are provided only
+ * with a limited warranty  and the software's author,  the holder of the
+ * economic rights,  and the successive licensors  have only  limited
+ * liability.
+ *
+ * In this respect, the user's attention is drawn to the risks associated
+ * with loading,  using,  modifying and/or developing or reproducing the
+ * software by the user in light of its specific status of free software,
+ * that may mean  that it is complicated to manipulate,  and  that  also
+ * therefore means  that it is reserved for developers  and  experienced
+ * professionals having in-depth computer knowledge. Users are therefore
+ * encouraged to load and test the software's suitability as regards their
+ * requirements in conditions enabling the security of their systems and/or
+ * data to be ensured and,  more generally, to use and operate it in the
+ * same conditions as regards security.
+ *
+ * The fact that you are presently reading this means that you have had
+ * knowledge of the CeCILL license and that you accept its terms.
+ */
+
+package fr.moribus.imageonmap.image;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A set of Minecraft map IDs, as a bitset growing with the largest ID.
+ * <p>
+ * Lookups take no lock and allocate nothing, so they are cheap enough for the event
+ * handlers of the server thread; updates are serialized.
+ */
+final class MapIDSet {
+
+    private static final int INITIAL_WORDS = 64;
+
+    private volatile AtomicLongArray words = new AtomicLongArray(INITIAL_WORDS);
+
+    /**
+     * @param mapID The Minecraft map ID.
+     * @return {@code true} if this ID is in the set.
+     */
+    boolean contains(int mapID) {
+        if (mapID < 0) {
+            return false;
+        }
+        AtomicLongArray current = words;
+        int word = mapID >>> 6;
+        return word < current.length() && (current.get(word) & (1L << mapID)) != 0;
+    }
+
+    synchronized void add(int mapID) {
+        if (mapID < 0) {
+            return;
+        }
+        int word = mapID >>> 6;
+        AtomicLongArray current = words;
+        if (word >= current.length()) {
+            AtomicLongArray grown = new AtomicLongArray(Math.max(word + 1, current.length() * 2));
+            for (int i = 0; i < current.length(); i++) {
+                grown.set(i, current.get(i));
+            }
+            words = current = grown;
+        }
+        current.set(word, current.get(word) | (1L << mapID));
+    }
+
+    synchronized void remove(int mapID) {
+        int word = mapID >>> 6;
+        AtomicLongArray current = words;
+        if (mapID >= 0 && word < current.length()) {
+            current.set(word, current.get(word) & ~(1L << mapID));
+        }
+    }
+
+    synchronized void clear() {
+        words = new AtomicLongArray(INITIAL_WORDS);
+    }
+}
@@ -37,61 +37,191 @@
 package fr.moribus.imageonmap.image;
 
 import dev.tehbrian.imageonmap.ImageOnMap;
+import fr.moribus.imageonmap.PluginConfiguration;
 import fr.moribus.imageonmap.map.MapManager;
-import java.nio.file.Files;
-import java.nio.file.Path;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.List;
 import org.bukkit.Bukkit;
+import org.bukkit.Chunk;
+import org.bukkit.Location;
 import org.bukkit.Material;
 import org.bukkit.World;
+import org.bukkit.entity.Entity;
 import org.bukkit.entity.HumanEntity;
 import org.bukkit.entity.ItemFrame;
 import org.bukkit.entity.Player;
 import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
 import org.bukkit.event.Listener;
 import org.bukkit.event.entity.EntityPickupItemEvent;
 import org.bukkit.event.inventory.InventoryClickEvent;
 import org.bukkit.event.player.PlayerItemHeldEvent;
+import org.bukkit.event.player.PlayerJoinEvent;
 import org.bukkit.event.server.MapInitializeEvent;
+import org.bukkit.event.world.EntitiesLoadEvent;
 import org.bukkit.inventory.ItemStack;
 import org.bukkit.map.MapView;
+import org.bukkit.scheduler.BukkitTask;
 
+/**
+ * Installs the renderers of the maps as they show up: in item frames, in inventories...
+ * <p>
+ * The item frames are not initialized when they are loaded, but queued and initialized a
+ * few per tick. The frames near players go first.
+ */
 public class MapInitEvent implements Listener {
+
+    /**
+     * Distance, in blocks, under which a frame is close enough to a player to go first.
+     */
+    private static final int WARM_UP_DISTANCE = 64;
+
+    /**
+     * Radius, in chunks, of the area around a joining player whose frames go first.
+     */
+    private static final int WARM_UP_CHUNKS = 2;
+
+    private static final Deque<ItemFrame> nearbyFrames = new ArrayDeque<>();
+    private static final Deque<ItemFrame> frames = new ArrayDeque<>();
+    private static final Deque<Chunk> chunks = new ArrayDeque<>();
+
+    private static BukkitTask initTask = null;
+
     public static void init() {
         Bukkit.getPluginManager().registerEvents(new MapInitEvent(), ImageOnMap.get());
 
+        // Entities already loaded fired no event: scan their chunks, the closest to players first.
         for (World world : Bukkit.getWorlds()) {
-            for (ItemFrame frame : world.getEntitiesByClass(ItemFrame.class)) {
-                initMap(frame.getItem());
-            }
+            List<Player> players = world.getPlayers();
+            List<Chunk> loaded = new ArrayList<>(List.of(world.getLoadedChunks()));
+            loaded.sort(Comparator.comparingLong(chunk -> distanceToPlayers(chunk, players)));
+            chunks.addAll(loaded);
         }
 
         for (Player player : Bukkit.getOnlinePlayers()) {
             initMap(player.getInventory().getItemInMainHand());
         }
+
+        initTask = Bukkit.getScheduler().runTaskTimer(ImageOnMap.get(), MapInitEvent::initQueued, 1, 1);
+    }
+
+    public static void exit() {
+        if (initTask != null) {
+            initTask.cancel();
+            initTask = null;
+        }
+        nearbyFrames.clear();
+        frames.clear();
+        chunks.clear();
+    }
+
+    /**
+     * Initializes the queued frames and scans the queued chunks, within the budget of a tick.
+     */
+    private static void initQueued() {
+        int budget = Math.max(1, PluginConfiguration.MAP_INIT_BUDGET.get());
+
+        while (budget > 0) {
+            budget--;
+            if (!nearbyFrames.isEmpty()) {
+                initFrame(nearbyFrames.poll());
+            } else if (!chunks.isEmpty()) {
+                Chunk chunk = chunks.poll();
+                if (chunk.isLoaded()) {
+                    queueFrames(Arrays.asList(chunk.getEntities()), chunk.getWorld().getPlayers());
+                }
+            } else if (!frames.isEmpty()) {
+                initFrame(frames.poll());
+            } else {
+                return;
+            }
+        }
+    }
+
+    private static void initFrame(ItemFrame frame) {
+        // The frame may have been unloaded or broken while it was waiting.
+        if (frame.isValid()) {
+            initMap(frame.getItem());
+        }
+    }
+
+    private static void queueFrames(List<Entity> entities, List<Player> players) {
+        for (Entity entity : entities) {
+            if (entity instanceof ItemFrame frame) {
+                if (isNearPlayer(frame.getLocation(), players)) {
+                    nearbyFrames.add(frame);
+                } else {
+                    frames.add(frame);
+                }
+            }
+        }
+    }
+
+    private static boolean isNearPlayer(Location location, List<Player> players) {
+        for (Player player : players) {
+            if (player.getLocation().distanceSquared(location) < WARM_UP_DISTANCE * WARM_UP_DISTANCE) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the squared distance, in chunks, between the chunk and the closest player of its world.
+     */
+    private static long distanceToPlayers(Chunk chunk, List<Player> players) {
+        long distance = Long.MAX_VALUE;
+        for (Player player : players) {
+            long dx = (player.getLocation().getBlockX() >> 4) - chunk.getX();
+            long dz = (player.getLocation().getBlockZ() >> 4) - chunk.getZ();
+            distance = Math.min(distance, dx * dx + dz * dz);
+        }
+        return distance;
     }
 
     public static void initMap(ItemStack item) {
-        if (item != null && item.getType() == Material.FILLED_MAP) {
+        // Reading the map ID clones the item meta: only done for maps that have one.
+        if (item != null && item.getType() == Material.FILLED_MAP && item.hasItemMeta()) {
             initMap(MapManager.getMapIdFromItemStack(item));
         }
     }
 
     public static void initMap(int id) {
-        initMap(Bukkit.getServer().getMap(id));
+        if (needsRenderer(id)) {
+            installRenderer(Bukkit.getServer().getMap(id));
+        }
     }
 
     public static void initMap(MapView map) {
-        if (map == null) {
-            return;
+        if (map != null && needsRenderer(map.getId())) {
+            installRenderer(map);
         }
-        if (Renderer.isHandled(map)) {
-            return;
+    }
+
+    /**
+     * Checks, from memory only, whether a renderer must be installed on a map. The legacy
+     * files not migrated yet are looked for in the background, and the map initialized
+     * again if one is found.
+     */
+    private static boolean needsRenderer(int id) {
+        if (Renderer.isHandled(id)) {
+            return false;
+        }
+        if (ImageIOExecutor.hasImage(id)) {
+            return true;
         }
+        ImageIOExecutor.probeLegacyImage(id, MapInitEvent::initMap);
+        return false;
+    }
 
-        Path imageFile = ImageOnMap.get().getImageFile(map.getId());
-        if (Files.isRegularFile(imageFile)) {
-            ImageIOExecutor.loadImage(imageFile, Renderer.installRenderer(map));
+    private static void installRenderer(MapView map) {
+        if (map != null) {
+            ImageIOExecutor.loadImage(map.getId(), Renderer.installRenderer(map));
         }
     }
 
@@ -100,6 +230,25 @@ public class MapInitEvent implements Listener {
         initMap(event.getMap());
     }
 
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onEntitiesLoad(EntitiesLoadEvent event) {
+        queueFrames(event.getEntities(), event.getWorld().getPlayers());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onPlayerJoin(PlayerJoinEvent event) {
+        // The chunks around the player may have been loaded long ago, their frames still waiting.
+        Chunk center = event.getPlayer().getLocation().getChunk();
+        World world = center.getWorld();
+        for (int x = center.getX() - WARM_UP_CHUNKS; x <= center.getX() + WARM_UP_CHUNKS; x++) {
+            for (int z = center.getZ() - WARM_UP_CHUNKS; z <= center.getZ() + WARM_UP_CHUNKS; z++) {
+                if (world.isChunkLoaded(x, z)) {
+                    chunks.addFirst(world.getChunkAt(x, z));
+                }
+            }
+        }
+    }
+
     @EventHandler
     public void onPlayerInv(PlayerItemHeldEvent event) {
         ItemStack item = event.getPlayer().getInventory().getItem(event.getNewSlot());
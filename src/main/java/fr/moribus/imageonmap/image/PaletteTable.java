@@ -0,0 +1,359 @@
+/*
+ * Copyright or © or Copr. Moribus (2013)
+ * Copyright or © or Copr. ProkopyL <prokopylmc@gmail.com> (2015)
+ * Copyright or © or Copr. Amaury Carrade <amaury@carrade.eu> (2016 – 2021)
+ * Copyright or © or Copr. Vlammar <valentin.jabre@gmail.com> (2019 – 2021)
+ *
+ * This software is a computer program whose purpose is to allow insertion of
+ * custom images in a Minecraft world.
+ *
+ * This software is governed by the CeCILL license under French law and
+ * abiding by the rules of distribution of free software.  You can  use,
+ * modify and/ or redistribute the software under the terms of the CeCILL
+ * license as circulated by CEA, CNRS and INRIA at the following URL
+ * "http://www.cecill.info".
+ *
+ * As a counterpart to the access to the source code and  rights to copy,
+ * modify and redistribute granted by the license, users are provided only
+ * with a limited warranty  and the software's author,  the holder of the
+ * economic rights,  and the successive licensors  have only  limited
+ * liability.
+ *
+ * In this respect, the user's attention is drawn to the risks associated
+ * with loading,  using,  modifying and/or developing or reproducing the
+ * software by the user in light of its specific status of free software,
+ * that may mean  that it is complicated to manipulate,  and  that  also
+ * therefore means  that it is reserved for developers  and  experienced
+ * professionals having in-depth computer knowledge. Users are therefore
+ * encouraged to load and test the software's suitability as regards their
+ * requirements in conditions enabling the security of their systems and/or
+ * data to be ensured and,  more generally, to use and operate it in the
+ * same conditions as regards security.
+ *
+ * The fact that you are presently reading this means that you have had
+ * knowledge of the CeCILL license and that you accept its terms.
+ */
+
+package fr.moribus.imageonmap.image;
+
+import dev.tehbrian.imageonmap.ImageOnMap;
+import fr.moribus.imageonmap.PluginConfiguration;
+import java.awt.Color;
+import java.awt.image.BufferedImage;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.stream.IntStream;
+import java.util.zip.CRC32;
+import org.bukkit.map.MapPalette;
+
+/**
+ * A precomputed RGB → map palette lookup table.
+ * <p>
+ * Colors are truncated to {@link #BITS} bits per channel and the nearest palette
+ * entry of every resulting bucket is computed once, with the configured
+ * {@link ColorDistance}, so matching a pixel is a single array read. The table is
+ * shared by all render workers, and cached on disk along with a hash of the server
+ * palette and the distance it was built with: it is only rebuilt when one of them
+ * changes.
+ */
+public final class PaletteTable {
+
+    /**
+     * Number of bits kept per color channel.
+     */
+    public static final int BITS = 6;
+
+    /**
+     * Pixels with an alpha below this threshold are considered transparent.
+     */
+    public static final int ALPHA_THRESHOLD = 128;
+
+    /**
+     * The transparent palette index.
+     */
+    public static final byte TRANSPARENT = 0;
+
+    private static final int SHIFT = 8 - BITS;
+    private static final int MASK = (1 << BITS) - 1;
+    private static final int SIZE = 1 << (3 * BITS);
+
+    private static final int CACHE_MAGIC = 0x494f4d50; // "IOMP"
+    private static final int CACHE_VERSION = 2;
+
+    /**
+     * How the nearest palette entry to a color is found.
+     */
+    public enum ColorDistance {
+        /**
+         * The weighted RGB distance Bukkit uses for {@link MapPalette#matchColor(Color)},
+         * computed against every palette entry.
+         */
+        WEIGHTED_RGB,
+        /**
+         * The Euclidean distance in the CIELAB space, closer to the perceived difference,
+         * searched in a {@link LabPaletteTree}.
+         */
+        CIELAB,
+        ;
+
+        /**
+         * @param name The name of a distance, case-insensitive, with dashes or underscores
+         * @return The distance, or {@code null} if there is no such distance
+         */
+        public static ColorDistance fromName(String name) {
+            for (ColorDistance distance : values()) {
+                if (distance.name().equalsIgnoreCase(name.replace('-', '_'))) {
+                    return distance;
+                }
+            }
+            return null;
+        }
+    }
+
+    private final int[] palette;
+    private final ColorDistance distance;
+    private final byte[] table;
+
+    private PaletteTable(int[] palette, ColorDistance distance, byte[] table) {
+        this.palette = palette;
+        this.distance = distance;
+        this.table = table;
+    }
+
+    /**
+     * @return the table matching the server palette, loaded or built on first use.
+     */
+    public static PaletteTable get() {
+        return Holder.INSTANCE;
+    }
+
+    /**
+     * Builds the table for the given palette.
+     *
+     * @param palette  The RGB palette colors, indexed by palette index. Transparent entries must be negative.
+     * @param distance How the nearest palette entry to a color is found.
+     * @return The table.
+     */
+    static PaletteTable build(int[] palette, ColorDistance distance) {
+        byte[] table = new byte[SIZE];
+        int half = 1 << SHIFT >> 1;
+        LabPaletteTree tree = distance == ColorDistance.CIELAB ? new LabPaletteTree(palette) : null;
+
+        IntStream.range(0, 1 << BITS).parallel().forEach(r -> {
+            for (int g = 0; g < 1 << BITS; g++) {
+                for (int b = 0; b < 1 << BITS; b++) {
+                    int red = (r << SHIFT) | half;
+                    int green = (g << SHIFT) | half;
+                    int blue = (b << SHIFT) | half;
+                    table[(r << (2 * BITS)) | (g << BITS) | b] = tree != null
+                            ? tree.nearest(red << 16 | green << 8 | blue)
+                            : nearest(palette, red, green, blue);
+                }
+            }
+        });
+
+        return new PaletteTable(palette, distance, table);
+    }
+
+    /**
+     * Finds the palette entry nearest to the given color, with the same weighted
+     * distance Bukkit uses for {@link MapPalette#matchColor(Color)}.
+     */
+    private static byte nearest(int[] palette, int r, int g, int b) {
+        int index = 0;
+        double best = Double.MAX_VALUE;
+
+        for (int i = 0; i < palette.length; i++) {
+            int rgb = palette[i];
+            if (rgb < 0) {
+                continue;
+            }
+
+            double distance = distance(r, g, b, (rgb >> 16) & 0xFF, (rgb >> 8) & 0xFF, rgb & 0xFF);
+            if (distance < best) {
+                best = distance;
+                index = i;
+            }
+        }
+
+        return (byte) index;
+    }
+
+    private static double distance(int r1, int g1, int b1, int r2, int g2, int b2) {
+        double rmean = (r1 + r2) / 2.0;
+        double r = r1 - r2;
+        double g = g1 - g2;
+        double b = b1 - b2;
+        double weightR = 2 + rmean / 256.0;
+        double weightG = 4.0;
+        double weightB = 2 + (255 - rmean) / 256.0;
+        return weightR * r * r + weightG * g * g + weightB * b * b;
+    }
+
+    /**
+     * Matches a single ARGB color.
+     *
+     * @param argb The color.
+     * @return The palette index.
+     */
+    public byte match(int argb) {
+        if ((argb >>> 24) < ALPHA_THRESHOLD) {
+            return TRANSPARENT;
+        }
+        return table[((argb >> (16 + SHIFT)) & MASK) << (2 * BITS)
+                | ((argb >> (8 + SHIFT)) & MASK) << BITS
+                | ((argb >> SHIFT) & MASK)];
+    }
+
+    /**
+     * Matches a run of ARGB colors.
+     *
+     * @param argb      The source colors.
+     * @param srcOffset The first color to read.
+     * @param out       The palette indices.
+     * @param outOffset The first index to write.
+     * @param length    The number of colors to match.
+     */
+    public void match(int[] argb, int srcOffset, byte[] out, int outOffset, int length) {
+        for (int i = 0; i < length; i++) {
+            out[outOffset + i] = match(argb[srcOffset + i]);
+        }
+    }
+
+    /**
+     * Converts a whole image into palette indices, row by row.
+     *
+     * @param image The image.
+     * @return The palette indices, one byte per pixel.
+     */
+    public byte[] quantize(BufferedImage image) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int[] argb = image.getRGB(0, 0, width, height, null, 0, width);
+        byte[] pixels = new byte[width * height];
+        match(argb, 0, pixels, 0, pixels.length);
+        return pixels;
+    }
+
+    /**
+     * @param index A palette index.
+     * @return The RGB color of this entry, or a negative value if it is transparent.
+     */
+    public int getColor(byte index) {
+        return palette[index & 0xFF];
+    }
+
+    /**
+     * @return the number of entries in the palette.
+     */
+    public int getPaletteSize() {
+        return palette.length;
+    }
+
+    private static long hash(int[] palette) {
+        CRC32 crc = new CRC32();
+        for (int rgb : palette) {
+            crc.update(rgb >>> 24);
+            crc.update(rgb >>> 16);
+            crc.update(rgb >>> 8);
+            crc.update(rgb);
+        }
+        return crc.getValue();
+    }
+
+    /**
+     * Reads the table cached in the given file, if it was built for this palette.
+     *
+     * @return The table, or {@code null} if the file is missing or stale.
+     */
+    static PaletteTable load(Path file, int[] palette, ColorDistance distance) throws IOException {
+        if (!Files.isRegularFile(file)) {
+            return null;
+        }
+
+        try (InputStream in = Files.newInputStream(file); DataInputStream data = new DataInputStream(in)) {
+            if (data.readInt() != CACHE_MAGIC
+                    || data.readInt() != CACHE_VERSION
+                    || data.readInt() != BITS
+                    || data.readInt() != distance.ordinal()
+                    || data.readLong() != hash(palette)) {
+                return null;
+            }
+
+            byte[] table = new byte[SIZE];
+            data.readFully(table);
+            return new PaletteTable(palette, distance, table);
+        }
+    }
+
+    void save(Path file) throws IOException {
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (OutputStream out = Files.newOutputStream(temp); DataOutputStream data = new DataOutputStream(out)) {
+            data.writeInt(CACHE_MAGIC);
+            data.writeInt(CACHE_VERSION);
+            data.writeInt(BITS);
+            data.writeInt(distance.ordinal());
+            data.writeLong(hash(palette));
+            data.write(table);
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Reads the palette of the running server.
+     *
+     * @return The RGB colors, indexed by palette index. Transparent entries are negative.
+     */
+    @SuppressWarnings("deprecation")
+    static int[] serverPalette() {
+        List<Integer> colors = new ArrayList<>(256);
+        for (int i = 0; i < 256; i++) {
+            Color color;
+            try {
+                color = MapPalette.getColor((byte) i);
+            } catch (IndexOutOfBoundsException ex) {
+                break;
+            }
+            colors.add(color.getAlpha() < ALPHA_THRESHOLD ? -1 : color.getRGB() & 0xFFFFFF);
+        }
+        return colors.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    private static PaletteTable loadOrBuild() {
+        int[] palette = serverPalette();
+        ColorDistance distance = PluginConfiguration.COLOR_DISTANCE.get();
+        Path file = ImageOnMap.get().getPaletteCacheFile();
+
+        try {
+            PaletteTable cached = load(file, palette, distance);
+            if (cached != null) {
+                return cached;
+            }
+        } catch (IOException ex) {
+            ImageOnMap.get().getLogger().log(Level.WARNING, "Could not read the palette cache, rebuilding it", ex);
+        }
+
+        ImageOnMap.get().getLogger().info("Building the map palette lookup table...");
+        PaletteTable table = build(palette, distance);
+
+        try {
+            table.save(file);
+        } catch (IOException ex) {
+            ImageOnMap.get().getLogger().log(Level.WARNING, "Could not save the palette cache", ex);
+        }
+        return table;
+    }
+
+    private static final class Holder {
+        private static final PaletteTable INSTANCE = loadOrBuild();
+    }
+}
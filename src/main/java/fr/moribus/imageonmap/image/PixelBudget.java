@@ -0,0 +1,176 @@
+/*
+ * Copyright or © or Copr. Moribus (2013)
+ * Copyright or © or Copr. ProkopyL <prokopylmc@gmail.com> (2015)
+ * Copyright or © or Copr. Amaury Carrade <amaury@carrade.eu> (2016 – 2021)
+ * Copyright or © or Copr. Vlammar <valentin.jabre@gmail.com> (2019 – 2021)
+ *
+ * This software is a computer program whose purpose is to allow insertion of
+ * custom images in a Minecraft world.
+ *
+ * This software is governed by the CeCILL license under French law and
+ * abiding by the rules of distribution of free software.  You can  use,
+ * modify and/ or redistribute the software under the terms of the CeCILL
+ * license as circulated by CEA, CNRS and INRIA at the following URL
+ * "http://www.cecill.info".
+ *
+ * As a counterpart to the access to the source code and  rights to copy,
+ * modify and redistribute granted by the license, users are provided only
+ * with a limited warranty  and the software's author,  the holder of the
+ * economic rights,  and the successive licensors  have only  limited
+ * liability.
+ *
+ * In this respect, the user's attention is drawn to the risks associated
+ * with loading,  using,  modifying and/or developing or reproducing the
+ * software by the user in light of its specific status of free software,
+ * that may mean  that it is complicated to manipulate,  and  that  also
+ * therefore means  that it is reserved for developers  and  experienced
+ * professionals having in-depth computer knowledge. Users are therefore
+ * encouraged to load and test the software's suitability as regards their
+ * requirements in conditions enabling the security of their systems and/or
+ * data to be ensured and,  more generally, to use and operate it in the
+ * same conditions as regards security.
+ *
+ * The fact that you are presently reading this means that you have had
+ * knowledge of the CeCILL license and that you accept its terms.
+ */
+
+package fr.moribus.imageonmap.image;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Limits the number of pixels held in memory by all the renders at once.
+ * <p>
+ * A render reserves the pixels of its decoded and resized images before decoding
+ * anything. If they are not available, it waits, without holding a thread, for the
+ * renders ahead of it to release theirs. Reservations are served in order, so a large
+ * image is not delayed forever by smaller ones.
+ */
+final class PixelBudget {
+    private final long capacity;
+    private long available;
+    private final ArrayDeque<Reservation> waiting = new ArrayDeque<>();
+
+    private record Reservation(long pixels, CompletableFuture<Void> future) {
+    }
+
+    /**
+     * @param capacity The number of pixels that can be reserved at once.
+     */
+    PixelBudget(long capacity) {
+        this.capacity = capacity;
+        this.available = capacity;
+    }
+
+    long getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return A new holder of pixels reserved for images that several renders may use, held
+     * by a first render.
+     */
+    Shared share() {
+        return new Shared();
+    }
+
+    /**
+     * Pixels reserved once for images that several renders use. They are released when the
+     * last of these renders lets them go, not when the one that reserved them is over.
+     */
+    final class Shared {
+        private long pixels;
+        private int holders = 1;
+
+        private Shared() {
+        }
+
+        /**
+         * Records the pixels reserved for the images, to release with the last holder.
+         *
+         * @param pixels The number of pixels, already {@linkplain #acquire(long) acquired}.
+         */
+        synchronized void reserved(long pixels) {
+            this.pixels = pixels;
+        }
+
+        /**
+         * Adds a holder.
+         *
+         * @return {@code false} if the last holder already let the pixels go: the images
+         * must not be used anymore.
+         */
+        synchronized boolean retain() {
+            if (holders == 0) {
+                return false;
+            }
+            holders++;
+            return true;
+        }
+
+        /**
+         * Removes a holder, and releases the pixels if it was the last one.
+         */
+        void release() {
+            long released;
+            synchronized (this) {
+                if (--holders > 0) {
+                    return;
+                }
+                released = pixels;
+                pixels = 0;
+            }
+            if (released > 0) {
+                PixelBudget.this.release(released);
+            }
+        }
+    }
+
+    /**
+     * Reserves pixels.
+     *
+     * @param pixels The number of pixels, at most {@link #getCapacity()}.
+     * @return A future completed once the pixels are reserved. They must be {@linkplain #release(long) released}
+     * once the images are not used anymore.
+     */
+    CompletableFuture<Void> acquire(long pixels) {
+        if (pixels > capacity) {
+            throw new IllegalArgumentException("Cannot reserve " + pixels + " pixels out of " + capacity);
+        }
+
+        synchronized (this) {
+            if (waiting.isEmpty() && available >= pixels) {
+                available -= pixels;
+                return CompletableFuture.completedFuture(null);
+            }
+
+            Reservation reservation = new Reservation(pixels, new CompletableFuture<>());
+            waiting.add(reservation);
+            return reservation.future();
+        }
+    }
+
+    /**
+     * Releases reserved pixels, and grants them to the waiting reservations.
+     *
+     * @param pixels The number of pixels.
+     */
+    void release(long pixels) {
+        List<Reservation> granted = new ArrayList<>();
+        synchronized (this) {
+            available += pixels;
+            while (!waiting.isEmpty() && waiting.peek().pixels() <= available) {
+                Reservation reservation = waiting.poll();
+                available -= reservation.pixels();
+                granted.add(reservation);
+            }
+        }
+
+        for (Reservation reservation : granted) {
+            reservation.future().complete(null);
+        }
+    }
+}
@@ -36,7 +36,14 @@
 
 package fr.moribus.imageonmap.image;
 
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.util.Arrays;
+import java.util.stream.IntStream;
 
 /**
  * This class represents an image split into pieces
@@ -46,9 +53,26 @@ public class PosterImage {
     private static final int WIDTH = 128;
     private static final int HEIGHT = 128;
 
+    /**
+     * Posters with at least this many tiles are split in parallel.
+     */
+    private static final int PARALLEL_THRESHOLD = 4;
+
     private final BufferedImage originalImage;
+    /**
+     * How the original image is resized to the poster size, or {@code null} if it is split as is.
+     */
+    private final ImageUtils.ScalingType scaling;
+    private final ImageUtils.ResamplingFilter filter;
+    private final ImageUtils.DitherMode dither;
+    private final int posterWidth;
+    private final int posterHeight;
 
-    private BufferedImage[] cutImages;
+    private byte[][] cutImages;
+    /**
+     * The poster drawn at its size, before it is matched to the map palette, if it was kept.
+     */
+    private BufferedImage renderedImage;
     private int lines;
     private int columns;
     private int cutImagesCount;
@@ -61,19 +85,40 @@ public class PosterImage {
      * @param originalImage the original image
      */
     public PosterImage(BufferedImage originalImage) {
+        this(originalImage, null, null, ImageUtils.DitherMode.NONE, originalImage.getWidth(),
+                originalImage.getHeight());
+    }
+
+    /**
+     * Creates a new Poster from an image resized to the given size.
+     * <p>
+     * The resized image is never created as a whole: it is drawn one line of tiles at a
+     * time while the image is split.
+     *
+     * @param originalImage the original image
+     * @param scaling       how the image is resized
+     * @param filter        how the image is resampled when it is resized
+     * @param dither        how the image is dithered when it is matched to the map palette
+     * @param width         the width of the poster, in pixels
+     * @param height        the height of the poster, in pixels
+     */
+    public PosterImage(BufferedImage originalImage, ImageUtils.ScalingType scaling,
+                       ImageUtils.ResamplingFilter filter, ImageUtils.DitherMode dither, int width, int height) {
         this.originalImage = originalImage;
+        this.scaling = scaling == ImageUtils.ScalingType.NONE ? null : scaling;
+        this.filter = filter;
+        this.dither = dither;
+        this.posterWidth = this.scaling == null ? originalImage.getWidth() : width;
+        this.posterHeight = this.scaling == null ? originalImage.getHeight() : height;
         calculateDimensions();
     }
 
     private void calculateDimensions() {
-        int originalWidth = originalImage.getWidth();
-        int originalHeight = originalImage.getHeight();
-
-        columns = (int) Math.ceil((double) originalWidth / WIDTH);
-        lines = (int) Math.ceil((double) originalHeight / HEIGHT);
+        columns = (int) Math.ceil((double) posterWidth / WIDTH);
+        lines = (int) Math.ceil((double) posterHeight / HEIGHT);
 
-        remainderX = originalWidth % WIDTH;
-        remainderY = originalHeight % HEIGHT;
+        remainderX = posterWidth % WIDTH;
+        remainderY = posterHeight % HEIGHT;
 
         if (remainderX > 0) {
             columns++;
@@ -86,55 +131,225 @@ public class PosterImage {
         cutImagesCount = columns * lines;
     }
 
+    /**
+     * Splits the image into map-sized tiles, converted to map palette indices.
+     * <p>
+     * The tiles are read straight from the image pixels, in parallel for large
+     * posters. Resized and dithered posters are drawn and split one line of tiles at a
+     * time, so only a line of tiles is held in memory next to the original image. This
+     * performs all the color matching, so it must be called off the server thread.
+     */
     public void splitImages() {
+        splitImages(false);
+    }
+
+    /**
+     * Splits the image into map-sized tiles, converted to map palette indices.
+     *
+     * @param keepRendered {@code true} to also keep the whole resized poster, for
+     *                     {@link #getRenderedImage()}; it is then held in memory as a whole.
+     * @see #splitImages()
+     */
+    public void splitImages(boolean keepRendered) {
+        cutImages = new byte[cutImagesCount][];
+        renderedImage = null;
+
+        final int offsetX = remainderX == 0 ? 0 : (remainderX - WIDTH) / 2;
+        final int offsetY = remainderY == 0 ? 0 : (remainderY - HEIGHT) / 2;
+
+        if (scaling == null && dither == ImageUtils.DitherMode.NONE) {
+            final int[] pixels = getPixelArray(originalImage);
+            parallelTiles(0, cutImagesCount).forEach(i -> {
+                int x = offsetX + (i % columns) * WIDTH;
+                int y = offsetY + (i / columns) * HEIGHT;
+                cutImages[i] = pixels != null
+                        ? makeSubImage(pixels, posterWidth, posterHeight, x, y)
+                        : makeSubImage(x, y);
+            });
+            return;
+        }
+
+        final Rectangle placement = scaling == null ? new Rectangle(0, 0, posterWidth, posterHeight)
+                : scaling.getPlacement(originalImage.getWidth(), originalImage.getHeight(), posterWidth, posterHeight);
+        final int bandWidth = columns * WIDTH;
+        final BufferedImage band = new BufferedImage(bandWidth, HEIGHT, BufferedImage.TYPE_INT_ARGB);
+        final int[] pixels = ((DataBufferInt) band.getRaster().getDataBuffer()).getData();
+        final Rectangle poster = new Rectangle(0, 0, posterWidth, posterHeight);
+        final Resampler resampler = scaling == null || filter == null || filter == ImageUtils.ResamplingFilter.NEAREST
+                ? null : new Resampler(filter, originalImage, placement);
+        final Ditherer ditherer = dither == ImageUtils.DitherMode.NONE ? null : new Ditherer(dither, bandWidth);
+        final byte[] indices = ditherer == null ? null : new byte[bandWidth * HEIGHT];
+        final BufferedImage rendered = keepRendered && scaling != null
+                ? new BufferedImage(posterWidth, posterHeight, BufferedImage.TYPE_INT_ARGB) : null;
+
         try {
-            cutImages = new BufferedImage[cutImagesCount];
-
-            int imageX;
-            int imageY = remainderY == 0 ? 0 : (remainderY - HEIGHT) / 2;
-            for (int i = 0; i < lines; i++) {
-                imageX = remainderX == 0 ? 0 : (remainderX - WIDTH) / 2;
-                for (int j = 0; j < columns; j++) {
-                    cutImages[i * columns + j] = makeSubImage(originalImage, imageX, imageY);
-                    imageX += WIDTH;
+            for (int line = 0; line < lines; line++) {
+                // Band coordinates: the top-left corner of the first tile of this line is (0, 0).
+                final int bandX = -offsetX;
+                final int bandY = -(offsetY + line * HEIGHT);
+                Arrays.fill(pixels, 0);
+
+                if (scaling == null) {
+                    Rectangle visible = poster.intersection(new Rectangle(-bandX, -bandY, bandWidth, HEIGHT));
+                    if (!visible.isEmpty()) {
+                        originalImage.getRGB(visible.x, visible.y, visible.width, visible.height,
+                                pixels, (visible.y + bandY) * bandWidth + visible.x + bandX, bandWidth);
+                    }
+                } else if (resampler != null) {
+                    resampler.draw(pixels, bandWidth, -bandX, -bandY,
+                            poster.intersection(new Rectangle(-bandX, -bandY, bandWidth, HEIGHT)));
+                } else {
+                    Graphics2D graphics = band.createGraphics();
+                    try {
+                        graphics.clipRect(bandX, bandY, posterWidth, posterHeight);
+                        graphics.drawImage(originalImage, bandX + placement.x, bandY + placement.y,
+                                placement.width, placement.height, null);
+                    } finally {
+                        graphics.dispose();
+                    }
                 }
-                imageY += HEIGHT;
-            }
-        } catch (final Throwable e) {
-            if (cutImages != null) {
-                for (BufferedImage bi : cutImages) {
-                    if (bi != null) {
-                        bi.flush();//Safe to free
+
+                if (rendered != null) {
+                    Rectangle visible = poster.intersection(new Rectangle(-bandX, -bandY, bandWidth, HEIGHT));
+                    if (!visible.isEmpty()) {
+                        rendered.setRGB(visible.x, visible.y, visible.width, visible.height,
+                                pixels, (visible.y + bandY) * bandWidth + visible.x + bandX, bandWidth);
                     }
                 }
+
+                final int first = line * columns;
+                if (ditherer != null) {
+                    ditherer.dither(pixels, HEIGHT, indices);
+                    parallelTiles(first, first + columns).forEach(i ->
+                            cutImages[i] = copyTile(indices, bandWidth, (i - first) * WIDTH));
+                } else {
+                    parallelTiles(first, first + columns).forEach(i ->
+                            cutImages[i] = makeSubImage(pixels, bandWidth, HEIGHT, (i - first) * WIDTH, 0));
+                }
             }
-            throw e;
+            renderedImage = rendered;
+        } finally {
+            band.flush();
+        }
+    }
+
+    private IntStream parallelTiles(int from, int to) {
+        IntStream tiles = IntStream.range(from, to);
+        return to - from >= PARALLEL_THRESHOLD ? tiles.parallel() : tiles;
+    }
+
+    /**
+     * @return the pixels of the image, if they are stored as plain non-premultiplied ARGB
+     * values, one int per pixel, row after row; {@code null} otherwise.
+     */
+    private static int[] getPixelArray(BufferedImage image) {
+        WritableRaster raster = image.getRaster();
+        if (image.getType() != BufferedImage.TYPE_INT_ARGB
+                || !(raster.getDataBuffer() instanceof DataBufferInt)
+                || raster.getDataBuffer().getOffset() != 0
+                || raster.getSampleModelTranslateX() != 0
+                || raster.getSampleModelTranslateY() != 0
+                || !(raster.getSampleModel() instanceof SinglePixelPackedSampleModel sampleModel)
+                || sampleModel.getScanlineStride() != image.getWidth()) {
+            return null;
+        }
+        return ((DataBufferInt) raster.getDataBuffer()).getData();
+    }
+
+    /**
+     * Converts the part of an image that intersects with the given map rectangle, reading
+     * the image pixels directly. Parts of the map outside the image are transparent.
+     *
+     * @param pixels      The image pixels, as returned by {@link #getPixelArray(BufferedImage)}.
+     * @param imageWidth  The width of the image.
+     * @param imageHeight The height of the image.
+     * @param x           X coordinate of top-left point of the map.
+     * @param y           Y coordinate of top-left point of the map.
+     * @return the palette indices of the requested subimage.
+     */
+    private static byte[] makeSubImage(int[] pixels, int imageWidth, int imageHeight, int x, int y) {
+        PaletteTable palette = PaletteTable.get();
+        byte[] tile = new byte[WIDTH * HEIGHT];
+
+        int fromX = Math.max(x, 0);
+        int toX = Math.min(x + WIDTH, imageWidth);
+        int fromY = Math.max(y, 0);
+        int toY = Math.min(y + HEIGHT, imageHeight);
+        if (fromX >= toX) {
+            return tile;
+        }
+
+        for (int row = fromY; row < toY; row++) {
+            palette.match(pixels, row * imageWidth + fromX, tile, (row - y) * WIDTH + fromX - x, toX - fromX);
+        }
+        return tile;
+    }
+
+    /**
+     * Copies a tile out of a line of tiles already matched to the map palette.
+     *
+     * @param indices   The palette indices of the line of tiles.
+     * @param bandWidth The width of the line of tiles.
+     * @param x         X coordinate of top-left point of the map in the line.
+     * @return the palette indices of the tile.
+     */
+    private static byte[] copyTile(byte[] indices, int bandWidth, int x) {
+        byte[] tile = new byte[WIDTH * HEIGHT];
+        for (int row = 0; row < HEIGHT; row++) {
+            System.arraycopy(indices, row * bandWidth + x, tile, row * WIDTH, WIDTH);
         }
+        return tile;
     }
 
     /**
-     * Generates the subimage that intersects with the given map rectangle.
+     * Converts the part of the image that intersects with the given map rectangle, for
+     * images whose pixels are not stored as plain ARGB values.
      *
      * @param x X coordinate of top-left point of the map.
      * @param y Y coordinate of top-left point of the map.
-     * @return the requested subimage.
+     * @return the palette indices of the requested subimage.
      */
-    private BufferedImage makeSubImage(BufferedImage originalImage, int x, int y) {
-        BufferedImage newImage = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_ARGB);
+    private byte[] makeSubImage(int x, int y) {
+        int[] argb = new int[WIDTH * HEIGHT];
 
-        newImage.getGraphics().drawImage(originalImage, -x, -y, null);
+        int fromX = Math.max(x, 0);
+        int toX = Math.min(x + WIDTH, originalImage.getWidth());
+        int fromY = Math.max(y, 0);
+        int toY = Math.min(y + HEIGHT, originalImage.getHeight());
+        if (fromX < toX && fromY < toY) {
+            originalImage.getRGB(fromX, fromY, toX - fromX, toY - fromY,
+                    argb, (fromY - y) * WIDTH + fromX - x, WIDTH);
+        }
 
-        return newImage;
+        byte[] tile = new byte[WIDTH * HEIGHT];
+        PaletteTable.get().match(argb, 0, tile, 0, tile.length);
+        return tile;
     }
 
-    public BufferedImage getImageAt(int i) {
+    /**
+     * @param i the index of the tile
+     * @return the palette indices of the tile, one byte per pixel
+     */
+    public byte[] getPixelsAt(int i) {
         return cutImages[i];
     }
 
+    /**
+     * @return the original image, before it is resized
+     */
     public BufferedImage getImage() {
         return originalImage;
     }
 
+    /**
+     * @return the poster at its size, before it is matched to the map palette: the original
+     * image if it is not resized, else the image kept by {@link #splitImages(boolean)}, or
+     * {@code null} if it was not kept
+     */
+    public BufferedImage getRenderedImage() {
+        return scaling == null ? originalImage : renderedImage;
+    }
+
     /**
      * @return the number of lines of the poster
      */
@@ -0,0 +1,155 @@
+/*
+ * Copyright or © or Copr. Moribus (2013)
+ * Copyright or © or Copr. ProkopyL <prokopylmc@gmail.com> (2015)
+ * Copyright or © or Copr. Amaury Carrade <amaury@carrade.eu> (2016 – 2021)
+ * Copyright or © or Copr. Vlammar <valentin.jabre@gmail.com> (2019 – 2021)
+ *
+ * This software is a computer program whose purpose is to allow insertion of
+ * custom images in a Minecraft world.
+ *
+ * This software is governed by the CeCILL license under French law and
+ * abiding by the rules of distribution of free software.  You can  use,
+ * modify and/ or redistribute the software under the terms of the CeCILL
+ * license as circulated by CEA, CNRS and INRIA at the following URL
+ * "http://www.cecill.info".
+ *
+ * As a counterpart to the access to the source code and  rights to copy,
+ * modify and redistribute granted by the license, users are provided only
+ * with a limited warranty  and the software's author,  the holder of the
+ * economic rights,  and the successive licensors  have only  limited
+ * liability.
+ *
+ * In this respect, the user's attention is drawn to the risks associated
+ * with loading,  using,  modifying and/or developing or reproducing the
+ * software by the user in light of its specific status of free software,
+ * that may mean  that it is complicated to manipulate,  and  that  also
+ * therefore means  that it is reserved for developers  and  experienced
+ * professionals having in-depth computer knowledge. Users are therefore
+ * encouraged to load and test the software's suitability as regards their
+ * requirements in conditions enabling the security of their systems and/or
+ * data to be ensured and,  more generally, to use and operate it in the
+ * same conditions as regards security.
+ *
+ * The fact that you are presently reading this means that you have had
+ * knowledge of the CeCILL license and that you accept its terms.
+ */
+
+package fr.moribus.imageonmap.image;
+
+import fr.moribus.imageonmap.map.ImageMap;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.net.URL;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A render in progress, carried from one stage of the render pipeline to the next.
+ * <p>
+ * Every stage runs on a single thread at a time, and the executors the stages are
+ * handed to publish the fields they set to the next one.
+ */
+public final class RenderJob {
+
+    /**
+     * The stages of a render, in the order they run.
+     */
+    public enum Stage {
+        QUEUED,
+        /**
+         * Waiting for another render of the same image to compute the tiles.
+         */
+        JOINED,
+        FETCH, ADMIT, DECODE, SPLIT, ALLOCATE, PERSIST, INSTALL, DONE
+    }
+
+    final URL url;
+    final ImageUtils.ScalingType scaling;
+    final ImageUtils.ResamplingFilter filter;
+    final ImageUtils.DitherMode dither;
+    final UUID playerUUID;
+    final int width;
+    final int height;
+    /**
+     * {@code true} if this job renders an image on an existing map.
+     */
+    final boolean update;
+    /**
+     * {@code true} if this job runs before the ones of the other players.
+     */
+    final boolean priority;
+
+    private volatile Stage stage = Stage.QUEUED;
+
+    /**
+     * The map to update, or the new map once it is created.
+     */
+    ImageMap map;
+    byte[] data;
+    /**
+     * The size of the source image, read from its header.
+     */
+    int sourceWidth;
+    int sourceHeight;
+    /**
+     * The size of the poster the source image is resized to.
+     */
+    int targetWidth;
+    int targetHeight;
+    /**
+     * The part of the source image to decode, and one pixel out of how many to keep in
+     * each direction.
+     */
+    Rectangle sourceRegion;
+    int subsamplingX = 1;
+    int subsamplingY = 1;
+    /**
+     * The pixels reserved in the render budget for the images of the job, shared with the
+     * renders joining it; let go when the job is over.
+     */
+    PixelBudget.Shared pixels;
+    BufferedImage image;
+    PosterImage poster;
+    int[] mapsIDs;
+    /**
+     * Completed once the tiles and the image are written to disk.
+     */
+    CompletableFuture<Void> written;
+
+    RenderJob(URL url, ImageUtils.ScalingType scaling, ImageUtils.ResamplingFilter filter,
+            ImageUtils.DitherMode dither, UUID playerUUID, int width, int height, ImageMap map, boolean priority) {
+        this.url = url;
+        this.scaling = scaling;
+        this.filter = filter;
+        this.dither = dither;
+        this.playerUUID = playerUUID;
+        this.width = width;
+        this.height = height;
+        this.map = map;
+        this.update = map != null;
+        this.priority = priority;
+    }
+
+    public URL getURL() {
+        return url;
+    }
+
+    /**
+     * @return the UUID of the player the image is rendered for.
+     */
+    public UUID getPlayerUUID() {
+        return playerUUID;
+    }
+
+    public boolean isUpdate() {
+        return update;
+    }
+
+    public Stage getStage() {
+        return stage;
+    }
+
+    void setStage(Stage stage) {
+        this.stage = stage;
+    }
+}
@@ -0,0 +1,211 @@
+/*
+ * Copyright or © or Copr. Moribus (2013)
+ * Copyright or © or Copr. ProkopyL <prokopylmc@gmail.com> (2015)
+ * Copyright or © or Copr. Amaury Carrade <amaury@carrade.eu> (2016 – 2021)
+ * Copyright or © or Copr. Vlammar <valentin.jabre@gmail.com> (2019 – 2021)
+ *
+ * This software is a computer program whose purpose is to allow insertion of
+ * custom images in a Minecraft world.
+ *
+ * This software is governed by the CeCILL license under French law and
+ * abiding by the rules of distribution of free software.  You can  use,
+ * modify and/ or redistribute the software under the terms of the CeCILL
+ * license as circulated by CEA, CNRS and INRIA at the following URL
+ * "http://www.cecill.info".
+ *
+ * As a counterpart to the access to the source code and  rights to copy,
+ * modify and redistribute granted by the license, users are provided only
+ * with a limited warranty  and the software's author,  the holder of the
+ * economic rights,  and the successive licensors  have only  limited
+ * liability.
+ *
+ * In this respect, the user's attention is drawn to the risks associated
+ * with loading,  using,  modifying and/or developing or reproducing the
+ * software by the user in light of its specific status of free software,
+ * that may mean  that it is complicated to manipulate,  and  that  also
+ * therefore means  that it is reserved for developers  and  experienced
+ * professionals having in-depth computer knowledge. Users are therefore
+ * encouraged to load and test the software's suitability as regards their
+ * requirements in conditions enabling the security of their systems and/or
+ * data to be ensured and,  more generally, to use and operate it in the
+ * same conditions as regards security.
+ *
+ * The fact that you are presently reading this means that you have had
+ * knowledge of the CeCILL license and that you accept its terms.
+ */
+
+package fr.moribus.imageonmap.image;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.IntSupplier;
+
+/**
+ * Decides which render runs next.
+ * <p>
+ * Priority jobs (administrators' renders and map updates) run first. The others wait in
+ * one queue per player, and the players are served in turn, so a player submitting many
+ * renders does not delay everyone else. A player also cannot have more than a configured
+ * number of renders running at once.
+ */
+final class RenderScheduler {
+    private final int maxRunning;
+    private final IntSupplier maxRunningPerPlayer;
+
+    private final ArrayDeque<Entry> priorityQueue = new ArrayDeque<>();
+    /**
+     * The queues of the players with waiting jobs, in the order they will be served.
+     */
+    private final LinkedHashMap<UUID, ArrayDeque<Entry>> playerQueues = new LinkedHashMap<>();
+    private final Map<UUID, Integer> runningPerPlayer = new HashMap<>();
+    private final List<RenderJob> running = new ArrayList<>();
+    /**
+     * The jobs waiting for the tiles of another render, before they are submitted.
+     */
+    private final List<RenderJob> joined = new ArrayList<>();
+
+    private record Entry(RenderJob job, CompletableFuture<RenderJob> start) {
+    }
+
+    /**
+     * @param maxRunning          The maximal number of jobs running at once.
+     * @param maxRunningPerPlayer The maximal number of jobs of a single player running at once.
+     */
+    RenderScheduler(int maxRunning, IntSupplier maxRunningPerPlayer) {
+        this.maxRunning = maxRunning;
+        this.maxRunningPerPlayer = maxRunningPerPlayer;
+    }
+
+    /**
+     * Lists a job waiting for the tiles of another render. It holds no slot until it is
+     * {@link #submit(RenderJob) submitted}.
+     *
+     * @param job The job.
+     */
+    synchronized void join(RenderJob job) {
+        joined.add(job);
+    }
+
+    /**
+     * Queues a job.
+     *
+     * @param job The job.
+     * @return A future completed when the job may start. {@link #finished(RenderJob)} must be
+     * called once it is over.
+     */
+    CompletableFuture<RenderJob> submit(RenderJob job) {
+        Entry entry = new Entry(job, new CompletableFuture<>());
+        List<Entry> started;
+        synchronized (this) {
+            joined.remove(job);
+            if (job.priority) {
+                priorityQueue.add(entry);
+            } else {
+                playerQueues.computeIfAbsent(job.playerUUID, uuid -> new ArrayDeque<>()).add(entry);
+            }
+            started = dispatch();
+        }
+        start(started);
+        return entry.start();
+    }
+
+    /**
+     * Releases the slot of a job, and starts the next ones.
+     *
+     * @param job The finished job, successful or not.
+     */
+    void finished(RenderJob job) {
+        List<Entry> started;
+        synchronized (this) {
+            if (!running.remove(job)) {
+                // Failed before it was submitted.
+                joined.remove(job);
+                return;
+            }
+            runningPerPlayer.computeIfPresent(job.playerUUID, (uuid, count) -> count > 1 ? count - 1 : null);
+            started = dispatch();
+        }
+        start(started);
+    }
+
+    private List<Entry> dispatch() {
+        List<Entry> started = new ArrayList<>();
+
+        while (running.size() < maxRunning && !priorityQueue.isEmpty()) {
+            started.add(markRunning(priorityQueue.poll()));
+        }
+
+        int perPlayer = Math.max(1, maxRunningPerPlayer.getAsInt());
+        boolean progress = true;
+        while (running.size() < maxRunning && progress) {
+            progress = false;
+
+            // One job per player and per round.
+            for (UUID uuid : new ArrayList<>(playerQueues.keySet())) {
+                if (running.size() >= maxRunning) {
+                    break;
+                }
+                if (runningPerPlayer.getOrDefault(uuid, 0) >= perPlayer) {
+                    continue;
+                }
+
+                ArrayDeque<Entry> queue = playerQueues.remove(uuid);
+                started.add(markRunning(queue.poll()));
+                if (!queue.isEmpty()) {
+                    // Back to the end of the line.
+                    playerQueues.put(uuid, queue);
+                }
+                progress = true;
+            }
+        }
+
+        return started;
+    }
+
+    /**
+     * @return the running jobs, the ones waiting for the tiles of another render, then the
+     * waiting ones in the order they should start.
+     */
+    synchronized List<RenderJob> getJobs() {
+        List<RenderJob> jobs = new ArrayList<>(running);
+        jobs.addAll(joined);
+        for (Entry entry : priorityQueue) {
+            jobs.add(entry.job());
+        }
+
+        List<Iterator<Entry>> queues = new ArrayList<>();
+        for (ArrayDeque<Entry> queue : playerQueues.values()) {
+            queues.add(queue.iterator());
+        }
+        while (!queues.isEmpty()) {
+            Iterator<Iterator<Entry>> round = queues.iterator();
+            while (round.hasNext()) {
+                Iterator<Entry> queue = round.next();
+                jobs.add(queue.next().job());
+                if (!queue.hasNext()) {
+                    round.remove();
+                }
+            }
+        }
+        return jobs;
+    }
+
+    private Entry markRunning(Entry entry) {
+        running.add(entry.job());
+        runningPerPlayer.merge(entry.job().playerUUID, 1, Integer::sum);
+        return entry;
+    }
+
+    private static void start(List<Entry> started) {
+        for (Entry entry : started) {
+            entry.start().complete(entry.job());
+        }
+    }
+}
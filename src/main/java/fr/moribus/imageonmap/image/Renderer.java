@@ -37,6 +37,7 @@
 package fr.moribus.imageonmap.image;
 
 import dev.tehbrian.imageonmap.ImageOnMap;
+import fr.moribus.imageonmap.map.ImageMap;
 import java.awt.image.BufferedImage;
 import org.bukkit.Bukkit;
 import org.bukkit.entity.Player;
@@ -47,34 +48,41 @@ import org.jetbrains.annotations.NotNull;
 
 public class Renderer extends MapRenderer {
     private BufferedImage image = null;
+    private volatile byte[] pixels = null;
+
+    /**
+     * The maps with a renderer of this plugin, so checking them does not walk the renderers
+     * of the map.
+     */
+    private static final MapIDSet installed = new MapIDSet();
 
     private Renderer() {
     }
 
     public static boolean isHandled(MapView map) {
-        if (map == null) {
-            return false;
-        }
-        for (MapRenderer renderer : map.getRenderers()) {
-            if (renderer instanceof Renderer) {
-                return true;
-            }
-        }
-        return false;
+        return map != null && isHandled(map.getId());
+    }
+
+    /**
+     * @param mapID The Minecraft map ID.
+     * @return {@code true} if a renderer of this plugin is installed on this map.
+     */
+    public static boolean isHandled(int mapID) {
+        return installed.contains(mapID);
     }
 
     public static void installRenderer(PosterImage image, int[] mapsIds) {
         for (int i = 0; i < mapsIds.length; i++) {
-            installRenderer(image.getImageAt(i), mapsIds[i]);
+            installRenderer(image.getPixelsAt(i), mapsIds[i]);
         }
     }
 
-    public static void installRenderer(BufferedImage image, int mapID) {
+    public static void installRenderer(byte[] pixels, int mapID) {
         MapView map = Bukkit.getMap(mapID);
         if (map == null) {
             ImageOnMap.get().getLogger().warning("Could not install renderer for map " + mapID + ": the Minecraft map does not exist");
         } else {
-            installRenderer(map).setImage(image);
+            installRenderer(map).setPixels(pixels);
         }
     }
 
@@ -82,6 +90,7 @@ public class Renderer extends MapRenderer {
         Renderer renderer = new Renderer();
         removeRenderers(map);
         map.addRenderer(renderer);
+        installed.add(map.getId());
         return renderer;
     }
 
@@ -89,19 +98,41 @@ public class Renderer extends MapRenderer {
         for (MapRenderer renderer : map.getRenderers()) {
             map.removeRenderer(renderer);
         }
+        installed.remove(map.getId());
     }
 
     @Override
+    @SuppressWarnings("deprecation")
     public void render(@NotNull MapView v, final @NotNull MapCanvas canvas, @NotNull Player p) {
         //Render only once to avoid overloading the server
-        if (image == null) {
-            return;
+        if (pixels != null) {
+            // Already matched to the palette off-thread: plain copy, no color work here.
+            final byte[] tile = pixels;
+            for (int y = 0; y < ImageMap.HEIGHT; y++) {
+                for (int x = 0; x < ImageMap.WIDTH; x++) {
+                    canvas.setPixel(x, y, tile[y * ImageMap.WIDTH + x]);
+                }
+            }
+            pixels = null;
+        } else if (image != null) {
+            canvas.drawImage(0, 0, image);
+            image = null;
         }
-        canvas.drawImage(0, 0, image);
-        image = null;
     }
 
     public void setImage(BufferedImage image) {
         this.image = image;
     }
+
+    /**
+     * Sets the palette indices to draw, as produced by {@link ImageUtils#toMapPixels(BufferedImage)}.
+     * <p>
+     * Unlike {@link #setImage(BufferedImage)}, drawing these does not require any color matching
+     * on the server thread.
+     *
+     * @param pixels The {@link ImageMap#WIDTH} × {@link ImageMap#HEIGHT} palette indices.
+     */
+    public void setPixels(byte[] pixels) {
+        this.pixels = pixels;
+    }
 }
@@ -0,0 +1,258 @@
+/*
+ * Copyright or © or Copr. Moribus (2013)
+ * Copyright or © or Copr. ProkopyL <prokopylmc@gmail.com> (2015)
+ * Copyright or © or Copr. Amaury Carrade <amaury@carrade.eu> (2016 – 2021)
+ * Copyright or © or Copr. Vlammar <valentin.jabre@gmail.com> (2019 – 2021)
+ *
+ * This software is a computer program whose purpose is to allow insertion of
+ * custom images in a Minecraft world.
+ *
+ * This software is governed by the CeCILL license under French law and
+ * abiding by the rules of distribution of free software.  You can  use,
+ * modify and/ or redistribute the software under the terms of the CeCILL
+ * license as circulated by CEA, CNRS and INRIA at the following URL
+ * "http://www.cecill.info".
+ *
+ * As a counterpart to the access to the source code and  rights to copy,
+ * modify and redistribute granted by the license, users are provided only
+ * with a limited warranty  and the software's author,  the holder of the
+ * economic rights,  and the successive licensors  have only  limited
+ * liability.
+ *
+ * In this respect, the user's attention is drawn to the risks associated
+ * with loading,  using,  modifying and/or developing or reproducing the
+ * software by the user in light of its specific status of free software,
+ * that may mean  that it is complicated to manipulate,  and  that  also
+ * therefore means  that it is reserved for developers  and  experienced
+ * professionals having in-depth computer knowledge. Users are therefore
+ * encouraged to load and test the software's suitability as regards their
+ * requirements in conditions enabling the security of their systems and/or
+ * data to be ensured and,  more generally, to use and operate it in the
+ * same conditions as regards security.
+ *
+ * The fact that you are presently reading this means that you have had
+ * knowledge of the CeCILL license and that you accept its terms.
+ */
+
+package fr.moribus.imageonmap.image;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.util.stream.IntStream;
+
+/**
+ * Resizes an image with a {@link ImageUtils.ResamplingFilter}, one region of the
+ * resized image at a time.
+ * <p>
+ * The filter is applied in two separable passes, horizontal then vertical; colors are
+ * weighted by their alpha so transparent pixels do not bleed into their neighbors. The
+ * horizontal pass is kept in floats, negative lobes included, and only the final pixels
+ * are rounded and clamped. When downscaling, the filter is stretched to cover all the
+ * source pixels of a resized one. Both passes are run in parallel, row by row.
+ */
+final class Resampler {
+    /**
+     * Channels kept per pixel between the two passes: alpha, red, green and blue.
+     */
+    static final int CHANNELS = 4;
+
+    private final BufferedImage source;
+    private final Rectangle placement;
+    private final Coefficients horizontal;
+    private final Coefficients vertical;
+
+    /**
+     * The source pixels contributing to each resized pixel along an axis, and their weights.
+     */
+    private static final class Coefficients {
+        private final int[] first;
+        private final int[] count;
+        private final float[] weights;
+        private final int stride;
+
+        private Coefficients(ImageUtils.ResamplingFilter filter, int sourceSize, int resizedSize) {
+            double scale = (double) sourceSize / resizedSize;
+            double filterScale = Math.max(scale, 1);
+            double support = filter.getSupport() * filterScale;
+
+            stride = (int) Math.ceil(support) * 2 + 1;
+            first = new int[resizedSize];
+            count = new int[resizedSize];
+            weights = new float[resizedSize * stride];
+
+            for (int i = 0; i < resizedSize; i++) {
+                double center = (i + 0.5) * scale;
+                int from = Math.max((int) (center - support + 0.5), 0);
+                int to = Math.min((int) (center + support + 0.5), sourceSize);
+                to = Math.min(to, from + stride);
+
+                double total = 0;
+                for (int j = from; j < to; j++) {
+                    double weight = filter.weight((j - center + 0.5) / filterScale);
+                    weights[i * stride + j - from] = (float) weight;
+                    total += weight;
+                }
+                if (total != 0) {
+                    for (int j = 0; j < to - from; j++) {
+                        weights[i * stride + j] /= (float) total;
+                    }
+                }
+
+                first[i] = from;
+                count[i] = to - from;
+            }
+        }
+    }
+
+    /**
+     * @param filter    The filter.
+     * @param source    The image to resize.
+     * @param placement Where the source is drawn in the resized image, and at which size.
+     */
+    Resampler(ImageUtils.ResamplingFilter filter, BufferedImage source, Rectangle placement) {
+        this.source = source;
+        this.placement = placement;
+        this.horizontal = new Coefficients(filter, source.getWidth(), placement.width);
+        this.vertical = new Coefficients(filter, source.getHeight(), placement.height);
+    }
+
+    /**
+     * Draws a region of the resized image. Pixels of the region outside the source
+     * placement are left untouched.
+     *
+     * @param out       The buffer to draw into, as non-premultiplied ARGB ints.
+     * @param outWidth  The width of a row of the buffer.
+     * @param outX      The X coordinate, in the resized image, of the first pixel of the buffer.
+     * @param outY      The Y coordinate, in the resized image, of the first pixel of the buffer.
+     * @param region    The region to draw, in the resized image coordinates.
+     */
+    void draw(int[] out, int outWidth, int outX, int outY, Rectangle region) {
+        Rectangle drawn = region.intersection(placement);
+        if (drawn.isEmpty()) {
+            return;
+        }
+
+        // Resized pixels relative to the placement.
+        final int fromX = drawn.x - placement.x;
+        final int toX = fromX + drawn.width;
+        final int fromY = drawn.y - placement.y;
+        final int toY = fromY + drawn.height;
+
+        // Source area contributing to them.
+        int sourceFromX = Integer.MAX_VALUE;
+        int sourceToX = 0;
+        for (int x = fromX; x < toX; x++) {
+            sourceFromX = Math.min(sourceFromX, horizontal.first[x]);
+            sourceToX = Math.max(sourceToX, horizontal.first[x] + horizontal.count[x]);
+        }
+        int sourceFromY = Integer.MAX_VALUE;
+        int sourceToY = 0;
+        for (int y = fromY; y < toY; y++) {
+            sourceFromY = Math.min(sourceFromY, vertical.first[y]);
+            sourceToY = Math.max(sourceToY, vertical.first[y] + vertical.count[y]);
+        }
+
+        final int sourceX = sourceFromX;
+        final int sourceY = sourceFromY;
+        final int sourceWidth = sourceToX - sourceFromX;
+        final int sourceRows = sourceToY - sourceFromY;
+        final int width = toX - fromX;
+
+        // Horizontal pass: source rows to resized columns, premultiplied and unclamped.
+        final float[] rows = new float[sourceRows * width * CHANNELS];
+        IntStream.range(0, sourceRows).parallel().forEach(row -> {
+            int[] line = source.getRGB(sourceX, sourceY + row, sourceWidth, 1, null, 0, sourceWidth);
+            for (int x = 0; x < width; x++) {
+                int resized = fromX + x;
+                convolveRow(line, horizontal.first[resized] - sourceX, horizontal.weights,
+                        resized * horizontal.stride, horizontal.count[resized], rows, (row * width + x) * CHANNELS);
+            }
+        });
+
+        // Vertical pass: resized columns to resized rows, rounded and clamped only now.
+        IntStream.range(fromY, toY).parallel().forEach(y -> {
+            int outRow = (y + placement.y - outY) * outWidth + drawn.x - outX;
+            int first = (vertical.first[y] - sourceY) * width;
+            for (int x = 0; x < width; x++) {
+                out[outRow + x] = convolveColumn(rows, (first + x) * CHANNELS, width * CHANNELS,
+                        vertical.weights, y * vertical.stride, vertical.count[y]);
+            }
+        });
+    }
+
+    /**
+     * Computes the weighted sum of some source pixels of a row, premultiplied by their alpha.
+     *
+     * @param pixels      The non-premultiplied ARGB pixels.
+     * @param offset      The index of the first pixel.
+     * @param weights     The weights.
+     * @param weightsFrom The index of the first weight.
+     * @param count       The number of pixels.
+     * @param out         Where to write the alpha, red, green and blue sums.
+     * @param outOffset   The index of the alpha sum.
+     */
+    private static void convolveRow(int[] pixels, int offset, float[] weights, int weightsFrom, int count,
+                                    float[] out, int outOffset) {
+        float a = 0;
+        float r = 0;
+        float g = 0;
+        float b = 0;
+
+        for (int i = 0; i < count; i++) {
+            int pixel = pixels[offset + i];
+            float weight = weights[weightsFrom + i];
+            int alpha = pixel >>> 24;
+            float colorWeight = weight * alpha / 255f;
+
+            a += weight * alpha;
+            r += colorWeight * ((pixel >> 16) & 0xFF);
+            g += colorWeight * ((pixel >> 8) & 0xFF);
+            b += colorWeight * (pixel & 0xFF);
+        }
+
+        out[outOffset] = a;
+        out[outOffset + 1] = r;
+        out[outOffset + 2] = g;
+        out[outOffset + 3] = b;
+    }
+
+    /**
+     * Computes the weighted sum of some premultiplied pixels of a column of the horizontal pass.
+     *
+     * @param pixels      The premultiplied channels of the horizontal pass.
+     * @param offset      The index of the alpha channel of the first pixel.
+     * @param step        The distance between two pixels.
+     * @param weights     The weights.
+     * @param weightsFrom The index of the first weight.
+     * @param count       The number of pixels.
+     * @return The non-premultiplied ARGB result.
+     */
+    private static int convolveColumn(float[] pixels, int offset, int step, float[] weights, int weightsFrom,
+                                      int count) {
+        float a = 0;
+        float r = 0;
+        float g = 0;
+        float b = 0;
+
+        for (int i = 0; i < count; i++) {
+            int pixel = offset + i * step;
+            float weight = weights[weightsFrom + i];
+            a += weight * pixels[pixel];
+            r += weight * pixels[pixel + 1];
+            g += weight * pixels[pixel + 2];
+            b += weight * pixels[pixel + 3];
+        }
+
+        int alpha = clamp(a);
+        if (alpha == 0) {
+            return 0;
+        }
+        float unpremultiply = 255f / a;
+        return alpha << 24 | clamp(r * unpremultiply) << 16 | clamp(g * unpremultiply) << 8 | clamp(b * unpremultiply);
+    }
+
+    private static int clamp(float value) {
+        int rounded = Math.round(value);
+        return rounded < 0 ? 0 : Math.min(rounded, 255);
+    }
+}
@@ -0,0 +1,787 @@
+/*
+ * Copyright or © or Copr. Moribus (2013)
+ * Copyright or © or Copr. ProkopyL <prokopylmc@gmail.com> (2015)
+ * Copyright or © or Copr. Amaury Carrade <amaury@carrade.eu> (2016 – 2021)
+ * Copyright or © or Copr. Vlammar <valentin.jabre@gmail.com> (2019 – 2021)
+ *
+ * This software is a computer program whose purpose is to allow insertion of
+ * custom images in a Minecraft world.
+ *
+ * This software is governed by the CeCILL license under French law and
+ * abiding by the rules of distribution of free software.  You can  use,
+ * modify and/ or redistribute the software under the terms of the CeCILL
+ * license as circulated by CEA, CNRS and INRIA at the following URL
+ * "http://www.cecill.info".
+ *
+ * As a counterpart to the access to the source code and  rights to copy,
+ * modify and redistribute granted by the license, users are provided only
+ * with a limited warranty  and the software's author,  the holder of the
+ * economic rights,  and the successive licensors  have only  limited
+ * liability.
+ *
+ * In this respect, the user's attention is drawn to the risks associated
+ * with loading,  using,  modifying and/or developing or reproducing the
+ * software by the user in light of its specific status of free software,
+ * that may mean  that it is complicated to manipulate,  and  that  also
+ * therefore means  that it is reserved for developers  and  experienced
+ * professionals having in-depth computer knowledge. Users are therefore
+ * encouraged to load and test the software's suitability as regards their
+ * requirements in conditions enabling the security of their systems and/or
+ * data to be ensured and,  more generally, to use and operate it in the
+ * same conditions as regards security.
+ *
+ * The fact that you are presently reading this means that you have had
+ * knowledge of the CeCILL license and that you accept its terms.
+ */
+
+package fr.moribus.imageonmap.image;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * A {@link TileStore} keeping tiles in a few append-only segment files.
+ * <p>
+ * Every write appends a record to the newest segment, and an in-memory index maps
+ * each map ID to the position of its latest record. Identical tiles are stored once:
+ * when a written tile is already stored, only a small link record to it is appended,
+ * and the stored tile stays live as long as one map shows it. Tiles are read back with
+ * positional reads, so readers never contend on a shared file pointer. The index is
+ * saved on close; on open it is reloaded and only the segment tails written after
+ * it are scanned, or the whole store is scanned if it is missing or stale.
+ * <p>
+ * Replaced and deleted tiles leave dead records behind; {@link #compact()} rewrites
+ * the live records of mostly-dead segments and deletes them.
+ */
+public class SegmentTileStore implements TileStore {
+
+    static final long MAX_SEGMENT_SIZE = 64L * 1024 * 1024;
+
+    private static final int SEGMENT_MAGIC = 0x494f4d53; // "IOMS"
+    private static final int INDEX_MAGIC = 0x494f4d49; // "IOMI"
+    private static final int FORMAT_VERSION = 2;
+
+    private static final int SEGMENT_HEADER_SIZE = 8;
+    private static final int RECORD_HEADER_SIZE = 9;
+    private static final byte RECORD_TILE = 1;
+    private static final byte RECORD_DELETED = 2;
+    private static final byte RECORD_LINK = 3;
+    /**
+     * The payload of a link record: the segment and position of the tile record it points to.
+     */
+    private static final int LINK_SIZE = 12;
+    private static final int LINK_RECORD_SIZE = RECORD_HEADER_SIZE + LINK_SIZE;
+
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".dat";
+    private static final String INDEX_FILE = "index.dat";
+
+    /**
+     * Opens the segment files; replaced in tests to inject failures.
+     */
+    @FunctionalInterface
+    interface ChannelOpener {
+        FileChannel open(Path file, OpenOption... options) throws IOException;
+    }
+
+    private final Path directory;
+    private final ChannelOpener opener;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final TreeMap<Integer, Segment> segments = new TreeMap<>();
+    private final Map<Integer, Entry> index = new HashMap<>();
+    /**
+     * The live tiles, by the position of their record and by the hash of their pixels.
+     */
+    private final Map<Long, Blob> blobsByPosition = new HashMap<>();
+    private final Map<Long, List<Blob>> blobsByHash = new HashMap<>();
+    private Segment active = null;
+
+    private SegmentTileStore(Path directory, ChannelOpener opener) {
+        this.directory = directory;
+        this.opener = opener;
+    }
+
+    /**
+     * Opens the store kept in the given directory, creating it if needed.
+     *
+     * @param directory The directory holding the segments.
+     * @return The opened store.
+     * @throws IOException If the store could not be opened.
+     */
+    public static SegmentTileStore open(Path directory) throws IOException {
+        return open(directory, FileChannel::open);
+    }
+
+    static SegmentTileStore open(Path directory, ChannelOpener opener) throws IOException {
+        Files.createDirectories(directory);
+
+        SegmentTileStore store = new SegmentTileStore(directory, opener);
+        try {
+            store.openSegments();
+            store.loadIndex();
+        } catch (IOException ex) {
+            // The index is only partly rebuilt: it must not be saved, or the tiles it misses
+            // would be lost on the next open.
+            IOException closeFailure = store.closeSegments();
+            if (closeFailure != null) {
+                ex.addSuppressed(closeFailure);
+            }
+            throw ex;
+        }
+        return store;
+    }
+
+    /* ===== Records ===== */
+
+    /**
+     * A stored tile: the {@link #RECORD_TILE} record holding its pixels, and the maps
+     * showing it. The record stays live as long as one map does.
+     */
+    private static final class Blob {
+        private final int segment;
+        private final long offset;
+        private final int length;
+        private final long hash;
+        private final Set<Integer> maps = new HashSet<>();
+
+        private Blob(int segment, long offset, int length, long hash) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+            this.hash = hash;
+        }
+
+        private int recordSize() {
+            return RECORD_HEADER_SIZE + length;
+        }
+    }
+
+    /**
+     * The latest record of a map: either the tile record of its blob, or a link record to it.
+     */
+    private record Entry(int segment, long offset, boolean link, Blob blob) {
+    }
+
+    private static final class Segment {
+        private final int id;
+        private final Path file;
+        private final FileChannel channel;
+        private long size;
+        private long liveBytes = 0;
+
+        private Segment(int id, Path file, FileChannel channel, long size) {
+            this.id = id;
+            this.file = file;
+            this.channel = channel;
+            this.size = size;
+        }
+
+        private boolean isSparse() {
+            return liveBytes < (size - SEGMENT_HEADER_SIZE) / 2;
+        }
+    }
+
+    private static long position(int segment, long offset) {
+        return ((long) segment << 40) | offset;
+    }
+
+    /**
+     * A 64-bit FNV-1a hash of the pixels of a tile, to find the stored tiles it may be equal to.
+     */
+    private static long hash(byte[] pixels) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte pixel : pixels) {
+            hash ^= pixel & 0xFF;
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    private Path segmentFile(int id) {
+        return directory.resolve(String.format("%s%05d%s", SEGMENT_PREFIX, id, SEGMENT_SUFFIX));
+    }
+
+    private static int segmentId(Path file) {
+        String name = file.getFileName().toString();
+        if (!name.startsWith(SEGMENT_PREFIX) || !name.endsWith(SEGMENT_SUFFIX)) {
+            return -1;
+        }
+        try {
+            return Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+        } catch (NumberFormatException ex) {
+            return -1;
+        }
+    }
+
+    private void openSegments() throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            for (Path file : files) {
+                int id = segmentId(file);
+                if (id < 0) {
+                    continue;
+                }
+
+                FileChannel channel = opener.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                Segment segment = new Segment(id, file, channel, channel.size());
+                segments.put(id, segment);
+
+                if (segment.size < SEGMENT_HEADER_SIZE || readInt(channel, 0) != SEGMENT_MAGIC) {
+                    throw new IOException("Corrupted tile segment " + file);
+                }
+            }
+        }
+
+        if (!segments.isEmpty()) {
+            active = segments.lastEntry().getValue();
+        }
+    }
+
+    private Segment createSegment() throws IOException {
+        int id = segments.isEmpty() ? 0 : segments.lastKey() + 1;
+        Path file = segmentFile(id);
+        FileChannel channel = opener.open(file,
+                StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+        ByteBuffer header = ByteBuffer.allocate(SEGMENT_HEADER_SIZE);
+        header.putInt(SEGMENT_MAGIC).putInt(FORMAT_VERSION).flip();
+        writeFully(channel, header, 0);
+
+        Segment segment = new Segment(id, file, channel, SEGMENT_HEADER_SIZE);
+        segments.put(id, segment);
+        return segment;
+    }
+
+    /* ===== Index ===== */
+
+    private void loadIndex() throws IOException {
+        Map<Integer, Long> indexedSizes = readIndexFile();
+
+        for (Segment segment : segments.values()) {
+            Long indexedSize = indexedSizes != null ? indexedSizes.get(segment.id) : null;
+            scan(segment, indexedSize != null ? indexedSize : SEGMENT_HEADER_SIZE);
+        }
+    }
+
+    /**
+     * Loads the saved index, if it matches the segments on disk.
+     *
+     * @return The size of each segment when the index was saved, or {@code null} if the
+     * index could not be used.
+     */
+    private Map<Integer, Long> readIndexFile() throws IOException {
+        Path file = directory.resolve(INDEX_FILE);
+        if (!Files.isRegularFile(file)) {
+            return null;
+        }
+
+        ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(file));
+        try {
+            if (buffer.getInt() != INDEX_MAGIC || buffer.getInt() != FORMAT_VERSION) {
+                return null;
+            }
+
+            Map<Integer, Long> sizes = new HashMap<>();
+            int segmentCount = buffer.getInt();
+            for (int i = 0; i < segmentCount; i++) {
+                int id = buffer.getInt();
+                long size = buffer.getLong();
+                Segment segment = segments.get(id);
+                if (segment == null || segment.size < size) {
+                    return null;
+                }
+                sizes.put(id, size);
+            }
+
+            Blob[] blobs = new Blob[buffer.getInt()];
+            for (int i = 0; i < blobs.length; i++) {
+                blobs[i] = new Blob(buffer.getInt(), buffer.getLong(), buffer.getInt(), buffer.getLong());
+                if (!sizes.containsKey(blobs[i].segment)) {
+                    return null;
+                }
+            }
+
+            Map<Integer, Entry> entries = new HashMap<>();
+            int entryCount = buffer.getInt();
+            for (int i = 0; i < entryCount; i++) {
+                int mapID = buffer.getInt();
+                Entry entry = new Entry(buffer.getInt(), buffer.getLong(), buffer.get() != 0, blobs[buffer.getInt()]);
+                if (!sizes.containsKey(entry.segment())) {
+                    return null;
+                }
+                entries.put(mapID, entry);
+            }
+
+            for (Map.Entry<Integer, Entry> entry : entries.entrySet()) {
+                put(entry.getKey(), entry.getValue());
+            }
+            return sizes;
+        } catch (RuntimeException ex) {
+            // Truncated or garbage index: rebuild it from the segments.
+            return null;
+        }
+    }
+
+    private void saveIndex() throws IOException {
+        Map<Blob, Integer> blobIndices = new HashMap<>();
+        for (Entry entry : index.values()) {
+            blobIndices.putIfAbsent(entry.blob(), blobIndices.size());
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(20 + segments.size() * 12 + blobIndices.size() * 24
+                + index.size() * 21);
+        buffer.putInt(INDEX_MAGIC).putInt(FORMAT_VERSION);
+
+        buffer.putInt(segments.size());
+        for (Segment segment : segments.values()) {
+            buffer.putInt(segment.id).putLong(segment.size);
+        }
+
+        Blob[] blobs = new Blob[blobIndices.size()];
+        blobIndices.forEach((blob, i) -> blobs[i] = blob);
+        buffer.putInt(blobs.length);
+        for (Blob blob : blobs) {
+            buffer.putInt(blob.segment).putLong(blob.offset).putInt(blob.length).putLong(blob.hash);
+        }
+
+        buffer.putInt(index.size());
+        for (Map.Entry<Integer, Entry> entry : index.entrySet()) {
+            buffer.putInt(entry.getKey())
+                    .putInt(entry.getValue().segment())
+                    .putLong(entry.getValue().offset())
+                    .put((byte) (entry.getValue().link() ? 1 : 0))
+                    .putInt(blobIndices.get(entry.getValue().blob()));
+        }
+
+        Path file = directory.resolve(INDEX_FILE);
+        Path temp = directory.resolve(INDEX_FILE + ".tmp");
+        Files.write(temp, buffer.array());
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Replays the records of a segment into the index, from the given position. A torn
+     * record at the end of the segment, left by a crash, is cut off.
+     */
+    private void scan(Segment segment, long from) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+        long position = from;
+
+        while (position + RECORD_HEADER_SIZE <= segment.size) {
+            header.clear();
+            readFully(segment.channel, header, position);
+            header.flip();
+
+            byte type = header.get();
+            int mapID = header.getInt();
+            int length = header.getInt();
+
+            if ((type != RECORD_TILE && type != RECORD_DELETED && type != RECORD_LINK) || length < 0
+                    || (type == RECORD_LINK && length != LINK_SIZE)
+                    || position + RECORD_HEADER_SIZE + length > segment.size) {
+                break;
+            }
+
+            if (type == RECORD_TILE) {
+                ByteBuffer payload = ByteBuffer.allocate(length);
+                readFully(segment.channel, payload, position + RECORD_HEADER_SIZE);
+                Blob blob = new Blob(segment.id, position, length, hash(payload.array()));
+                put(mapID, new Entry(segment.id, position, false, blob));
+            } else if (type == RECORD_LINK) {
+                ByteBuffer target = ByteBuffer.allocate(LINK_SIZE);
+                readFully(segment.channel, target, position + RECORD_HEADER_SIZE);
+                target.flip();
+                Blob blob = blobsByPosition.get(position(target.getInt(), target.getLong()));
+                if (blob != null) {
+                    put(mapID, new Entry(segment.id, position, true, blob));
+                } else {
+                    // Linked to a tile moved by a compaction: a later record links it again.
+                    remove(mapID);
+                }
+            } else {
+                remove(mapID);
+            }
+
+            position += RECORD_HEADER_SIZE + length;
+        }
+
+        if (position != segment.size) {
+            segment.channel.truncate(position);
+            segment.size = position;
+        }
+    }
+
+    private void put(int mapID, Entry entry) {
+        remove(mapID);
+        index.put(mapID, entry);
+        if (entry.link()) {
+            segments.get(entry.segment()).liveBytes += LINK_RECORD_SIZE;
+        }
+
+        Blob blob = entry.blob();
+        blob.maps.add(mapID);
+        if (blob.maps.size() == 1) {
+            segments.get(blob.segment).liveBytes += blob.recordSize();
+            blobsByPosition.put(position(blob.segment, blob.offset), blob);
+            blobsByHash.computeIfAbsent(blob.hash, hash -> new ArrayList<>(1)).add(blob);
+        }
+    }
+
+    private Entry remove(int mapID) {
+        Entry previous = index.remove(mapID);
+        if (previous == null) {
+            return null;
+        }
+        if (previous.link()) {
+            Segment segment = segments.get(previous.segment());
+            if (segment != null) {
+                segment.liveBytes -= LINK_RECORD_SIZE;
+            }
+        }
+
+        Blob blob = previous.blob();
+        blob.maps.remove(mapID);
+        if (blob.maps.isEmpty()) {
+            Segment segment = segments.get(blob.segment);
+            if (segment != null) {
+                segment.liveBytes -= blob.recordSize();
+            }
+            blobsByPosition.remove(position(blob.segment, blob.offset));
+            List<Blob> sameHash = blobsByHash.get(blob.hash);
+            if (sameHash != null && sameHash.remove(blob) && sameHash.isEmpty()) {
+                blobsByHash.remove(blob.hash);
+            }
+        }
+        return previous;
+    }
+
+    /* ===== Reading & writing ===== */
+
+    @Override
+    public byte[] read(int mapID) throws IOException {
+        lock.readLock().lock();
+        try {
+            Entry entry = index.get(mapID);
+            if (entry == null) {
+                return null;
+            }
+            return readPayload(entry.blob());
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private byte[] readPayload(Blob blob) throws IOException {
+        ByteBuffer payload = ByteBuffer.allocate(blob.length);
+        readFully(segments.get(blob.segment).channel, payload, blob.offset + RECORD_HEADER_SIZE);
+        return payload.array();
+    }
+
+    /**
+     * Writes the tile of a map. If the same tile is already stored, only a link to it is
+     * written.
+     */
+    @Override
+    public void write(int mapID, byte[] pixels) throws IOException {
+        long hash = hash(pixels);
+        lock.writeLock().lock();
+        try {
+            Blob blob = findBlob(hash, pixels);
+            if (blob == null) {
+                put(mapID, appendTile(mapID, pixels, hash));
+            } else if (!blob.maps.contains(mapID)) {
+                put(mapID, appendLink(mapID, blob));
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return the stored tile with these pixels, or {@code null} if there is none.
+     */
+    private Blob findBlob(long hash, byte[] pixels) throws IOException {
+        List<Blob> candidates = blobsByHash.get(hash);
+        if (candidates == null) {
+            return null;
+        }
+        for (Blob candidate : candidates) {
+            if (candidate.length == pixels.length && Arrays.equals(readPayload(candidate), pixels)) {
+                return candidate;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public void delete(int mapID) throws IOException {
+        lock.writeLock().lock();
+        try {
+            if (index.containsKey(mapID)) {
+                append(RECORD_DELETED, mapID, new byte[0]);
+                remove(mapID);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean contains(int mapID) {
+        lock.readLock().lock();
+        try {
+            return index.containsKey(mapID);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public int[] getMapIDs() {
+        lock.readLock().lock();
+        try {
+            return index.keySet().stream().mapToInt(Integer::intValue).toArray();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return the number of tiles in the store.
+     */
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return index.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return the number of distinct tiles stored, shared by {@link #size()} maps.
+     */
+    public int uniqueSize() {
+        lock.readLock().lock();
+        try {
+            return blobsByPosition.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private Entry appendTile(int mapID, byte[] pixels, long hash) throws IOException {
+        long position = append(RECORD_TILE, mapID, pixels);
+        return new Entry(active.id, position, false, new Blob(active.id, position, pixels.length, hash));
+    }
+
+    private Entry appendLink(int mapID, Blob blob) throws IOException {
+        ByteBuffer target = ByteBuffer.allocate(LINK_SIZE);
+        target.putInt(blob.segment).putLong(blob.offset);
+        long position = append(RECORD_LINK, mapID, target.array());
+        return new Entry(active.id, position, true, blob);
+    }
+
+    /**
+     * Appends a record to the active segment.
+     *
+     * @return The position of the record in the active segment.
+     */
+    private long append(byte type, int mapID, byte[] payload) throws IOException {
+        int recordSize = RECORD_HEADER_SIZE + payload.length;
+        if (active == null || (active.size + recordSize > MAX_SEGMENT_SIZE && active.size > SEGMENT_HEADER_SIZE)) {
+            active = createSegment();
+        }
+
+        ByteBuffer record = ByteBuffer.allocate(recordSize);
+        record.put(type).putInt(mapID).putInt(payload.length).put(payload).flip();
+
+        long position = active.size;
+        writeFully(active.channel, record, position);
+        active.size += recordSize;
+
+        return position;
+    }
+
+    /**
+     * Rewrites the live tiles of the segments that are mostly made of replaced or deleted
+     * tiles, then deletes these segments.
+     *
+     * @return The number of segments reclaimed.
+     * @throws IOException If the compaction failed; the store stays consistent.
+     */
+    public int compact() throws IOException {
+        lock.writeLock().lock();
+        try {
+            List<Segment> sparse = new ArrayList<>();
+            for (Segment segment : segments.values()) {
+                if (segment != active && segment.isSparse()) {
+                    sparse.add(segment);
+                }
+            }
+
+            for (Segment segment : sparse) {
+                compact(segment);
+            }
+
+            if (!sparse.isEmpty()) {
+                flush();
+            }
+            return sparse.size();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void compact(Segment segment) throws IOException {
+        boolean hasOlderSegments = segments.firstKey() < segment.id;
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+        long position = SEGMENT_HEADER_SIZE;
+
+        while (position < segment.size) {
+            header.clear();
+            readFully(segment.channel, header, position);
+            header.flip();
+
+            byte type = header.get();
+            int mapID = header.getInt();
+            int length = header.getInt();
+            Entry entry = index.get(mapID);
+
+            if (type == RECORD_TILE) {
+                Blob blob = blobsByPosition.get(position(segment.id, position));
+                if (blob != null) {
+                    relocate(blob);
+                }
+            } else if (type == RECORD_LINK) {
+                if (entry != null && entry.link() && entry.segment() == segment.id && entry.offset() == position) {
+                    put(mapID, appendLink(mapID, entry.blob()));
+                }
+            } else if (type == RECORD_DELETED && entry == null && hasOlderSegments) {
+                // Older segments may still hold a stale record for this map: keep it dead.
+                append(RECORD_DELETED, mapID, new byte[0]);
+            }
+
+            position += RECORD_HEADER_SIZE + length;
+        }
+
+        active.channel.force(false);
+        segments.remove(segment.id);
+        segment.channel.close();
+        Files.delete(segment.file);
+    }
+
+    /**
+     * Copies a tile to the active segment, under one of the maps showing it, and links the
+     * other ones to the copy.
+     */
+    private void relocate(Blob blob) throws IOException {
+        List<Integer> maps = new ArrayList<>(blob.maps);
+        byte[] pixels = readPayload(blob);
+
+        Entry copy = appendTile(maps.get(0), pixels, blob.hash);
+        put(maps.get(0), copy);
+        for (int i = 1; i < maps.size(); i++) {
+            put(maps.get(i), appendLink(maps.get(i), copy.blob()));
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        lock.writeLock().lock();
+        try {
+            for (Segment segment : segments.values()) {
+                segment.channel.force(false);
+            }
+            saveIndex();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        lock.writeLock().lock();
+        try {
+            IOException failure = null;
+            try {
+                flush();
+            } catch (IOException ex) {
+                failure = ex;
+            }
+
+            IOException closeFailure = closeSegments();
+            if (closeFailure != null) {
+                failure = closeFailure;
+            }
+            if (failure != null) {
+                throw failure;
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Closes the segment files and forgets the index, without saving anything.
+     *
+     * @return The last failure to close a file, if any.
+     */
+    private IOException closeSegments() {
+        IOException failure = null;
+        Iterator<Segment> iterator = segments.values().iterator();
+        while (iterator.hasNext()) {
+            try {
+                iterator.next().channel.close();
+            } catch (IOException ex) {
+                failure = ex;
+            }
+            iterator.remove();
+        }
+        index.clear();
+        blobsByPosition.clear();
+        blobsByHash.clear();
+        active = null;
+        return failure;
+    }
+
+    /* ===== Channel helpers ===== */
+
+    private static int readInt(FileChannel channel, long position) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(4);
+        readFully(channel, buffer, position);
+        return buffer.flip().getInt();
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + buffer.position());
+            if (read < 0) {
+                throw new IOException("Unexpected end of tile segment");
+            }
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, position + buffer.position());
+        }
+    }
+}
@@ -0,0 +1,231 @@
+/*
+ * Copyright or © or Copr. Moribus (2013)
+ * Copyright or © or Copr. ProkopyL <prokopylmc@gmail.com> (2015)
+ * Copyright or © or Copr. Amaury Carrade <amaury@carrade.eu> (2016 – 2021)
+ * Copyright or © or Copr. Vlammar <valentin.jabre@gmail.com> (2019 – 2021)
+ *
+ * This software is a computer program whose purpose is to allow insertion of
+ * custom images in a Minecraft world.
+ *
+ * This software is governed by the CeCILL license under French law and
+ * abiding by the rules of distribution of free software.  You can  use,
+ * modify and/ or redistribute the software under the terms of the CeCILL
+ * license as circulated by CEA, CNRS and INRIA at the following URL
+ * "http://www.cecill.info".
+ *
+ * As a counterpart to the access to the source code and  rights to copy,
+ * modify and redistribute granted by the license, users are provided only
+ * with a limited warranty  and the software's author,  the holder of the
+ * economic rights,  and the successive licensors  have only  limited
+ * liability.
+ *
+ * In this respect, the user's attention is drawn to the risks associated
+ * with loading,  using,  modifying and/or developing or reproducing the
+ * software by the user in light of its specific status of free software,
+ * that may mean  that it is complicated to manipulate,  and  that  also
+ * therefore means  that it is reserved for developers  and  experienced
+ * professionals having in-depth computer knowledge. Users are therefore
+ * encouraged to load and test the software's suitability as regards their
+ * requirements in conditions enabling the security of their systems and/or
+ * data to be ensured and,  more generally, to use and operate it in the
+ * same conditions as regards security.
+ *
+ * The fact that you are presently reading this means that you have had
+ * knowledge of the CeCILL license and that you accept its terms.
+ */
+
+package fr.moribus.imageonmap.image;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A memory-bounded cache of map tiles, as palette indices, keyed by map ID.
+ * <p>
+ * The cache is a segmented LRU: new tiles enter a probation segment, and move to a
+ * protected one when they are read again. A burst of tiles read once, such as the
+ * frames of a freshly loaded area, thus cannot push out the tiles read over and over,
+ * such as the ones of the spawn.
+ * <p>
+ * Cached tiles are shared: they must not be modified.
+ */
+final class TileCache {
+
+    /**
+     * Share of the budget kept for the tiles read more than once.
+     */
+    private static final double PROTECTED_RATIO = 0.8;
+
+    private final long maxSize;
+    private final long maxProtectedSize;
+
+    private final LinkedHashMap<Integer, byte[]> probation = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<Integer, byte[]> protectedTiles = new LinkedHashMap<>(16, 0.75f, true);
+    private long probationSize = 0;
+    private long protectedSize = 0;
+
+    /**
+     * The tiles being read to fill the cache. A tile invalidated while it is read is not
+     * cached, as the read may have returned the previous tile.
+     */
+    private final Map<Integer, Fill> fills = new HashMap<>();
+
+    private static final class Fill {
+        private int readers = 0;
+        private boolean stale = false;
+    }
+
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+
+    /**
+     * @param maxSize The maximum number of bytes of tiles to keep. 0 disables the cache.
+     */
+    TileCache(long maxSize) {
+        this.maxSize = Math.max(0, maxSize);
+        this.maxProtectedSize = (long) (this.maxSize * PROTECTED_RATIO);
+    }
+
+    /**
+     * @param mapID The Minecraft map ID.
+     * @return The cached tile, or {@code null} if it is not cached.
+     */
+    synchronized byte[] get(int mapID) {
+        byte[] pixels = protectedTiles.get(mapID);
+        if (pixels != null) {
+            hits++;
+            return pixels;
+        }
+
+        pixels = probation.remove(mapID);
+        if (pixels == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+
+        // Read a second time: promote it, and demote the least recently read protected tiles.
+        probationSize -= pixels.length;
+        protectedTiles.put(mapID, pixels);
+        protectedSize += pixels.length;
+
+        Iterator<Map.Entry<Integer, byte[]>> eldest = protectedTiles.entrySet().iterator();
+        while (protectedSize > maxProtectedSize && eldest.hasNext()) {
+            Map.Entry<Integer, byte[]> entry = eldest.next();
+            eldest.remove();
+            protectedSize -= entry.getValue().length;
+            probation.put(entry.getKey(), entry.getValue());
+            probationSize += entry.getValue().length;
+        }
+        evict();
+        return pixels;
+    }
+
+    /**
+     * Declares that a tile missing from the cache is about to be read. Every call must be
+     * followed by a call to {@link #endFill(int, byte[])}.
+     *
+     * @param mapID The Minecraft map ID.
+     */
+    synchronized void beginFill(int mapID) {
+        fills.computeIfAbsent(mapID, id -> new Fill()).readers++;
+    }
+
+    /**
+     * Caches a tile just read, unless it was invalidated during the read.
+     *
+     * @param mapID  The Minecraft map ID.
+     * @param pixels The palette indices, or {@code null} if the tile could not be read.
+     */
+    synchronized void endFill(int mapID, byte[] pixels) {
+        Fill fill = fills.get(mapID);
+        boolean stale = fill == null || fill.stale;
+        if (fill != null && --fill.readers == 0) {
+            fills.remove(mapID);
+        }
+
+        if (stale || pixels == null || pixels.length > maxSize - maxProtectedSize
+                || protectedTiles.containsKey(mapID)) {
+            return;
+        }
+
+        byte[] previous = probation.put(mapID, pixels);
+        probationSize += pixels.length - (previous != null ? previous.length : 0);
+        evict();
+    }
+
+    /**
+     * Drops the cached tile of a map, once it changed or was deleted.
+     *
+     * @param mapID The Minecraft map ID.
+     */
+    synchronized void invalidate(int mapID) {
+        Fill fill = fills.get(mapID);
+        if (fill != null) {
+            fill.stale = true;
+        }
+
+        byte[] pixels = probation.remove(mapID);
+        if (pixels != null) {
+            probationSize -= pixels.length;
+        }
+        pixels = protectedTiles.remove(mapID);
+        if (pixels != null) {
+            protectedSize -= pixels.length;
+        }
+    }
+
+    /**
+     * Drops the least recently read tiles of the probation segment, then of the protected
+     * one, until the cache fits in its budget.
+     */
+    private void evict() {
+        evict(probation, true);
+        evict(protectedTiles, false);
+    }
+
+    private void evict(LinkedHashMap<Integer, byte[]> segment, boolean probationSegment) {
+        Iterator<byte[]> eldest = segment.values().iterator();
+        while (probationSize + protectedSize > maxSize && eldest.hasNext()) {
+            int length = eldest.next().length;
+            eldest.remove();
+            if (probationSegment) {
+                probationSize -= length;
+            } else {
+                protectedSize -= length;
+            }
+            evictions++;
+        }
+    }
+
+    /**
+     * @return the number of tiles found in the cache.
+     */
+    synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * @return the number of tiles looked for and not found in the cache.
+     */
+    synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * @return the number of tiles dropped to keep the cache within its budget.
+     */
+    synchronized long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * @return the number of bytes of tiles in the cache.
+     */
+    synchronized long getSize() {
+        return probationSize + protectedSize;
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright or © or Copr. Moribus (2013)
+ * Copyright or © or Copr. ProkopyL <prokopylmc@gmail.com> (2015)
+ * Copyright or © or Copr. Amaury Carrade <amaury@carrade.eu> (2016 – 2021)
+ * Copyright or © or Copr. Vlammar <valentin.jabre@gmail.com> (2019 – 2021)
+ *
+ * This software is a computer program whose purpose is to allow insertion of
+ * custom images in a Minecraft world.
+ *
+ * This software is governed by the CeCILL license under French law and
+ * abiding by the rules of distribution of free software.  You can  use,
+ * modify and/ or redistribute the software under the terms of the CeCILL
+ * license as circulated by CEA, CNRS and INRIA at the following URL
+ * "http://www.cecill.info".
+ *
+ * As a counterpart to the access to the source code and  rights to copy,
+ * modify and redistribute granted by the license, users are provided only
+ * with a limited warranty  and the software's author,  the holder of the
+ * economic rights,  and the successive licensors  have only  limited
+ * liability.
+ *
+ * In this respect, the user's attention is drawn to the risks associated
+ * with loading,  using,  modifying and/or developing or reproducing the
+ * software by the user in light of its specific status of free software,
+ * that may mean  that it is complicated to manipulate,  and  that  also
+ * therefore means  that it is reserved for developers  and  experienced
+ * professionals having in-depth computer knowledge. Users are therefore
+ * encouraged to load and test the software's suitability as regards their
+ * requirements in conditions enabling the security of their systems and/or
+ * data to be ensured and,  more generally, to use and operate it in the
+ * same conditions as regards security.
+ *
+ * The fact that you are presently reading this means that you have had
+ * knowledge of the CeCILL license and that you accept its terms.
+ */
+
+package fr.moribus.imageonmap.image;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Persistent storage of map tiles, as palette indices, keyed by Minecraft map ID.
+ * <p>
+ * Implementations must be safe to use from several IO threads at once.
+ */
+public interface TileStore extends Closeable {
+
+    /**
+     * Reads the tile of a map.
+     *
+     * @param mapID The Minecraft map ID.
+     * @return The palette indices, or {@code null} if no tile is stored for this map.
+     * @throws IOException If the tile could not be read.
+     */
+    byte[] read(int mapID) throws IOException;
+
+    /**
+     * Stores the tile of a map, replacing any previous one.
+     *
+     * @param mapID  The Minecraft map ID.
+     * @param pixels The palette indices.
+     * @throws IOException If the tile could not be written.
+     */
+    void write(int mapID, byte[] pixels) throws IOException;
+
+    /**
+     * Removes the tile of a map. Does nothing if there is none.
+     *
+     * @param mapID The Minecraft map ID.
+     * @throws IOException If the removal could not be recorded.
+     */
+    void delete(int mapID) throws IOException;
+
+    /**
+     * @param mapID The Minecraft map ID.
+     * @return {@code true} if a tile is stored for this map.
+     */
+    boolean contains(int mapID);
+
+    /**
+     * @return the IDs of the maps with a stored tile.
+     */
+    int[] getMapIDs();
+
+    /**
+     * Forces everything written so far to the disk.
+     *
+     * @throws IOException If the data could not be synced.
+     */
+    void flush() throws IOException;
+}
@@ -206,10 +206,16 @@ public abstract class ImageMap implements ConfigurationSerializable {
     }
 
     public void rename(String name) {
-        if (getName().equals(name)) {
+        // This instance may come from a store evicted since: rename the one of the current store.
+        ImageMap map = MapManager.resolve(this);
+        if (map == null || map.getName().equals(name)) {
             return;
         }
-        rename(MapManager.getNextAvailableMapID(name, getUserUUID()), name);
+        map.rename(MapManager.getNextAvailableMapID(name, getUserUUID()), name);
+        if (map != this) {
+            rename(map.getId(), name);
+        }
+        MapManager.notifyModification(map);
     }
 
     public enum Type {
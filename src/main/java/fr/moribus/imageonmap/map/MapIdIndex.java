@@ -0,0 +1,203 @@
+/*
+ * Copyright or © or Copr. Moribus (2013)
+ * Copyright or © or Copr. ProkopyL <prokopylmc@gmail.com> (2015)
+ * Copyright or © or Copr. Amaury Carrade <amaury@carrade.eu> (2016 – 2021)
+ * Copyright or © or Copr. Vlammar <valentin.jabre@gmail.com> (2019 – 2021)
+ *
+ * This software is a computer program whose purpose is to allow insertion of
+ * custom images in a Minecraft world.
+ *
+ * This software is governed by the CeCILL license under French law and
+ * abiding by the rules of distribution of free software.  You can  use,
+ * modify and/ or redistribute the software under the terms of the CeCILL
+ * license as circulated by CEA, CNRS and INRIA at the following URL
+ * "http://www.cecill.info".
+ *
+ * As a counterpart to the access to the source code and  rights to copy,
+ * modify and redistribute granted by the license, users are provided only
+ * with a limited warranty  and the software's author,  the holder of the
+ * economic rights,  and the successive licensors  have only  limited
+ * liability.
+ *
+ * In this respect, the user's attention is drawn to the risks associated
+ * with loading,  using,  modifying and/or developing or reproducing the
+ * software by the user in light of its specific status of free software,
+ * that may mean  that it is complicated to manipulate,  and  that  also
+ * therefore means  that it is reserved for developers  and  experienced
+ * professionals having in-depth computer knowledge. Users are therefore
+ * encouraged to load and test the software's suitability as regards their
+ * requirements in conditions enabling the security of their systems and/or
+ * data to be ensured and,  more generally, to use and operate it in the
+ * same conditions as regards security.
+ *
+ * The fact that you are presently reading this means that you have had
+ * knowledge of the CeCILL license and that you accept its terms.
+ */
+
+package fr.moribus.imageonmap.map;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
+
+/**
+ * Index of every loaded {@link ImageMap}, keyed by the IDs of its Minecraft maps.
+ * <p>
+ * This is an open-addressing hash table over primitive {@code int} keys. Writes are
+ * serialized, but lookups take no lock at all: a lookup racing with a write may miss
+ * the map being added or see the map being removed, which is the same outcome as
+ * running just before or after it.
+ */
+final class MapIdIndex {
+    private static final int EMPTY = -1;
+    private static final int MIN_CAPACITY = 64;
+    private static final VarHandle VALUES = MethodHandles.arrayElementVarHandle(ImageMap[].class);
+
+    private volatile Table table = new Table(MIN_CAPACITY);
+    private int size = 0;
+
+    private static final class Table {
+        private final int[] keys;
+        private final ImageMap[] values;
+        /// Slots holding a key, including the ones whose map was removed.
+        private int used = 0;
+
+        private Table(int capacity) {
+            keys = new int[capacity];
+            values = new ImageMap[capacity];
+            Arrays.fill(keys, EMPTY);
+        }
+    }
+
+    private static int slot(int mapID, int mask) {
+        int hash = mapID * 0x9E3779B9;
+        return (hash ^ (hash >>> 16)) & mask;
+    }
+
+    /**
+     * @param mapID The ID of a Minecraft map.
+     * @return the {@link ImageMap} this map belongs to, or {@code null}.
+     */
+    ImageMap get(int mapID) {
+        if (mapID < 0) {
+            return null;
+        }
+
+        Table current = table;
+        int mask = current.keys.length - 1;
+        for (int i = slot(mapID, mask); ; i = (i + 1) & mask) {
+            int key = current.keys[i];
+            if (key == mapID) {
+                return (ImageMap) VALUES.getAcquire(current.values, i);
+            }
+            if (key == EMPTY) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Indexes all the Minecraft maps of the given {@link ImageMap}.
+     */
+    synchronized void add(ImageMap map) {
+        for (int mapID : map.getMapsIDs()) {
+            put(mapID, map);
+        }
+    }
+
+    /**
+     * Removes the Minecraft maps of the given {@link ImageMap}, unless they were since
+     * re-indexed for another map.
+     */
+    synchronized void remove(ImageMap map) {
+        Table current = table;
+        int mask = current.keys.length - 1;
+
+        for (int mapID : map.getMapsIDs()) {
+            for (int i = slot(mapID, mask); ; i = (i + 1) & mask) {
+                int key = current.keys[i];
+                if (key == mapID) {
+                    if (current.values[i] == map) {
+                        VALUES.setRelease(current.values, i, (ImageMap) null);
+                        size--;
+                    }
+                    break;
+                }
+                if (key == EMPTY) {
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the number of indexed Minecraft maps.
+     */
+    synchronized int size() {
+        return size;
+    }
+
+    synchronized void clear() {
+        table = new Table(MIN_CAPACITY);
+        size = 0;
+    }
+
+    private void put(int mapID, ImageMap map) {
+        if (mapID < 0) {
+            return;
+        }
+
+        Table current = table;
+        if ((current.used + 1) * 2 > current.keys.length) {
+            current = rehash(current);
+        }
+
+        int mask = current.keys.length - 1;
+        for (int i = slot(mapID, mask); ; i = (i + 1) & mask) {
+            int key = current.keys[i];
+            if (key == mapID || key == EMPTY) {
+                if (key == EMPTY) {
+                    // The value is published after the key: readers seeing the key
+                    // before the value simply miss it.
+                    current.keys[i] = mapID;
+                    current.used++;
+                }
+                if (current.values[i] == null) {
+                    size++;
+                }
+                VALUES.setRelease(current.values, i, map);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Copies the live entries into a new table, dropping the removed ones, and publishes it.
+     */
+    private Table rehash(Table old) {
+        int capacity = MIN_CAPACITY;
+        while (capacity < (size + 1) * 4) {
+            capacity <<= 1;
+        }
+
+        Table resized = new Table(capacity);
+        int mask = capacity - 1;
+        for (int j = 0; j < old.keys.length; j++) {
+            ImageMap value = old.values[j];
+            if (value == null) {
+                continue;
+            }
+
+            int i = slot(old.keys[j], mask);
+            while (resized.keys[i] != EMPTY) {
+                i = (i + 1) & mask;
+            }
+            resized.keys[i] = old.keys[j];
+            resized.values[i] = value;
+            resized.used++;
+        }
+
+        table = resized;
+        return resized;
+    }
+}
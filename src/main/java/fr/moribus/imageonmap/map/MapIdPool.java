@@ -0,0 +1,340 @@
+/*
+ * Copyright or © or Copr. Moribus (2013)
+ * Copyright or © or Copr. ProkopyL <prokopylmc@gmail.com> (2015)
+ * Copyright or © or Copr. Amaury Carrade <amaury@carrade.eu> (2016 – 2021)
+ * Copyright or © or Copr. Vlammar <valentin.jabre@gmail.com> (2019 – 2021)
+ *
+ * This software is a computer program whose purpose is to allow insertion of
+ * custom images in a Minecraft world.
+ *
+ * This software is governed by the CeCILL license under French law and
+ * abiding by the rules of distribution of free software.  You can  use,
+ * modify and/ or redistribute the software under the terms of the CeCILL
+ * license as circulated by CEA, CNRS and INRIA at the following URL
+ * "http://www.cecill.info".
+ *
+ * As a counterpart to the access to the source code and  rights to copy,
+ * modify and redistribute granted by the license, users are provided only
+ * with a limited warranty  and the software's author,  the holder of the
+ * economic rights,  and the successive licensors  have only  limited
+ * liability.
+ *
+ * In this respect, the user's attention is drawn to the risks associated
+ * with loading,  using,  modifying and/or developing or reproducing the
+ * software by the user in light of its specific status of free software,
+ * that may mean  that it is complicated to manipulate,  and  that  also
+ * therefore means  that it is reserved for developers  and  experienced
+ * professionals having in-depth computer knowledge. Users are therefore
+ * encouraged to load and test the software's suitability as regards their
+ * requirements in conditions enabling the security of their systems and/or
+ * data to be ensured and,  more generally, to use and operate it in the
+ * same conditions as regards security.
+ *
+ * The fact that you are presently reading this means that you have had
+ * knowledge of the CeCILL license and that you accept its terms.
+ */
+
+package fr.moribus.imageonmap.map;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.IntPredicate;
+import org.bukkit.Bukkit;
+import org.bukkit.World;
+
+/**
+ * A reserve of Minecraft maps created ahead of time, so renders can take their map IDs
+ * without waiting for the server thread.
+ * <p>
+ * The reserve is refilled on the server thread by small batches, a few maps per tick, and
+ * the maps of deleted images are put back into it once they have been quarantined for a
+ * while: copies of a deleted image left in the world show the image the map is reused for.
+ * Requests the reserve cannot satisfy right away are served first, in order, as new maps
+ * are created.
+ */
+final class MapIdPool {
+    private static final int MAGIC = 0x494f4d44; // "IOMD"
+    private static final int VERSION = 2;
+
+    /**
+     * Maximal number of Minecraft maps created in a single tick.
+     */
+    static final int BATCH_SIZE = 16;
+
+    private final ArrayDeque<Integer> reserve = new ArrayDeque<>();
+    private final ArrayDeque<Request> requests = new ArrayDeque<>();
+    /**
+     * The maps of deleted images not reused yet, in the order they were deleted.
+     */
+    private final ArrayDeque<Quarantined> quarantine = new ArrayDeque<>();
+    private boolean dirty = false;
+
+    /**
+     * The map of a deleted image, and when it was deleted, in milliseconds since the epoch.
+     */
+    private record Quarantined(int mapID, long since) {
+    }
+
+    /**
+     * A request waiting for new maps to be created.
+     */
+    private static final class Request {
+        private final int[] mapsIDs;
+        private final CompletableFuture<int[]> future = new CompletableFuture<>();
+        private int filled = 0;
+
+        private Request(int count) {
+            this.mapsIDs = new int[count];
+        }
+
+        private boolean isFilled() {
+            return filled == mapsIDs.length;
+        }
+    }
+
+    /**
+     * Takes map IDs from the reserve.
+     *
+     * @param count The number of IDs to take.
+     * @return A future completed with the IDs: right away if the reserve has enough of them,
+     * else on the server thread once enough new maps were created.
+     */
+    CompletableFuture<int[]> take(int count) {
+        Request request = new Request(count);
+        synchronized (this) {
+            if (requests.isEmpty()) {
+                fill(request);
+            }
+            if (!request.isFilled()) {
+                requests.add(request);
+                return request.future;
+            }
+        }
+        request.future.complete(request.mapsIDs);
+        return request.future;
+    }
+
+    /**
+     * Adds the IDs of new maps, or of maps free to reuse, to the reserve.
+     *
+     * @param mapsIDs The IDs.
+     */
+    void release(int[] mapsIDs) {
+        List<Request> served;
+        synchronized (this) {
+            for (int mapID : mapsIDs) {
+                reserve.add(mapID);
+            }
+            dirty = true;
+            served = serveRequests();
+        }
+        complete(served);
+    }
+
+    /**
+     * Quarantines the IDs of the maps of a deleted image, before they are put back into the
+     * reserve.
+     *
+     * @param mapsIDs The IDs.
+     */
+    synchronized void quarantine(int[] mapsIDs) {
+        long now = System.currentTimeMillis();
+        for (int mapID : mapsIDs) {
+            quarantine.add(new Quarantined(mapID, now));
+        }
+        dirty = true;
+    }
+
+    /**
+     * Puts back into the reserve the IDs quarantined for long enough.
+     *
+     * @param delay The time, in milliseconds, the IDs stay quarantined. Negative to never
+     *              reuse them.
+     */
+    void reuseQuarantined(long delay) {
+        if (delay < 0) {
+            return;
+        }
+
+        List<Request> served;
+        synchronized (this) {
+            long threshold = System.currentTimeMillis() - delay;
+            if (quarantine.isEmpty() || quarantine.peek().since() > threshold) {
+                return;
+            }
+            while (!quarantine.isEmpty() && quarantine.peek().since() <= threshold) {
+                reserve.add(quarantine.poll().mapID());
+            }
+            dirty = true;
+            served = serveRequests();
+        }
+        complete(served);
+    }
+
+    /**
+     * Reuses the quarantined IDs whose delay is over, then creates a batch of new maps if
+     * there are pending requests or the reserve is smaller than the given size. Must be
+     * called on the server thread.
+     *
+     * @param reserveSize     The number of maps to keep in reserve.
+     * @param quarantineDelay The time, in milliseconds, the IDs of deleted maps stay
+     *                        quarantined. Negative to never reuse them.
+     */
+    void refill(int reserveSize, long quarantineDelay) {
+        reuseQuarantined(quarantineDelay);
+
+        int missing;
+        synchronized (this) {
+            missing = Math.max(0, reserveSize - reserve.size());
+            for (Request request : requests) {
+                missing += request.mapsIDs.length - request.filled;
+            }
+        }
+        if (missing == 0) {
+            return;
+        }
+
+        World world = Bukkit.getWorlds().get(0);
+        int[] created = new int[Math.min(missing, BATCH_SIZE)];
+        for (int i = 0; i < created.length; i++) {
+            created[i] = Bukkit.createMap(world).getId();
+        }
+
+        release(created);
+    }
+
+    private List<Request> serveRequests() {
+        List<Request> served = new ArrayList<>();
+        while (!requests.isEmpty()) {
+            Request request = requests.peek();
+            fill(request);
+            if (!request.isFilled()) {
+                break;
+            }
+            served.add(requests.poll());
+        }
+        return served;
+    }
+
+    private void fill(Request request) {
+        while (!request.isFilled() && !reserve.isEmpty()) {
+            request.mapsIDs[request.filled++] = reserve.poll();
+            dirty = true;
+        }
+    }
+
+    private static void complete(List<Request> served) {
+        for (Request request : served) {
+            request.future.complete(request.mapsIDs);
+        }
+    }
+
+    synchronized int size() {
+        return reserve.size();
+    }
+
+    synchronized int quarantineSize() {
+        return quarantine.size();
+    }
+
+    synchronized boolean isDirty() {
+        return dirty;
+    }
+
+    /**
+     * Fails the pending requests, and forgets the reserve.
+     */
+    void clear() {
+        List<Request> pending;
+        synchronized (this) {
+            pending = new ArrayList<>(requests);
+            requests.clear();
+            reserve.clear();
+            quarantine.clear();
+            dirty = false;
+        }
+        for (Request request : pending) {
+            request.future.completeExceptionally(new IllegalStateException("The map ID pool was closed."));
+        }
+    }
+
+    /**
+     * Loads the reserve saved in the given file.
+     *
+     * @param file   The pool file.
+     * @param usable Tells whether a saved ID is still free to use: IDs taken after the pool
+     *               was last saved must be dropped.
+     * @throws IOException If the file could not be read.
+     */
+    synchronized void load(Path file, IntPredicate usable) throws IOException {
+        if (!Files.isRegularFile(file)) {
+            return;
+        }
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != MAGIC) {
+                return;
+            }
+            int version = in.readInt();
+            if (version < 1 || version > VERSION) {
+                return;
+            }
+
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                int mapID = in.readInt();
+                if (usable.test(mapID)) {
+                    reserve.add(mapID);
+                }
+            }
+
+            // Version 1 had no quarantine.
+            count = version >= 2 ? in.readInt() : 0;
+            for (int i = 0; i < count; i++) {
+                int mapID = in.readInt();
+                long since = in.readLong();
+                if (usable.test(mapID)) {
+                    quarantine.add(new Quarantined(mapID, since));
+                }
+            }
+        }
+        dirty = false;
+    }
+
+    /**
+     * Atomically replaces the given file with the current reserve.
+     *
+     * @param file The pool file.
+     * @throws IOException If the file could not be written.
+     */
+    synchronized void save(Path file) throws IOException {
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(reserve.size());
+            for (int mapID : reserve) {
+                out.writeInt(mapID);
+            }
+            out.writeInt(quarantine.size());
+            for (Quarantined quarantined : quarantine) {
+                out.writeInt(quarantined.mapID());
+                out.writeLong(quarantined.since());
+            }
+        }
+
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        dirty = false;
+    }
+}
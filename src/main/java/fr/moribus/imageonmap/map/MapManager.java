@@ -36,7 +36,9 @@
 
 package fr.moribus.imageonmap.map;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import dev.tehbrian.imageonmap.ImageOnMap;
+import dev.tehbrian.imageonmap.util.ExceptionLogger;
 import fr.moribus.imageonmap.PluginConfiguration;
 import fr.moribus.imageonmap.image.ImageIOExecutor;
 import fr.moribus.imageonmap.image.PosterImage;
@@ -44,27 +46,108 @@ import fr.moribus.imageonmap.map.MapManagerException.Reason;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.util.ArrayList;
 import java.util.List;
 import java.util.Objects;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
 import org.bukkit.Bukkit;
 import org.bukkit.Material;
 import org.bukkit.inventory.Inventory;
 import org.bukkit.inventory.ItemStack;
 import org.bukkit.inventory.meta.ItemMeta;
 import org.bukkit.inventory.meta.MapMeta;
+import org.bukkit.scheduler.BukkitTask;
 
 public abstract class MapManager {
-    private static final ArrayList<PlayerMapStore> playerMaps = new ArrayList<>();
+    /**
+     * Ticks between two checks for idle stores to evict.
+     */
+    private static final long EVICTION_CHECK_PERIOD = 20 * 60;
+
+    /**
+     * Seconds the final save may take when the plugin is disabled.
+     */
+    private static final long FINAL_SAVE_TIMEOUT = 30;
+
+
+    private static final ConcurrentHashMap<UUID, PlayerMapStore> playerMaps = new ConcurrentHashMap<>();
+    private static final MapIdIndex mapIndex = new MapIdIndex();
+    private static final MapSummary summary = new MapSummary();
+    private static final MapIdPool idPool = new MapIdPool();
+    /**
+     * Players whose store is being loaded in the background for {@link #getMap(int)}.
+     */
+    private static final Set<UUID> backgroundLoads = ConcurrentHashMap.newKeySet();
+    private static BukkitTask idPoolTask = null;
+    private static BukkitTask evictionTask = null;
+    private static ScheduledExecutorService saver = null;
 
     public static void init() {
         load();
+
+        try {
+            idPool.load(getIdPoolFile(), mapID -> summary.getOwner(mapID) == null);
+        } catch (IOException e) {
+            ImageOnMap.get().getLogger().log(Level.WARNING, "Could not read the map ID pool", e);
+        }
+        idPoolTask = Bukkit.getScheduler().runTaskTimer(ImageOnMap.get(),
+                () -> idPool.refill(PluginConfiguration.MAP_ID_RESERVE.get(),
+                        TimeUnit.MINUTES.toMillis(PluginConfiguration.MAP_ID_QUARANTINE.get())), 1, 1);
+
+        saver = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder()
+                        .setDaemon(true)
+                        .setNameFormat("Map Store Saver")
+                        .setUncaughtExceptionHandler(ExceptionLogger::log)
+                        .build()
+        );
+
+        int saveInterval = PluginConfiguration.MAP_SAVE_INTERVAL.get();
+        if (saveInterval > 0) {
+            saver.scheduleWithFixedDelay(MapManager::saveModified, saveInterval, saveInterval, TimeUnit.SECONDS);
+        }
+
+        MapStoreListener.init();
+        evictionTask = Bukkit.getScheduler().runTaskTimer(ImageOnMap.get(), MapManager::evictIdleStores,
+                EVICTION_CHECK_PERIOD, EVICTION_CHECK_PERIOD);
     }
 
     public static void exit() {
-        save();
+        if (evictionTask != null) {
+            evictionTask.cancel();
+            evictionTask = null;
+        }
+        if (idPoolTask != null) {
+            idPoolTask.cancel();
+            idPoolTask = null;
+        }
+
+        if (saver != null) {
+            // Pending evictions run first, then the final save; the periodic save is cancelled.
+            saver.execute(MapManager::saveModified);
+            saver.shutdown();
+            try {
+                if (!saver.awaitTermination(FINAL_SAVE_TIMEOUT, TimeUnit.SECONDS)) {
+                    ImageOnMap.get().getLogger().severe("Some maps files could not be saved in time.");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            saver = null;
+        } else {
+            save();
+        }
+
         playerMaps.clear();
+        mapIndex.clear();
+        summary.clear();
+        idPool.clear();
     }
 
     public static boolean managesMap(ItemStack item) {
@@ -75,14 +158,7 @@ public abstract class MapManager {
             return false;
         }
 
-        synchronized (playerMaps) {
-            for (PlayerMapStore mapStore : playerMaps) {
-                if (mapStore.managesMap(item)) {
-                    return true;
-                }
-            }
-        }
-        return false;
+        return summary.getOwner(getMapIdFromItemStack(item)) != null;
     }
 
     public static ImageMap createMap(UUID playerUUID, int mapID) throws MapManagerException {
@@ -103,6 +179,19 @@ public abstract class MapManager {
         return newMap;
     }
 
+    /**
+     * Takes the IDs of new Minecraft maps from the pool of maps created ahead of time.
+     * <p>
+     * Unlike {@link #getNewMapsIds(int)}, this can be called from any thread, and does not
+     * create all the maps at once on the server thread.
+     *
+     * @param amount The number of maps.
+     * @return A future completed with the IDs, once they are available.
+     */
+    public static CompletableFuture<int[]> takeNewMapsIds(int amount) {
+        return idPool.take(amount);
+    }
+
     public static int[] getNewMapsIds(int amount) {
         int[] mapsIds = new int[amount];
         for (int i = 0; i < amount; i++) {
@@ -127,12 +216,32 @@ public abstract class MapManager {
     }
 
     public static void addMap(ImageMap map) throws MapManagerException {
-        getPlayerMapStore(map.getUserUUID()).addMap(map);
+        // The store may be evicted between its lookup and the addition: retry with the one
+        // replacing it.
+        while (true) {
+            PlayerMapStore store = getPlayerMapStore(map.getUserUUID());
+            synchronized (store) {
+                if (!store.isEvicted()) {
+                    store.addMap(map);
+                    return;
+                }
+            }
+        }
     }
 
     public static void deleteMap(ImageMap map) throws MapManagerException {
-        getPlayerMapStore(map.getUserUUID()).deleteMap(map);
-        ImageIOExecutor.deleteImage(map);
+        while (true) {
+            PlayerMapStore store = getPlayerMapStore(map.getUserUUID());
+            synchronized (store) {
+                if (!store.isEvicted()) {
+                    ImageMap current = resolve(store, map);
+                    store.deleteMap(current != null ? current : map);
+                    break;
+                }
+            }
+        }
+        final int[] mapsIDs = map.getMapsIDs();
+        ImageIOExecutor.deleteImage(map).thenRun(() -> idPool.quarantine(mapsIDs));
     }
 
     public static String getNextAvailableMapID(String mapId, UUID playerUUID) {
@@ -163,24 +272,72 @@ public abstract class MapManager {
 
     /**
      * Returns the {@link ImageMap} this map belongs to.
+     * <p>
+     * On the server thread, the store of its owner is never loaded on the spot: if it is not
+     * loaded yet, it is loaded in the background and {@code null} is returned until then.
      *
      * @param mapId The ID of the Minecraft map.
-     * @return The {@link ImageMap}.
+     * @return The {@link ImageMap}, or {@code null} if it is unknown or not loaded yet.
      */
     public static ImageMap getMap(int mapId) {
-        synchronized (playerMaps) {
-            for (PlayerMapStore mapStore : playerMaps) {
-                if (mapStore.managesMap(mapId)) {
-                    for (ImageMap map : mapStore.getMapList()) {
-                        if (map.managesMap(mapId)) {
-                            return map;
-                        }
+        ImageMap map = mapIndex.get(mapId);
+        if (map != null) {
+            return map;
+        }
+
+        // Not loaded: find out whose map it is without loading every store.
+        UUID owner = summary.getOwner(mapId);
+        if (owner == null) {
+            return null;
+        }
+
+        // Loading parses the maps file, and may wait for the store to be evicted first.
+        if (Bukkit.isPrimaryThread()) {
+            if (backgroundLoads.add(owner)) {
+                Bukkit.getScheduler().runTaskAsynchronously(ImageOnMap.get(), () -> {
+                    try {
+                        getPlayerMapStore(owner);
+                    } finally {
+                        backgroundLoads.remove(owner);
                     }
-                }
+                });
             }
+            return null;
         }
 
-        return null;
+        getPlayerMapStore(owner);
+        return mapIndex.get(mapId);
+    }
+
+    /**
+     * Registers the Minecraft maps of a map added to a store.
+     */
+    static void indexMap(ImageMap map) {
+        mapIndex.add(map);
+        summary.register(map);
+    }
+
+    /**
+     * Unregisters the Minecraft maps of a map removed from a store.
+     */
+    static void unindexMap(ImageMap map) {
+        mapIndex.remove(map);
+        summary.unregister(map);
+    }
+
+    /**
+     * Unregisters the Minecraft maps of a map whose store is evicted. They stay in the summary.
+     */
+    static void unloadMap(ImageMap map) {
+        mapIndex.remove(map);
+    }
+
+    /**
+     * Called once a store is loaded, to drop the maps the summary still recorded for this
+     * player but that were removed from their maps file in the meantime.
+     */
+    static void storeLoaded(PlayerMapStore store, List<ImageMap> maps) {
+        summary.retainOnly(store.getUUID(), maps);
     }
 
     /**
@@ -226,22 +383,149 @@ public abstract class MapManager {
         }
     }
 
+    private static Path getSummaryFile() {
+        return ImageOnMap.get().getMapsDirectory().resolve("summary.dat");
+    }
+
+    private static Path getIdPoolFile() {
+        return ImageOnMap.get().getMapsDirectory().resolve("idpool.dat");
+    }
+
     //Loading
+
+    /**
+     * Loads the map summary. Stores are loaded on demand, except the ones whose maps file was
+     * modified after the summary was saved (or all of them, if there is no summary yet): these
+     * are loaded now to bring the summary up to date.
+     */
     public static void load() {
+        boolean summaryLoaded = false;
+        try {
+            summaryLoaded = summary.load(getSummaryFile());
+        } catch (IOException e) {
+            ImageOnMap.get().getLogger().log(Level.WARNING, "Could not read the map summary, rebuilding it", e);
+        }
+
+        final long summarySavedAt = summaryLoaded ? summary.getSavedAt() : Long.MIN_VALUE;
         try (var list = Files.list(ImageOnMap.get().getMapsDirectory())) {
-            list.map(MapManager::getUUIDFromFile)
+            list.filter(file -> isModifiedAfter(file, summarySavedAt))
+                    .map(MapManager::getUUIDFromFile)
                     .filter(Objects::nonNull)
                     .forEach(MapManager::getPlayerMapStore);
         } catch (IOException e) {
             e.printStackTrace();
         }
+
+        saveSummary();
+    }
+
+    private static boolean isModifiedAfter(Path file, long time) {
+        try {
+            return Files.getLastModifiedTime(file).toMillis() > time;
+        } catch (IOException e) {
+            return true;
+        }
     }
 
     public static void save() {
-        synchronized (playerMaps) {
-            for (PlayerMapStore tmpStore : playerMaps) {
-                tmpStore.save();
+        for (PlayerMapStore tmpStore : playerMaps.values()) {
+            tmpStore.save();
+        }
+        saveSummary();
+    }
+
+    /**
+     * Saves the stores modified since they were last saved, then the summary if needed.
+     */
+    static void saveModified() {
+        for (PlayerMapStore tmpStore : playerMaps.values()) {
+            tmpStore.saveIfDirty();
+        }
+        if (summary.isDirty()) {
+            saveSummary();
+        }
+        if (idPool.isDirty()) {
+            try {
+                idPool.save(getIdPoolFile());
+            } catch (IOException e) {
+                ImageOnMap.get().getLogger().log(Level.SEVERE, "Could not save the map ID pool", e);
+            }
+        }
+    }
+
+    private static void saveSummary() {
+        try {
+            summary.save(getSummaryFile());
+        } catch (IOException e) {
+            ImageOnMap.get().getLogger().log(Level.SEVERE, "Could not save the map summary", e);
+        }
+    }
+
+    /**
+     * Saves and drops from memory the stores of the players who have been offline for longer
+     * than the configured delay.
+     */
+    static void evictIdleStores() {
+        int delay = PluginConfiguration.STORE_EVICTION_DELAY.get();
+        if (delay <= 0) {
+            return;
+        }
+
+        long threshold = System.currentTimeMillis() - TimeUnit.MINUTES.toMillis(delay);
+
+        for (PlayerMapStore store : playerMaps.values()) {
+            if (store.getLastAccess() > threshold || Bukkit.getPlayer(store.getUUID()) != null) {
+                continue;
             }
+
+            // Saving the store is left to the saver thread.
+            saver.execute(() -> {
+                store.evict();
+                playerMaps.remove(store.getUUID(), store);
+            });
+        }
+    }
+
+    /**
+     * Returns the instance of a map held by the store of its owner.
+     * <p>
+     * A map kept across the eviction of its store, by an open GUI for instance, is not the
+     * instance the store holds once it is loaded again: it must be resolved before it is
+     * modified, or the modification would be lost.
+     *
+     * @param map The map, possibly from an evicted store.
+     * @return The map held by the current store, or {@code null} if it was deleted.
+     */
+    public static ImageMap resolve(ImageMap map) {
+        return resolve(getPlayerMapStore(map.getUserUUID()), map);
+    }
+
+    private static ImageMap resolve(PlayerMapStore store, ImageMap map) {
+        int[] mapsIDs = map.getMapsIDs();
+        return mapsIDs.length == 0 ? null : store.getMap(mapsIDs[0]);
+    }
+
+    /**
+     * Schedules the save of the store owning the given map, after it was modified.
+     *
+     * @param map The modified map.
+     */
+    public static void notifyModification(ImageMap map) {
+        PlayerMapStore store = playerMaps.get(map.getUserUUID());
+        if (store != null) {
+            store.markDirty();
+        }
+    }
+
+    /**
+     * Delays the eviction of the store of a player, if it is loaded.
+     *
+     * @param playerUUID The player's UUID.
+     */
+    static void touchPlayerMapStore(UUID playerUUID) {
+        PlayerMapStore store = playerMaps.get(playerUUID);
+        if (store != null) {
+            store.touch();
         }
     }
 
@@ -261,37 +545,35 @@ public abstract class MapManager {
      * @return The count.
      */
     public static int getMapCount() {
-        int mapCount = 0;
-        synchronized (playerMaps) {
-            for (PlayerMapStore tmpStore : playerMaps) {
-                mapCount += tmpStore.getMapCount();
-            }
-        }
-        return mapCount;
+        return summary.getMapCount();
     }
 
+    /**
+     * Returns the store of the given player, loading it on first access.
+     * <p>
+     * Several threads may ask for the same store at once: only one of them loads it,
+     * the others wait for the load to complete. A store being evicted is replaced by a new
+     * one, loaded once the evicted store is written.
+     *
+     * @param playerUUID The player's UUID.
+     * @return The loaded store.
+     */
     public static PlayerMapStore getPlayerMapStore(UUID playerUUID) {
-        PlayerMapStore store;
-        synchronized (playerMaps) {
-            store = getExistingPlayerMapStore(playerUUID);
+        PlayerMapStore store = playerMaps.get(playerUUID);
+        while (store == null || store.isEvicted()) {
+            PlayerMapStore newStore = new PlayerMapStore(playerUUID);
             if (store == null) {
-                store = new PlayerMapStore(playerUUID);
-
-                playerMaps.add(store);
-                store.load();
+                PlayerMapStore previous = playerMaps.putIfAbsent(playerUUID, newStore);
+                store = previous == null ? newStore : previous;
+            } else {
+                // Its maps file must be written before it is read again.
+                store.awaitEviction();
+                store = playerMaps.replace(playerUUID, store, newStore) ? newStore : playerMaps.get(playerUUID);
             }
         }
-        return store;
-    }
 
-    private static PlayerMapStore getExistingPlayerMapStore(UUID playerUUID) {
-        synchronized (playerMaps) {
-            for (PlayerMapStore mapStore : playerMaps) {
-                if (mapStore.getUUID().equals(playerUUID)) {
-                    return mapStore;
-                }
-            }
-        }
-        return null;
+        store.touch();
+        store.ensureLoaded();
+        return store;
     }
 }
@@ -0,0 +1,234 @@
+/*
+ * Copyright or © or Copr. Moribus (2013)
+ * Copyright or © or Copr. ProkopyL <prokopylmc@gmail.com> (2015)
+ * Copyright or © or Copr. Amaury Carrade <amaury@carrade.eu> (2016 – 2021)
+ * Copyright or © or Copr. Vlammar <valentin.jabre@gmail.com> (2019 – 2021)
+ *
+ * This software is a computer program whose purpose is to allow insertion of
+ * custom images in a Minecraft world.
+ *
+ * This software is governed by the CeCILL license under French law and
+ * abiding by the rules of distribution of free software.  You can  use,
+ * modify and/ or redistribute the software under the terms of the CeCILL
+ * license as circulated by CEA, CNRS and INRIA at the following URL
+ * "http://www.cecill.info".
+ *
+ * As a counterpart to the access to the source code and  rights to copy,
+ * modify and redistribute granted by the license, users are provided only
+ * with a limited warranty  and the software's author,  the holder of the
+ * economic rights,  and the successive licensors  have only  limited
+ * liability.
+ *
+ * In this respect, the user's attention is drawn to the risks associated
+ * with loading,  using,  modifying and/or developing or reproducing the
+ * software by the user in light of its specific status of free software,
+ * that may mean  that it is complicated to manipulate,  and  that  also
+ * therefore means  that it is reserved for developers  and  experienced
+ * professionals having in-depth computer knowledge. Users are therefore
+ * encouraged to load and test the software's suitability as regards their
+ * requirements in conditions enabling the security of their systems and/or
+ * data to be ensured and,  more generally, to use and operate it in the
+ * same conditions as regards security.
+ *
+ * The fact that you are presently reading this means that you have had
+ * knowledge of the CeCILL license and that you accept its terms.
+ */
+
+package fr.moribus.imageonmap.map;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The owner of every Minecraft map used by ImageOnMap, including the ones of the
+ * stores that are not loaded.
+ * <p>
+ * It is persisted in a small binary file, so the global map count and the owner of a
+ * map are known without parsing the maps file of every player.
+ */
+final class MapSummary {
+    private static final int MAGIC = 0x494f4d4d; // "IOMM"
+    private static final int VERSION = 1;
+
+    private final ConcurrentHashMap<Integer, UUID> owners = new ConcurrentHashMap<>();
+    private final Map<UUID, Set<Integer>> mapsByOwner = new HashMap<>();
+    private long savedAt = 0;
+    private boolean dirty = false;
+
+    /**
+     * @param mapID The ID of a Minecraft map.
+     * @return the UUID of the player owning this map, or {@code null} if it is not an ImageOnMap map.
+     */
+    UUID getOwner(int mapID) {
+        return owners.get(mapID);
+    }
+
+    /**
+     * @return the total number of Minecraft maps used by ImageOnMap images.
+     */
+    int getMapCount() {
+        return owners.size();
+    }
+
+    /**
+     * @return when this summary was last saved or loaded, in milliseconds since the epoch.
+     */
+    synchronized long getSavedAt() {
+        return savedAt;
+    }
+
+    /**
+     * @return {@code true} if this summary changed since it was last saved or loaded.
+     */
+    synchronized boolean isDirty() {
+        return dirty;
+    }
+
+    synchronized void register(ImageMap map) {
+        UUID owner = map.getUserUUID();
+        Set<Integer> ownedMaps = mapsByOwner.computeIfAbsent(owner, uuid -> new HashSet<>());
+
+        for (int mapID : map.getMapsIDs()) {
+            UUID previousOwner = owners.put(mapID, owner);
+            if (previousOwner != null && !previousOwner.equals(owner)) {
+                forget(previousOwner, mapID);
+            }
+            ownedMaps.add(mapID);
+        }
+        dirty = true;
+    }
+
+    synchronized void unregister(ImageMap map) {
+        UUID owner = map.getUserUUID();
+        for (int mapID : map.getMapsIDs()) {
+            if (owners.remove(mapID, owner)) {
+                forget(owner, mapID);
+                dirty = true;
+            }
+        }
+    }
+
+    /**
+     * Drops the maps recorded for a player that are not in their freshly loaded store anymore.
+     */
+    synchronized void retainOnly(UUID owner, Collection<ImageMap> maps) {
+        Set<Integer> ownedMaps = mapsByOwner.get(owner);
+        if (ownedMaps == null) {
+            return;
+        }
+
+        Set<Integer> loadedMaps = new HashSet<>();
+        for (ImageMap map : maps) {
+            for (int mapID : map.getMapsIDs()) {
+                loadedMaps.add(mapID);
+            }
+        }
+
+        if (ownedMaps.removeIf(mapID -> !loadedMaps.contains(mapID) && owners.remove(mapID, owner))) {
+            dirty = true;
+        }
+        if (ownedMaps.isEmpty()) {
+            mapsByOwner.remove(owner);
+        }
+    }
+
+    private void forget(UUID owner, int mapID) {
+        Set<Integer> ownedMaps = mapsByOwner.get(owner);
+        if (ownedMaps != null) {
+            ownedMaps.remove(mapID);
+            if (ownedMaps.isEmpty()) {
+                mapsByOwner.remove(owner);
+            }
+        }
+    }
+
+    synchronized void clear() {
+        owners.clear();
+        mapsByOwner.clear();
+        savedAt = 0;
+        dirty = false;
+    }
+
+    /**
+     * Loads the summary saved in the given file, replacing the current content.
+     *
+     * @param file The summary file.
+     * @return {@code false} if there is no usable summary in this file.
+     * @throws IOException If the file could not be read.
+     */
+    synchronized boolean load(Path file) throws IOException {
+        if (!Files.isRegularFile(file)) {
+            return false;
+        }
+
+        clear();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                return false;
+            }
+
+            long fileSavedAt = in.readLong();
+            int ownerCount = in.readInt();
+            for (int i = 0; i < ownerCount; i++) {
+                UUID owner = new UUID(in.readLong(), in.readLong());
+                Set<Integer> ownedMaps = new HashSet<>();
+                int mapCount = in.readInt();
+                for (int j = 0; j < mapCount; j++) {
+                    int mapID = in.readInt();
+                    owners.put(mapID, owner);
+                    ownedMaps.add(mapID);
+                }
+                mapsByOwner.put(owner, ownedMaps);
+            }
+
+            savedAt = fileSavedAt;
+            return true;
+        } catch (IOException ex) {
+            clear();
+            throw ex;
+        }
+    }
+
+    /**
+     * Atomically replaces the given file with the current summary.
+     *
+     * @param file The summary file.
+     * @throws IOException If the file could not be written.
+     */
+    synchronized void save(Path file) throws IOException {
+        long now = System.currentTimeMillis();
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(now);
+            out.writeInt(mapsByOwner.size());
+            for (Map.Entry<UUID, Set<Integer>> entry : mapsByOwner.entrySet()) {
+                out.writeLong(entry.getKey().getMostSignificantBits());
+                out.writeLong(entry.getKey().getLeastSignificantBits());
+                out.writeInt(entry.getValue().size());
+                for (int mapID : entry.getValue()) {
+                    out.writeInt(mapID);
+                }
+            }
+        }
+
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        savedAt = now;
+        dirty = false;
+    }
+}
@@ -40,8 +40,10 @@ import dev.tehbrian.imageonmap.ImageOnMap;
 import fr.moribus.imageonmap.PluginConfiguration;
 import fr.moribus.imageonmap.map.MapManagerException.Reason;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -64,6 +66,18 @@ public class PlayerMapStore implements ConfigurationSerializable {
     private int mapCount = 0;
     private FileConfiguration mapConfig = null;
     private Path mapsFile = null;
+    private volatile LoadState loadState = LoadState.UNLOADED;
+    private volatile long lastAccess = System.currentTimeMillis();
+    private boolean evicted = false;
+    private volatile boolean dirty = false;
+    /**
+     * Held while the maps file is written, so two saves cannot interleave.
+     */
+    private final Object saveLock = new Object();
+
+    private enum LoadState {
+        UNLOADED, LOADING, LOADED
+    }
 
     public PlayerMapStore(UUID playerUUID) {
         this.playerUUID = playerUUID;
@@ -106,6 +120,8 @@ public class PlayerMapStore implements ConfigurationSerializable {
     private void add_Map(ImageMap map) {
         mapList.add(map);
         mapCount += map.getMapCount();
+        dirty = true;
+        MapManager.indexMap(map);
     }
 
     public synchronized void deleteMap(ImageMap map) throws MapManagerException {
@@ -117,6 +133,8 @@ public class PlayerMapStore implements ConfigurationSerializable {
             throw new MapManagerException(Reason.IMAGEMAP_DOES_NOT_EXIST);
         }
         mapCount -= map.getMapCount();
+        dirty = true;
+        MapManager.unindexMap(map);
     }
 
     public synchronized boolean mapExists(String id) {
@@ -160,6 +178,20 @@ public class PlayerMapStore implements ConfigurationSerializable {
         return null;
     }
 
+    /**
+     * @param mapID A Minecraft map ID.
+     * @return The map of this store showing this Minecraft map, or {@code null} if there is none.
+     */
+    public synchronized ImageMap getMap(int mapID) {
+        for (ImageMap map : mapList) {
+            if (map.managesMap(mapID)) {
+                return map;
+            }
+        }
+
+        return null;
+    }
+
     /* ===== Getters & Setters ===== */
 
     public void checkMapLimit(ImageMap map) throws MapManagerException {
@@ -239,26 +271,145 @@ public class PlayerMapStore implements ConfigurationSerializable {
         return mapConfig;
     }
 
+    /**
+     * Loads this store, unless it is already loaded.
+     * <p>
+     * Concurrent callers wait for the first one to finish loading. A nested call from the
+     * loading thread itself (maps looking for a free name while being loaded) returns
+     * immediately.
+     */
+    void ensureLoaded() {
+        if (loadState == LoadState.LOADED) {
+            return;
+        }
+
+        synchronized (this) {
+            if (loadState != LoadState.UNLOADED) {
+                return;
+            }
+            loadState = LoadState.LOADING;
+            try {
+                load();
+                MapManager.storeLoaded(this, mapList);
+            } finally {
+                loadState = LoadState.LOADED;
+            }
+        }
+    }
+
+    /**
+     * Marks this store as recently used, delaying its eviction.
+     */
+    void touch() {
+        lastAccess = System.currentTimeMillis();
+    }
+
+    long getLastAccess() {
+        return lastAccess;
+    }
+
+    /**
+     * @return {@code true} once this store was saved and dropped from memory: it must not be modified anymore.
+     */
+    synchronized boolean isEvicted() {
+        return evicted;
+    }
+
+    /**
+     * Saves this store if needed and unregisters its maps from the in-memory index. Their
+     * owner stays known through the map summary, so they can be loaded again later.
+     */
+    void evict() {
+        synchronized (saveLock) {
+            String data;
+            synchronized (this) {
+                evicted = true;
+                for (ImageMap map : mapList) {
+                    MapManager.unloadMap(map);
+                }
+                data = dirty ? serializeConfig() : null;
+            }
+            if (data != null) {
+                write(data);
+            }
+        }
+    }
+
+    /**
+     * Waits until the maps file of this store, once it is evicted, is written.
+     */
+    void awaitEviction() {
+        synchronized (saveLock) {
+            // The eviction holds the save lock from the moment the store is marked evicted
+            // until its maps file is written.
+        }
+    }
+
+    /**
+     * Marks this store as modified, so it is written on the next save.
+     */
+    void markDirty() {
+        dirty = true;
+    }
+
+    /**
+     * @return {@code true} if this store was modified since it was last saved.
+     */
+    boolean isDirty() {
+        return dirty;
+    }
+
     public void load() {
         if (mapsFile == null) {
             mapsFile = ImageOnMap.get().getMapsDirectory().resolve(playerUUID.toString() + ".yml");
-            if (!Files.isRegularFile(mapsFile)) {
-                save();
-            }
         }
         mapConfig = YamlConfiguration.loadConfiguration(mapsFile.toFile());
         loadFromConfig(getToolConfig().getConfigurationSection("PlayerMapStore"));
+        dirty = false;
     }
 
     public void save() {
-        if (mapsFile == null || mapConfig == null) {
-            return;
+        synchronized (saveLock) {
+            String data;
+            synchronized (this) {
+                if (mapsFile == null || mapConfig == null) {
+                    return;
+                }
+                data = serializeConfig();
+            }
+            write(data);
         }
-        getToolConfig().set("PlayerMapStore", this.serialize());
-        try {
-            getToolConfig().save(mapsFile.toFile());
+    }
 
+    /**
+     * Saves this store, unless it was not modified since it was last saved.
+     */
+    void saveIfDirty() {
+        if (dirty) {
+            save();
+        }
+    }
+
+    /**
+     * Takes a snapshot of this store as YAML. The store is considered saved from now on:
+     * modifications made while the snapshot is written will be written by the next save.
+     */
+    private String serializeConfig() {
+        dirty = false;
+        mapConfig.set("PlayerMapStore", this.serialize());
+        return mapConfig.saveToString();
+    }
+
+    /**
+     * Atomically replaces the maps file, so a crash while saving cannot leave a truncated file.
+     */
+    private void write(String data) {
+        Path temp = mapsFile.resolveSibling(mapsFile.getFileName() + ".tmp");
+        try {
+            Files.writeString(temp, data, StandardCharsets.UTF_8);
+            Files.move(temp, mapsFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
         } catch (IOException ex) {
+            dirty = true;
             ImageOnMap.get().getLogger().log(Level.SEVERE, "Could not save maps file for player '" + playerUUID.toString() + "'", ex);
         }
     }
@@ -0,0 +1,162 @@
+/*
+ * Copyright or © or Copr. Moribus (2013)
+ * Copyright or © or Copr. ProkopyL <prokopylmc@gmail.com> (2015)
+ * Copyright or © or Copr. Amaury Carrade <amaury@carrade.eu> (2016 – 2021)
+ * Copyright or © or Copr. Vlammar <valentin.jabre@gmail.com> (2019 – 2021)
+ *
+ * This software is a computer program whose purpose is to allow insertion of
+ * custom images in a Minecraft world.
+ *
+ * This software is governed by the CeCILL license under French law and
+ * abiding by the rules of distribution of free software.  You can  use,
+ * modify and/ or redistribute the software under the terms of the CeCILL
+ * license as circulated by CEA, CNRS and INRIA at the following URL
+ * "http://www.cecill.info".
+ *
+ * As a counterpart to the access to the source code and  rights to copy,
+ * modify and redistribute granted by the license, users are provided only
+ * with a limited warranty  and the software's author,  the holder of the
+ * economic rights,  and the successive licensors  have only  limited
+ * liability.
+ *
+ * In this respect, the user's attention is drawn to the risks associated
+ * with loading,  using,  modifying and/or developing or reproducing the
+ * software by the user in light of its specific status of free software,
+ * that may mean  that it is complicated to manipulate,  and  that  also
+ * therefore means  that it is reserved for developers  and  experienced
+ * professionals having in-depth computer knowledge. Users are therefore
+ * encouraged to load and test the software's suitability as regards their
+ * requirements in conditions enabling the security of their systems and/or
+ * data to be ensured and,  more generally, to use and operate it in the
+ * same conditions as regards security.
+ *
+ * The fact that you are presently reading this means that you have had
+ * knowledge of the CeCILL license and that you accept its terms.
+ */
+
+package fr.moribus.imageonmap.image;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+class DithererTest {
+
+    private static final int[] PALETTE = {
+            -1, 0x000000, 0xFFFFFF, 0x808080, 0xFF0000, 0x00FF00, 0x0000FF, 0xFFFF00, 0x00FFFF, 0xFF00FF,
+    };
+    private static final PaletteTable TABLE = PaletteTable.build(PALETTE, PaletteTable.ColorDistance.WEIGHTED_RGB);
+
+    private static int[] noise(int width, int height, long seed) {
+        Random random = new Random(seed);
+        int[] argb = new int[width * height];
+        for (int i = 0; i < argb.length; i++) {
+            // A few transparent pixels, which stop the error.
+            argb[i] = (random.nextInt(20) == 0 ? 0 : 0xFF000000) | random.nextInt(1 << 24);
+        }
+        return argb;
+    }
+
+    /**
+     * Dithers a whole image, split into bands of the given height.
+     */
+    private static byte[] dither(ImageUtils.DitherMode mode, int[] argb, int width, int bandHeight) {
+        int height = argb.length / width;
+        Ditherer ditherer = new Ditherer(mode, width, TABLE);
+        byte[] out = new byte[argb.length];
+        for (int y = 0; y < height; y += bandHeight) {
+            int rows = Math.min(bandHeight, height - y);
+            int[] band = Arrays.copyOfRange(argb, y * width, (y + rows) * width);
+            byte[] indices = new byte[band.length];
+            ditherer.dither(band, rows, indices);
+            System.arraycopy(indices, 0, out, y * width, indices.length);
+        }
+        return out;
+    }
+
+    /**
+     * Floyd–Steinberg, one pixel after the other, with the same integer arithmetic.
+     */
+    private static byte[] floydSteinberg(int[] argb, int width) {
+        int height = argb.length / width;
+        int[][] errors = new int[height + 1][(width + 2) * 3];
+        byte[] out = new byte[argb.length];
+        for (int y = 0; y < height; y++) {
+            int[] carry = new int[3];
+            for (int x = 0; x < width; x++) {
+                int color = argb[y * width + x];
+                int e = (x + 1) * 3;
+                if ((color >>> 24) < PaletteTable.ALPHA_THRESHOLD) {
+                    out[y * width + x] = PaletteTable.TRANSPARENT;
+                    Arrays.fill(carry, 0);
+                    continue;
+                }
+
+                int[] channels = new int[3];
+                for (int c = 0; c < 3; c++) {
+                    int level = (color >> (16 - 8 * c)) & 0xFF;
+                    channels[c] = Math.max(0, Math.min(255, level + ((errors[y][e + c] + carry[c] + 8) >> 4)));
+                }
+                byte index = TABLE.match(0xFF000000 | channels[0] << 16 | channels[1] << 8 | channels[2]);
+                int matched = TABLE.getColor(index);
+                out[y * width + x] = index;
+
+                for (int c = 0; c < 3; c++) {
+                    int error = channels[c] - ((matched >> (16 - 8 * c)) & 0xFF);
+                    carry[c] = error * 7;
+                    errors[y + 1][e - 3 + c] += error * 3;
+                    errors[y + 1][e + c] += error * 5;
+                    errors[y + 1][e + 3 + c] += error;
+                }
+            }
+        }
+        return out;
+    }
+
+    @Test
+    void diffusesLikeASequentialFloydSteinberg() {
+        int width = 300;
+        int[] argb = noise(width, 100, 1);
+        byte[] expected = floydSteinberg(argb, width);
+
+        assertArrayEquals(expected, dither(ImageUtils.DitherMode.FLOYD_STEINBERG, argb, width, 100));
+        assertArrayEquals(expected, dither(ImageUtils.DitherMode.FLOYD_STEINBERG, argb, width, 7));
+        assertArrayEquals(expected, dither(ImageUtils.DitherMode.FLOYD_STEINBERG, argb, width, 1));
+    }
+
+    @Test
+    void ordersTheSameAcrossBands() {
+        int width = 200;
+        int[] argb = noise(width, 64, 2);
+        byte[] whole = dither(ImageUtils.DitherMode.BAYER, argb, width, 64);
+
+        assertArrayEquals(whole, dither(ImageUtils.DitherMode.BAYER, argb, width, 5));
+        for (int i = 0; i < argb.length; i++) {
+            if ((argb[i] >>> 24) < PaletteTable.ALPHA_THRESHOLD) {
+                assertEquals(PaletteTable.TRANSPARENT, whole[i]);
+            }
+        }
+    }
+
+    @Test
+    void keepsTheAverageLevel() {
+        // Between the black, gray and white entries of the palette.
+        int width = 128;
+        int[] argb = new int[width * width];
+        Arrays.fill(argb, 0xFF404040);
+
+        for (ImageUtils.DitherMode mode : new ImageUtils.DitherMode[] {
+                ImageUtils.DitherMode.BAYER, ImageUtils.DitherMode.FLOYD_STEINBERG}) {
+            long total = 0;
+            for (byte index : dither(mode, argb, width, 128)) {
+                total += TABLE.getColor(index) & 0xFF;
+            }
+            double average = (double) total / argb.length;
+            assertTrue(Math.abs(average - 0x40) < 8, mode + " averages " + average);
+        }
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright or © or Copr. Moribus (2013)
+ * Copyright or © or Copr. ProkopyL <prokopylmc@gmail.com> (2015)
+ * Copyright or © or Copr. Amaury Carrade <amaury@carrade.eu> (2016 – 2021)
+ * Copyright or © or Copr. Vlammar <valentin.jabre@gmail.com> (2019 – 2021)
+ *
+ * This software is a computer program whose purpose is to allow insertion of
+ * custom images in a Minecraft world.
+ *
+ * This software is governed by the CeCILL license under French law and
+ * abiding by the rules of distribution of free software.  You can  use,
+ * modify and/ or redistribute the software under the terms of the CeCILL
+ * license as circulated by CEA, CNRS and INRIA at the following URL
+ * "http://www.cecill.info".
+ *
+ * As a counterpart to the access to the source code and  rights to copy,
+ * modify and redistribute granted by the license, users are provided only
+ * with a limited warranty  and the software's author,  the holder of the
+ * economic rights,  and the successive licensors  have only  limited
+ * liability.
+ *
+ * In this respect, the user's attention is drawn to the risks associated
+ * with loading,  using,  modifying and/or developing or reproducing the
+ * software by the user in light of its specific status of free software,
+ * that may mean  that it is complicated to manipulate,  and  that  also
+ * therefore means  that it is reserved for developers  and  experienced
+ * professionals having in-depth computer knowledge. Users are therefore
+ * encouraged to load and test the software's suitability as regards their
+ * requirements in conditions enabling the security of their systems and/or
+ * data to be ensured and,  more generally, to use and operate it in the
+ * same conditions as regards security.
+ *
+ * The fact that you are presently reading this means that you have had
+ * knowledge of the CeCILL license and that you accept its terms.
+ */
+
+package fr.moribus.imageonmap.image;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URL;
+import java.net.http.HttpClient;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class DownloadCacheTest {
+
+    private static final Duration DAY = Duration.ofDays(1);
+
+    @TempDir
+    Path directory;
+
+    private final ImageSource source = new ImageSource(HttpClient.newHttpClient(), () -> Duration.ofSeconds(5),
+            () -> 1024 * 1024);
+
+    private static byte[] image(int seed, int size) {
+        byte[] data = new byte[size];
+        for (int i = 0; i < size; i++) {
+            data[i] = (byte) (seed * 31 + i);
+        }
+        return data;
+    }
+
+    /**
+     * Publishes an image as a file, and returns its link.
+     */
+    private URL publish(String name, byte[] data) throws IOException {
+        Path file = directory.resolve("web").resolve(name);
+        Files.createDirectories(file.getParent());
+        Files.write(file, data);
+        return file.toUri().toURL();
+    }
+
+    private DownloadCache open(long maxSize, Duration timeToLive) throws IOException {
+        return DownloadCache.open(directory.resolve("cache"), source, () -> maxSize, () -> timeToLive);
+    }
+
+    private long contentFiles() throws IOException {
+        try (Stream<Path> files = Files.list(directory.resolve("cache"))) {
+            return files.filter(file -> file.toString().endsWith(".bin")).count();
+        }
+    }
+
+    @Test
+    void reusesRecentDownloadsAcrossRestarts() throws IOException {
+        URL url = publish("a.png", image(1, 100));
+        DownloadCache cache = open(10_000, DAY);
+        assertArrayEquals(image(1, 100), cache.fetch(url, false));
+        cache.close();
+
+        publish("a.png", image(2, 100));
+        cache = open(10_000, DAY);
+        assertArrayEquals(image(1, 100), cache.fetch(url, false));
+        // Updates always ask again.
+        assertArrayEquals(image(2, 100), cache.fetch(url, true));
+        cache.close();
+
+        assertArrayEquals(image(2, 100), open(10_000, DAY).fetch(url, false));
+        assertEquals(1, contentFiles());
+    }
+
+    @Test
+    void downloadsExpiredEntriesAgain() throws IOException {
+        URL url = publish("a.png", image(1, 100));
+        DownloadCache cache = open(10_000, Duration.ZERO);
+        assertArrayEquals(image(1, 100), cache.fetch(url, false));
+
+        publish("a.png", image(2, 100));
+        assertArrayEquals(image(2, 100), cache.fetch(url, false));
+        assertEquals(1, contentFiles());
+    }
+
+    @Test
+    void sharesTheFilesOfIdenticalImages() throws IOException {
+        URL first = publish("a.png", image(1, 100));
+        URL second = publish("b.png", image(1, 100));
+        DownloadCache cache = open(10_000, DAY);
+        cache.fetch(first, false);
+        cache.fetch(second, false);
+        assertEquals(1, contentFiles());
+
+        // The file stays as long as one entry points to it.
+        publish("a.png", image(2, 100));
+        cache.fetch(first, true);
+        assertEquals(2, contentFiles());
+        publish("b.png", image(3, 100));
+        cache.fetch(second, true);
+        assertEquals(2, contentFiles());
+    }
+
+    @Test
+    void dropsTheLeastRecentlyUsedEntries() throws IOException {
+        URL first = publish("a.png", image(1, 100));
+        URL second = publish("b.png", image(2, 100));
+        URL third = publish("c.png", image(3, 100));
+        DownloadCache cache = open(250, DAY);
+        cache.fetch(first, false);
+        cache.fetch(second, false);
+        cache.fetch(first, false);
+        cache.fetch(third, false);
+        assertEquals(2, contentFiles());
+
+        publish("a.png", image(4, 100));
+        publish("b.png", image(5, 100));
+        assertArrayEquals(image(1, 100), cache.fetch(first, false));
+        assertArrayEquals(image(5, 100), cache.fetch(second, false));
+    }
+
+    @Test
+    void deletesUnknownFilesOnOpen() throws IOException {
+        URL url = publish("a.png", image(1, 100));
+        DownloadCache cache = open(10_000, DAY);
+        cache.fetch(url, false);
+        cache.close();
+
+        Path stray = directory.resolve("cache").resolve("stray.bin");
+        Path temp = directory.resolve("cache").resolve("download.tmp");
+        Files.write(stray, new byte[1]);
+        Files.write(temp, new byte[1]);
+
+        open(10_000, DAY);
+        assertFalse(Files.exists(stray));
+        assertFalse(Files.exists(temp));
+        assertEquals(1, contentFiles());
+        assertTrue(Files.exists(directory.resolve("cache").resolve("index.dat")));
+    }
+
+    @Test
+    void normalizesLinks() throws IOException {
+        assertEquals(DownloadCache.normalize(URI.create("https://example.com/a.png").toURL()),
+                DownloadCache.normalize(URI.create("HTTPS://Example.COM:443/a.png#top").toURL()));
+        assertEquals("http://example.com/", DownloadCache.normalize(URI.create("http://example.com").toURL()));
+        assertNotEquals(DownloadCache.normalize(URI.create("https://example.com/a.png?x=1").toURL()),
+                DownloadCache.normalize(URI.create("https://example.com/a.png?x=2").toURL()));
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright or © or Copr. Moribus (2013)
+ * Copyright or © or Copr. ProkopyL <prokopylmc@gmail.com> (2015)
+ * Copyright or © or Copr. Amaury Carrade <amaury@carrade.eu> (2016 – 2021)
+ * Copyright or © or Copr. Vlammar <valentin.jabre@gmail.com> (2019 – 2021)
+ *
+ * This software is a computer program whose purpose is to allow insertion of
+ * custom images in a Minecraft world.
+ *
+ * This software is governed by the CeCILL license under French law and
+ * abiding by the rules of distribution of free software.  You can  use,
+ * modify and/ or redistribute the software under the terms of the CeCILL
+ * license as circulated by CEA, CNRS and INRIA at the following URL
+ * "http://www.cecill.info".
+ *
+ * As a counterpart to the access to the source code and  rights to copy,
+ * modify and redistribute granted by the license, users are provided only
+ * with a limited warranty  and the software's author,  the holder of the
+ * economic rights,  and the successive licensors  have only  limited
+ * liability.
+ *
+ * In this respect, the user's attention is drawn to the risks associated
+ * with loading,  using,  modifying and/or developing or reproducing the
+ * software by the user in light of its specific status of free software,
+ * that may mean  that it is complicated to manipulate,  and  that  also
+ * therefore means  that it is reserved for developers  and  experienced
+ * professionals having in-depth computer knowledge. Users are therefore
+ * encouraged to load and test the software's suitability as regards their
+ * requirements in conditions enabling the security of their systems and/or
+ * data to be ensured and,  more generally, to use and operate it in the
+ * same conditions as regards security.
+ *
+ * The fact that you are presently reading this means that you have had
+ * knowledge of the CeCILL license and that you accept its terms.
+ */
+
+package fr.moribus.imageonmap.image;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+class LabPaletteTreeTest {
+
+    private static int[] palette(long seed) {
+        Random random = new Random(seed);
+        int[] palette = new int[256];
+        for (int i = 0; i < palette.length; i++) {
+            palette[i] = i < 4 ? -1 : random.nextInt(1 << 24);
+        }
+        // The same colors on both sides of index 128, where palette indices turn negative as bytes.
+        palette[200] = palette[10];
+        palette[250] = palette[130];
+        palette[255] = palette[140];
+        return palette;
+    }
+
+    /**
+     * Scans the whole palette for the nearest entry, the lowest index first.
+     */
+    private static byte scan(int[] palette, int rgb) {
+        float[] target = LabPaletteTree.toLab(rgb);
+        int best = -1;
+        float bestDistance = Float.MAX_VALUE;
+        for (int i = 0; i < palette.length; i++) {
+            if (palette[i] < 0) {
+                continue;
+            }
+            float[] lab = LabPaletteTree.toLab(palette[i]);
+            float dl = lab[0] - target[0];
+            float da = lab[1] - target[1];
+            float db = lab[2] - target[2];
+            float distance = dl * dl + da * da + db * db;
+            if (distance < bestDistance) {
+                bestDistance = distance;
+                best = i;
+            }
+        }
+        return (byte) best;
+    }
+
+    @Test
+    void findsTheSameEntriesAsAScan() {
+        for (long seed = 0; seed < 4; seed++) {
+            int[] palette = palette(seed);
+            LabPaletteTree tree = new LabPaletteTree(palette);
+            Random random = new Random(seed);
+
+            for (int i = 0; i < 20_000; i++) {
+                int rgb = random.nextInt(1 << 24);
+                assertEquals(scan(palette, rgb), tree.nearest(rgb));
+            }
+        }
+    }
+
+    @Test
+    void breaksTiesWithTheLowestIndex() {
+        for (long seed = 0; seed < 4; seed++) {
+            int[] palette = palette(seed);
+            LabPaletteTree tree = new LabPaletteTree(palette);
+
+            assertEquals((byte) 10, tree.nearest(palette[200]));
+            assertEquals((byte) 130, tree.nearest(palette[250]));
+            assertEquals((byte) 140, tree.nearest(palette[255]));
+            for (int rgb : palette) {
+                if (rgb >= 0) {
+                    assertEquals(scan(palette, rgb), tree.nearest(rgb));
+                }
+            }
+        }
+    }
+
+    @Test
+    void isTransparentWithoutOpaqueColors() {
+        LabPaletteTree tree = new LabPaletteTree(new int[] {-1, -1, -1});
+        assertEquals(PaletteTable.TRANSPARENT, tree.nearest(0x336699));
+    }
+}
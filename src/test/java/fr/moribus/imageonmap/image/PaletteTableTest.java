@@ -0,0 +1,165 @@
+/*
+ * Copyright or © or Copr. Moribus (2013)
+ * Copyright or © or Copr. ProkopyL <prokopylmc@gmail.com> (2015)
+ * Copyright or © or Copr. Amaury Carrade <amaury@carrade.eu> (2016 – 2021)
+ * Copyright or © or Copr. Vlammar <valentin.jabre@gmail.com> (2019 – 2021)
+ *
+ * This software is a computer program whose purpose is to allow insertion of
+ * custom images in a Minecraft world.
+ *
+ * This software is governed by the CeCILL license under French law and
+ * abiding by the rules of distribution of free software.  You can  use,
+ * modify and/ or redistribute the software under the terms of the CeCILL
+ * license as circulated by CEA, CNRS and INRIA at the following URL
+ * "http://www.cecill.info".
+ *
+ * As a counterpart to the access to the source code and  rights to copy,
+ * modify and redistribute granted by the license, users are provided only
+ * with a limited warranty  and the software's author,  the holder of the
+ * economic rights,  and the successive licensors  have only  limited
+ * liability.
+ *
+ * In this respect, the user's attention is drawn to the risks associated
+ * with loading,  using,  modifying and/or developing or reproducing the
+ * software by the user in light of its specific status of free software,
+ * that may mean  that it is complicated to manipulate,  and  that  also
+ * therefore means  that it is reserved for developers  and  experienced
+ * professionals having in-depth computer knowledge. Users are therefore
+ * encouraged to load and test the software's suitability as regards their
+ * requirements in conditions enabling the security of their systems and/or
+ * data to be ensured and,  more generally, to use and operate it in the
+ * same conditions as regards security.
+ *
+ * The fact that you are presently reading this means that you have had
+ * knowledge of the CeCILL license and that you accept its terms.
+ */
+
+package fr.moribus.imageonmap.image;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class PaletteTableTest {
+
+    @TempDir
+    Path directory;
+
+    private static int[] palette(long seed) {
+        Random random = new Random(seed);
+        int[] palette = new int[200];
+        for (int i = 0; i < palette.length; i++) {
+            palette[i] = i < 4 ? -1 : random.nextInt(1 << 24);
+        }
+        return palette;
+    }
+
+    /**
+     * The color every color of a bucket of the table is matched as.
+     */
+    private static int bucketCenter(int rgb) {
+        int half = 1 << (8 - PaletteTable.BITS) >> 1;
+        int mask = 0xFF << (8 - PaletteTable.BITS) & 0xFF;
+        return (rgb >> 16 & mask | half) << 16 | (rgb >> 8 & mask | half) << 8 | (rgb & mask | half);
+    }
+
+    /**
+     * Scans the palette for the nearest entry with Bukkit's weighted RGB distance.
+     */
+    private static byte scan(int[] palette, int rgb) {
+        int r1 = rgb >> 16 & 0xFF;
+        int g1 = rgb >> 8 & 0xFF;
+        int b1 = rgb & 0xFF;
+        int best = 0;
+        double bestDistance = Double.MAX_VALUE;
+        for (int i = 0; i < palette.length; i++) {
+            if (palette[i] < 0) {
+                continue;
+            }
+            int r2 = palette[i] >> 16 & 0xFF;
+            int g2 = palette[i] >> 8 & 0xFF;
+            int b2 = palette[i] & 0xFF;
+            double rmean = (r1 + r2) / 2.0;
+            double distance = (2 + rmean / 256.0) * (r1 - r2) * (r1 - r2)
+                    + 4.0 * (g1 - g2) * (g1 - g2)
+                    + (2 + (255 - rmean) / 256.0) * (b1 - b2) * (b1 - b2);
+            if (distance < bestDistance) {
+                bestDistance = distance;
+                best = i;
+            }
+        }
+        return (byte) best;
+    }
+
+    @Test
+    void matchesTheNearestWeightedRgbEntry() {
+        int[] palette = palette(1);
+        PaletteTable table = PaletteTable.build(palette, PaletteTable.ColorDistance.WEIGHTED_RGB);
+        Random random = new Random(1);
+
+        for (int i = 0; i < 20_000; i++) {
+            int rgb = random.nextInt(1 << 24);
+            assertEquals(scan(palette, bucketCenter(rgb)), table.match(0xFF000000 | rgb));
+        }
+    }
+
+    @Test
+    void matchesTheNearestCielabEntry() {
+        int[] palette = palette(2);
+        PaletteTable table = PaletteTable.build(palette, PaletteTable.ColorDistance.CIELAB);
+        LabPaletteTree tree = new LabPaletteTree(palette);
+        Random random = new Random(2);
+
+        for (int i = 0; i < 20_000; i++) {
+            int rgb = random.nextInt(1 << 24);
+            assertEquals(tree.nearest(bucketCenter(rgb)), table.match(0xFF000000 | rgb));
+        }
+    }
+
+    @Test
+    void matchesTranslucentColorsAsTransparent() {
+        PaletteTable table = PaletteTable.build(palette(3), PaletteTable.ColorDistance.WEIGHTED_RGB);
+        int[] argb = {0x00FFFFFF, (PaletteTable.ALPHA_THRESHOLD - 1) << 24 | 0x123456, 0xFF123456};
+        byte[] indices = new byte[3];
+        table.match(argb, 0, indices, 0, 3);
+
+        assertEquals(PaletteTable.TRANSPARENT, indices[0]);
+        assertEquals(PaletteTable.TRANSPARENT, indices[1]);
+        assertEquals(table.match(0xFF123456), indices[2]);
+    }
+
+    @Test
+    void loadsTheSavedTable() throws IOException {
+        Path file = directory.resolve("palette.bin");
+        int[] palette = palette(4);
+        PaletteTable table = PaletteTable.build(palette, PaletteTable.ColorDistance.CIELAB);
+        table.save(file);
+
+        PaletteTable loaded = PaletteTable.load(file, palette, PaletteTable.ColorDistance.CIELAB);
+        assertNotNull(loaded);
+        for (int rgb = 0; rgb < 1 << 24; rgb += 0x010101 * 3) {
+            assertEquals(table.match(0xFF000000 | rgb), loaded.match(0xFF000000 | rgb));
+        }
+        assertEquals(palette.length, loaded.getPaletteSize());
+    }
+
+    @Test
+    void ignoresStaleTables() throws IOException {
+        Path file = directory.resolve("palette.bin");
+        int[] palette = palette(5);
+        assertNull(PaletteTable.load(file, palette, PaletteTable.ColorDistance.WEIGHTED_RGB));
+
+        PaletteTable.build(palette, PaletteTable.ColorDistance.WEIGHTED_RGB).save(file);
+        assertNull(PaletteTable.load(file, palette, PaletteTable.ColorDistance.CIELAB));
+
+        int[] changed = palette.clone();
+        changed[100] ^= 1;
+        assertNull(PaletteTable.load(file, changed, PaletteTable.ColorDistance.WEIGHTED_RGB));
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright or © or Copr. Moribus (2013)
+ * Copyright or © or Copr. ProkopyL <prokopylmc@gmail.com> (2015)
+ * Copyright or © or Copr. Amaury Carrade <amaury@carrade.eu> (2016 – 2021)
+ * Copyright or © or Copr. Vlammar <valentin.jabre@gmail.com> (2019 – 2021)
+ *
+ * This software is a computer program whose purpose is to allow insertion of
+ * custom images in a Minecraft world.
+ *
+ * This software is governed by the CeCILL license under French law and
+ * abiding by the rules of distribution of free software.  You can  use,
+ * modify and/ or redistribute the software under the terms of the CeCILL
+ * license as circulated by CEA, CNRS and INRIA at the following URL
+ * "http://www.cecill.info".
+ *
+ * As a counterpart to the access to the source code and  rights to copy,
+ * modify and redistribute granted by the license, users are provided only
+ * with a limited warranty  and the software's author,  the holder of the
+ * economic rights,  and the successive licensors  have only  limited
+ * liability.
+ *
+ * In this respect, the user's attention is drawn to the risks associated
+ * with loading,  using,  modifying and/or developing or reproducing the
+ * software by the user in light of its specific status of free software,
+ * that may mean  that it is complicated to manipulate,  and  that  also
+ * therefore means  that it is reserved for developers  and  experienced
+ * professionals having in-depth computer knowledge. Users are therefore
+ * encouraged to load and test the software's suitability as regards their
+ * requirements in conditions enabling the security of their systems and/or
+ * data to be ensured and,  more generally, to use and operate it in the
+ * same conditions as regards security.
+ *
+ * The fact that you are presently reading this means that you have had
+ * knowledge of the CeCILL license and that you accept its terms.
+ */
+
+package fr.moribus.imageonmap.image;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.CompletableFuture;
+import org.junit.jupiter.api.Test;
+
+class PixelBudgetTest {
+
+    @Test
+    void grantsWaitingReservationsInOrder() {
+        PixelBudget budget = new PixelBudget(100);
+        assertTrue(budget.acquire(60).isDone());
+
+        CompletableFuture<Void> large = budget.acquire(80);
+        CompletableFuture<Void> small = budget.acquire(10);
+        assertFalse(large.isDone());
+        assertFalse(small.isDone(), "a small reservation must not overtake a waiting one");
+
+        budget.release(60);
+        assertTrue(large.isDone());
+        assertTrue(small.isDone());
+    }
+
+    @Test
+    void keepsSharedPixelsUntilTheLastHolderIsOver() {
+        PixelBudget budget = new PixelBudget(100);
+        PixelBudget.Shared shared = budget.share();
+        budget.acquire(100);
+        shared.reserved(100);
+        assertTrue(shared.retain());
+        assertTrue(shared.retain());
+
+        CompletableFuture<Void> next = budget.acquire(50);
+        shared.release();
+        shared.release();
+        assertFalse(next.isDone());
+
+        shared.release();
+        assertTrue(next.isDone());
+        assertFalse(shared.retain(), "released pixels cannot be held again");
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright or © or Copr. Moribus (2013)
+ * Copyright or © or Copr. ProkopyL <prokopylmc@gmail.com> (2015)
+ * Copyright or © or Copr. Amaury Carrade <amaury@carrade.eu> (2016 – 2021)
+ * Copyright or © or Copr. Vlammar <valentin.jabre@gmail.com> (2019 – 2021)
+ *
+ * This software is a computer program whose purpose is to allow insertion of
+ * custom images in a Minecraft world.
+ *
+ * This software is governed by the CeCILL license under French law and
+ * abiding by the rules of distribution of free software.  You can  use,
+ * modify and/ or redistribute the software under the terms of the CeCILL
+ * license as circulated by CEA, CNRS and INRIA at the following URL
+ * "http://www.cecill.info".
+ *
+ * As a counterpart to the access to the source code and  rights to copy,
+ * modify and redistribute granted by the license, users are provided only
+ * with a limited warranty  and the software's author,  the holder of the
+ * economic rights,  and the successive licensors  have only  limited
+ * liability.
+ *
+ * In this respect, the user's attention is drawn to the risks associated
+ * with loading,  using,  modifying and/or developing or reproducing the
+ * software by the user in light of its specific status of free software,
+ * that may mean  that it is complicated to manipulate,  and  that  also
+ * therefore means  that it is reserved for developers  and  experienced
+ * professionals having in-depth computer knowledge. Users are therefore
+ * encouraged to load and test the software's suitability as regards their
+ * requirements in conditions enabling the security of their systems and/or
+ * data to be ensured and,  more generally, to use and operate it in the
+ * same conditions as regards security.
+ *
+ * The fact that you are presently reading this means that you have had
+ * knowledge of the CeCILL license and that you accept its terms.
+ */
+
+package fr.moribus.imageonmap.image;
+
+import fr.moribus.imageonmap.map.ImageMap;
+import java.awt.Graphics;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.util.Random;
+
+/**
+ * Compares the time taken by the resampling filters with the Java2D scaling images were
+ * resized with before them. Not run with the tests; run it with the test classpath:
+ * {@code java -cp target/classes:target/test-classes fr.moribus.imageonmap.image.ResamplerBenchmark}.
+ */
+public final class ResamplerBenchmark {
+
+    private static final int ROUNDS = 10;
+
+    private ResamplerBenchmark() {
+    }
+
+    public static void main(String[] args) {
+        BufferedImage source = new BufferedImage(3000, 2000, BufferedImage.TYPE_INT_ARGB);
+        Random random = new Random(0);
+        for (int y = 0; y < source.getHeight(); y++) {
+            for (int x = 0; x < source.getWidth(); x++) {
+                source.setRGB(x, y, 0xFF000000 | random.nextInt(1 << 24));
+            }
+        }
+
+        for (int[] size : new int[][] {{640, 384}, {1280, 768}, {6000, 4000}}) {
+            Rectangle placement = new Rectangle(0, 0, size[0], size[1]);
+            System.out.printf("%dx%d to %dx%d%n", source.getWidth(), source.getHeight(), size[0], size[1]);
+
+            report("java2d", () -> {
+                BufferedImage resized = new BufferedImage(size[0], size[1], BufferedImage.TYPE_INT_ARGB);
+                Graphics graphics = resized.getGraphics();
+                graphics.drawImage(source, 0, 0, size[0], size[1], null);
+                graphics.dispose();
+            });
+
+            for (ImageUtils.ResamplingFilter filter : ImageUtils.ResamplingFilter.values()) {
+                if (filter == ImageUtils.ResamplingFilter.NEAREST) {
+                    continue;
+                }
+                Resampler resampler = new Resampler(filter, source, placement);
+                report(filter.name().toLowerCase(), () -> {
+                    // One line of tiles at a time, as posters are rendered.
+                    int[] line = new int[size[0] * ImageMap.HEIGHT];
+                    for (int y = 0; y < size[1]; y += ImageMap.HEIGHT) {
+                        resampler.draw(line, size[0], 0, y, new Rectangle(0, y, size[0], ImageMap.HEIGHT));
+                    }
+                });
+            }
+        }
+    }
+
+    private static void report(String name, Runnable resize) {
+        // The first rounds warm the JIT up.
+        for (int i = 0; i < ROUNDS / 2; i++) {
+            resize.run();
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < ROUNDS; i++) {
+            resize.run();
+        }
+        System.out.printf("  %-10s %8.1f ms%n", name, (System.nanoTime() - start) / 1e6 / ROUNDS);
+    }
+}
@@ -0,0 +1,221 @@
+/*
+ * Copyright or © or Copr. Moribus (2013)
+ * Copyright or © or Copr. ProkopyL <prokopylmc@gmail.com> (2015)
+ * Copyright or © or Copr. Amaury Carrade <amaury@carrade.eu> (2016 – 2021)
+ * Copyright or © or Copr. Vlammar <valentin.jabre@gmail.com> (2019 – 2021)
+ *
+ * This software is a computer program whose purpose is to allow insertion of
+ * custom images in a Minecraft world.
+ *
+ * This software is governed by the CeCILL license under French law and
+ * abiding by the rules of distribution of free software.  You can  use,
+ * modify and/ or redistribute the software under the terms of the CeCILL
+ * license as circulated by CEA, CNRS and INRIA at the following URL
+ * "http://www.cecill.info".
+ *
+ * As a counterpart to the access to the source code and  rights to copy,
+ * modify and redistribute granted by the license, users are provided only
+ * with a limited warranty  and the software's author,  the holder of the
+ * economic rights,  and the successive licensors  have only  limited
+ * liability.
+ *
+ * In this respect, the user's attention is drawn to the risks associated
+ * with loading,  using,  modifying and/or developing or reproducing the
+ * software by the user in light of its specific status of free software,
+ * that may mean  that it is complicated to manipulate,  and  that  also
+ * therefore means  that it is reserved for developers  and  experienced
+ * professionals having in-depth computer knowledge. Users are therefore
+ * encouraged to load and test the software's suitability as regards their
+ * requirements in conditions enabling the security of their systems and/or
+ * data to be ensured and,  more generally, to use and operate it in the
+ * same conditions as regards security.
+ *
+ * The fact that you are presently reading this means that you have had
+ * knowledge of the CeCILL license and that you accept its terms.
+ */
+
+package fr.moribus.imageonmap.image;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+class ResamplerTest {
+
+    /**
+     * The filters drawn by the resampler; nearest is left to Java2D.
+     */
+    private static final ImageUtils.ResamplingFilter[] FILTERS = {
+            ImageUtils.ResamplingFilter.BOX,
+            ImageUtils.ResamplingFilter.BILINEAR,
+            ImageUtils.ResamplingFilter.LANCZOS,
+    };
+
+    private static BufferedImage noise(int width, int height, long seed, boolean translucent) {
+        Random random = new Random(seed);
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int alpha = translucent ? random.nextInt(256) : 0xFF;
+                image.setRGB(x, y, alpha << 24 | random.nextInt(1 << 24));
+            }
+        }
+        return image;
+    }
+
+    private static int[] resize(ImageUtils.ResamplingFilter filter, BufferedImage source, int width, int height) {
+        Rectangle placement = new Rectangle(0, 0, width, height);
+        int[] out = new int[width * height];
+        new Resampler(filter, source, placement).draw(out, width, 0, 0, placement);
+        return out;
+    }
+
+    /**
+     * The weights of the source pixels for each resized pixel along an axis, computed in
+     * doubles the same way as the resampler does.
+     */
+    private static double[][] weights(ImageUtils.ResamplingFilter filter, int sourceSize, int resizedSize) {
+        double scale = (double) sourceSize / resizedSize;
+        double filterScale = Math.max(scale, 1);
+        double support = filter.getSupport() * filterScale;
+        int stride = (int) Math.ceil(support) * 2 + 1;
+
+        double[][] weights = new double[resizedSize][sourceSize];
+        for (int i = 0; i < resizedSize; i++) {
+            double center = (i + 0.5) * scale;
+            int from = Math.max((int) (center - support + 0.5), 0);
+            int to = Math.min(Math.min((int) (center + support + 0.5), sourceSize), from + stride);
+            double total = 0;
+            for (int j = from; j < to; j++) {
+                weights[i][j] = filter.weight((j - center + 0.5) / filterScale);
+                total += weights[i][j];
+            }
+            for (int j = from; j < to && total != 0; j++) {
+                weights[i][j] /= total;
+            }
+        }
+        return weights;
+    }
+
+    /**
+     * Resizes in doubles, with a single rounding of the final pixels.
+     */
+    private static int[] reference(ImageUtils.ResamplingFilter filter, BufferedImage source, int width, int height) {
+        double[][] horizontal = weights(filter, source.getWidth(), width);
+        double[][] vertical = weights(filter, source.getHeight(), height);
+        int[] out = new int[width * height];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                double[] sum = new double[4];
+                for (int sy = 0; sy < source.getHeight(); sy++) {
+                    for (int sx = 0; sx < source.getWidth(); sx++) {
+                        double weight = vertical[y][sy] * horizontal[x][sx];
+                        if (weight == 0) {
+                            continue;
+                        }
+                        int pixel = source.getRGB(sx, sy);
+                        double alpha = pixel >>> 24;
+                        sum[0] += weight * alpha;
+                        sum[1] += weight * alpha * ((pixel >> 16) & 0xFF) / 255;
+                        sum[2] += weight * alpha * ((pixel >> 8) & 0xFF) / 255;
+                        sum[3] += weight * alpha * (pixel & 0xFF) / 255;
+                    }
+                }
+                int alpha = clamp(sum[0]);
+                out[y * width + x] = alpha == 0 ? 0 : alpha << 24
+                        | clamp(sum[1] * 255 / sum[0]) << 16
+                        | clamp(sum[2] * 255 / sum[0]) << 8
+                        | clamp(sum[3] * 255 / sum[0]);
+            }
+        }
+        return out;
+    }
+
+    private static int clamp(double value) {
+        return (int) Math.max(0, Math.min(255, Math.round(value)));
+    }
+
+    private static void assertClose(int[] expected, int[] actual, int tolerance) {
+        assertEquals(expected.length, actual.length);
+        for (int i = 0; i < expected.length; i++) {
+            for (int shift = 0; shift < 32; shift += 8) {
+                int difference = Math.abs((expected[i] >>> shift & 0xFF) - (actual[i] >>> shift & 0xFF));
+                assertTrue(difference <= tolerance, "pixel " + i + ": expected "
+                        + Integer.toHexString(expected[i]) + " but was " + Integer.toHexString(actual[i]));
+            }
+        }
+    }
+
+    @Test
+    void keepsUniformImagesExact() {
+        BufferedImage source = new BufferedImage(37, 23, BufferedImage.TYPE_INT_ARGB);
+        for (int y = 0; y < source.getHeight(); y++) {
+            for (int x = 0; x < source.getWidth(); x++) {
+                source.setRGB(x, y, 0xFF3080C0);
+            }
+        }
+
+        for (ImageUtils.ResamplingFilter filter : FILTERS) {
+            for (int[] size : new int[][] {{128, 128}, {11, 7}, {60, 17}}) {
+                for (int pixel : resize(filter, source, size[0], size[1])) {
+                    assertEquals(0xFF3080C0, pixel, filter.name());
+                }
+            }
+        }
+    }
+
+    @Test
+    void doesNotBleedTransparentPixels() {
+        BufferedImage source = new BufferedImage(16, 16, BufferedImage.TYPE_INT_ARGB);
+        for (int y = 0; y < source.getHeight(); y++) {
+            for (int x = 0; x < source.getWidth(); x++) {
+                source.setRGB(x, y, x < 8 ? 0xFFFF0000 : 0x0000FF00);
+            }
+        }
+
+        for (ImageUtils.ResamplingFilter filter : FILTERS) {
+            for (int pixel : resize(filter, source, 40, 40)) {
+                if (pixel >>> 24 != 0) {
+                    assertEquals(0xFF0000, pixel & 0xFFFFFF, filter.name());
+                }
+            }
+        }
+    }
+
+    @Test
+    void matchesADoublePrecisionResize() {
+        BufferedImage opaque = noise(24, 20, 1, false);
+        BufferedImage translucent = noise(24, 20, 2, true);
+
+        for (ImageUtils.ResamplingFilter filter : FILTERS) {
+            for (int[] size : new int[][] {{61, 47}, {9, 7}, {24, 20}}) {
+                assertClose(reference(filter, opaque, size[0], size[1]),
+                        resize(filter, opaque, size[0], size[1]), 1);
+                assertClose(reference(filter, translucent, size[0], size[1]),
+                        resize(filter, translucent, size[0], size[1]), 1);
+            }
+        }
+    }
+
+    @Test
+    void drawsRegionsLikeTheWholeImage() {
+        BufferedImage source = noise(50, 40, 3, true);
+        Rectangle placement = new Rectangle(5, 3, 90, 70);
+        Resampler resampler = new Resampler(ImageUtils.ResamplingFilter.LANCZOS, source, placement);
+
+        int[] whole = new int[100 * 80];
+        resampler.draw(whole, 100, 0, 0, new Rectangle(0, 0, 100, 80));
+
+        int[] line = new int[100 * 16];
+        resampler.draw(line, 100, 0, 32, new Rectangle(0, 32, 100, 16));
+        for (int y = 0; y < 16; y++) {
+            for (int x = 0; x < 100; x++) {
+                assertEquals(whole[(32 + y) * 100 + x], line[y * 100 + x]);
+            }
+        }
+    }
+}
@@ -0,0 +1,398 @@
+/*
+ * Copyright or © or Copr. Moribus (2013)
+ * Copyright or © or Copr. ProkopyL <prokopylmc@gmail.com> (2015)
+ * Copyright or © or Copr. Amaury Carrade <amaury@carrade.eu> (2016 – 2021)
+ * Copyright or © or Copr. Vlammar <valentin.jabre@gmail.com> (2019 – 2021)
+ *
+ * This software is a computer program whose purpose is to allow insertion of
+ * custom images in a Minecraft world.
+ *
+ * This software is governed by the CeCILL license under French law and
+ * abiding by the rules of distribution of free software.  You can  use,
+ * modify and/ or redistribute the software under the terms of the CeCILL
+ * license as circulated by CEA, CNRS and INRIA at the following URL
+ * "http://www.cecill.info".
+ *
+ * As a counterpart to the access to the source code and  rights to copy,
+ * modify and redistribute granted by the license, users are provided only
+ * with a limited warranty  and the software's author,  the holder of the
+ * economic rights,  and the successive licensors  have only  limited
+ * liability.
+ *
+ * In this respect, the user's attention is drawn to the risks associated
+ * with loading,  using,  modifying and/or developing or reproducing the
+ * software by the user in light of its specific status of free software,
+ * that may mean  that it is complicated to manipulate,  and  that  also
+ * therefore means  that it is reserved for developers  and  experienced
+ * professionals having in-depth computer knowledge. Users are therefore
+ * encouraged to load and test the software's suitability as regards their
+ * requirements in conditions enabling the security of their systems and/or
+ * data to be ensured and,  more generally, to use and operate it in the
+ * same conditions as regards security.
+ *
+ * The fact that you are presently reading this means that you have had
+ * knowledge of the CeCILL license and that you accept its terms.
+ */
+
+package fr.moribus.imageonmap.image;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class SegmentTileStoreTest {
+
+    private static final int TILE_SIZE = 128 * 128;
+
+    @TempDir
+    Path directory;
+
+    private static byte[] tile(int seed) {
+        byte[] pixels = new byte[TILE_SIZE];
+        Arrays.fill(pixels, (byte) seed);
+        pixels[0] = (byte) (seed >> 8);
+        pixels[1] = (byte) (seed >> 16);
+        return pixels;
+    }
+
+    @Test
+    void readsBackWrittenTiles() throws IOException {
+        try (SegmentTileStore store = SegmentTileStore.open(directory)) {
+            store.write(1, tile(1));
+            store.write(2, tile(2));
+            store.write(1, tile(3));
+
+            assertArrayEquals(tile(3), store.read(1));
+            assertArrayEquals(tile(2), store.read(2));
+            assertNull(store.read(4));
+            assertEquals(2, store.size());
+        }
+    }
+
+    @Test
+    void forgetsDeletedTiles() throws IOException {
+        try (SegmentTileStore store = SegmentTileStore.open(directory)) {
+            store.write(1, tile(1));
+            store.delete(1);
+            store.delete(2);
+
+            assertFalse(store.contains(1));
+            assertNull(store.read(1));
+        }
+        try (SegmentTileStore store = SegmentTileStore.open(directory)) {
+            assertFalse(store.contains(1));
+        }
+    }
+
+    @Test
+    void storesIdenticalTilesOnce() throws IOException {
+        try (SegmentTileStore store = SegmentTileStore.open(directory)) {
+            for (int mapID = 0; mapID < 10; mapID++) {
+                store.write(mapID, tile(mapID % 2));
+            }
+            assertEquals(10, store.size());
+            assertEquals(2, store.uniqueSize());
+
+            // The shared tile stays as long as one map shows it.
+            for (int mapID = 0; mapID < 8; mapID += 2) {
+                store.delete(mapID);
+            }
+            assertArrayEquals(tile(0), store.read(8));
+            store.delete(8);
+            assertEquals(1, store.uniqueSize());
+        }
+    }
+
+    @Test
+    void overwritingASharedTileKeepsTheOtherMaps() throws IOException {
+        try (SegmentTileStore store = SegmentTileStore.open(directory)) {
+            store.write(1, tile(1));
+            store.write(2, tile(1));
+            store.write(1, tile(2));
+            assertArrayEquals(tile(2), store.read(1));
+            assertArrayEquals(tile(1), store.read(2));
+            assertEquals(2, store.uniqueSize());
+
+            // Writing the same tile again does not append anything.
+            store.write(2, tile(1));
+            assertEquals(2, store.uniqueSize());
+        }
+    }
+
+    @Test
+    void keepsLinksToTheTilesOfDeletedMaps() throws IOException {
+        try (SegmentTileStore store = SegmentTileStore.open(directory)) {
+            store.write(1, tile(1));
+            store.write(2, tile(1));
+            store.delete(1);
+        }
+        try (SegmentTileStore store = SegmentTileStore.open(directory)) {
+            assertFalse(store.contains(1));
+            assertArrayEquals(tile(1), store.read(2));
+        }
+
+        Files.delete(directory.resolve("index.dat"));
+        try (SegmentTileStore store = SegmentTileStore.open(directory)) {
+            assertFalse(store.contains(1));
+            assertArrayEquals(tile(1), store.read(2));
+            assertEquals(1, store.uniqueSize());
+        }
+    }
+
+    @Test
+    void reopensWithAndWithoutIndex() throws IOException {
+        try (SegmentTileStore store = SegmentTileStore.open(directory)) {
+            for (int mapID = 0; mapID < 20; mapID++) {
+                store.write(mapID, tile(mapID % 3));
+            }
+            store.delete(5);
+        }
+        assertAllTiles(20, 5);
+
+        Files.delete(directory.resolve("index.dat"));
+        assertAllTiles(20, 5);
+    }
+
+    @Test
+    void scansTheTilesWrittenAfterTheIndex() throws IOException {
+        try (SegmentTileStore store = SegmentTileStore.open(directory)) {
+            for (int mapID = 0; mapID < 10; mapID++) {
+                store.write(mapID, tile(mapID % 3));
+            }
+        }
+        Path index = directory.resolve("index.dat");
+        byte[] savedIndex = Files.readAllBytes(index);
+
+        try (SegmentTileStore store = SegmentTileStore.open(directory)) {
+            for (int mapID = 10; mapID < 20; mapID++) {
+                store.write(mapID, tile(mapID % 3));
+            }
+            store.delete(5);
+        }
+        // As if the server crashed before the index was saved again.
+        Files.write(index, savedIndex);
+        assertAllTiles(20, 5);
+    }
+
+    @Test
+    void cutsTornRecords() throws IOException {
+        try (SegmentTileStore store = SegmentTileStore.open(directory)) {
+            store.write(1, tile(1));
+            store.write(2, tile(2));
+        }
+        Files.delete(directory.resolve("index.dat"));
+        Path segment = directory.resolve("segment-00000.dat");
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+            channel.truncate(channel.size() - 100);
+        }
+
+        try (SegmentTileStore store = SegmentTileStore.open(directory)) {
+            assertArrayEquals(tile(1), store.read(1));
+            assertFalse(store.contains(2));
+            store.write(2, tile(2));
+        }
+        try (SegmentTileStore store = SegmentTileStore.open(directory)) {
+            assertArrayEquals(tile(2), store.read(2));
+        }
+    }
+
+    @Test
+    void compactionKeepsLiveAndSharedTiles() throws IOException {
+        int tiles = (int) (SegmentTileStore.MAX_SEGMENT_SIZE / TILE_SIZE) + 100;
+        try (SegmentTileStore store = SegmentTileStore.open(directory)) {
+            for (int mapID = 0; mapID < tiles; mapID++) {
+                store.write(mapID, tile(mapID));
+            }
+            // Links to tiles of the first segment.
+            for (int mapID = 0; mapID < 10; mapID++) {
+                store.write(100_000 + mapID, tile(mapID));
+            }
+            for (int mapID = 10; mapID < tiles - 100; mapID++) {
+                store.delete(mapID);
+            }
+
+            assertEquals(1, store.compact());
+            assertFalse(Files.exists(directory.resolve("segment-00000.dat")));
+            assertCompactedTiles(store, tiles);
+        }
+
+        Files.delete(directory.resolve("index.dat"));
+        try (SegmentTileStore store = SegmentTileStore.open(directory)) {
+            assertCompactedTiles(store, tiles);
+        }
+    }
+
+    @Test
+    void failedOpenDoesNotSaveAPartialIndex() throws IOException {
+        try (SegmentTileStore store = SegmentTileStore.open(directory)) {
+            for (int mapID = 0; mapID < 20; mapID++) {
+                store.write(mapID, tile(mapID % 3));
+            }
+        }
+        Files.delete(directory.resolve("index.dat"));
+
+        // Fails halfway through the scan rebuilding the index.
+        AtomicInteger reads = new AtomicInteger();
+        SegmentTileStore.ChannelOpener failing = (file, options) ->
+                new FailingChannel(FileChannel.open(file, options), reads, 20);
+        assertThrows(IOException.class, () -> SegmentTileStore.open(directory, failing));
+        assertFalse(Files.exists(directory.resolve("index.dat")));
+
+        assertAllTiles(20, -1);
+    }
+
+    /**
+     * Checks that the store holds the tiles {@code tile(mapID % 3)} of the given maps, but
+     * the deleted one.
+     */
+    private void assertAllTiles(int count, int deleted) throws IOException {
+        try (SegmentTileStore store = SegmentTileStore.open(directory)) {
+            for (int mapID = 0; mapID < count; mapID++) {
+                if (mapID == deleted) {
+                    assertFalse(store.contains(mapID));
+                } else {
+                    assertTrue(store.contains(mapID), "missing tile " + mapID);
+                    assertArrayEquals(tile(mapID % 3), store.read(mapID));
+                }
+            }
+        }
+    }
+
+    private static void assertCompactedTiles(SegmentTileStore store, int tiles) throws IOException {
+        for (int mapID = 0; mapID < 10; mapID++) {
+            assertArrayEquals(tile(mapID), store.read(mapID));
+            assertArrayEquals(tile(mapID), store.read(100_000 + mapID));
+        }
+        for (int mapID = 10; mapID < tiles - 100; mapID++) {
+            assertFalse(store.contains(mapID));
+        }
+        for (int mapID = tiles - 100; mapID < tiles; mapID++) {
+            assertArrayEquals(tile(mapID), store.read(mapID));
+        }
+        assertEquals(120, store.size());
+        assertEquals(110, store.uniqueSize());
+    }
+
+    /**
+     * A channel failing every positional read past a given number of them.
+     */
+    private static final class FailingChannel extends FileChannel {
+        private final FileChannel channel;
+        private final AtomicInteger reads;
+        private final int maxReads;
+
+        private FailingChannel(FileChannel channel, AtomicInteger reads, int maxReads) {
+            this.channel = channel;
+            this.reads = reads;
+            this.maxReads = maxReads;
+        }
+
+        @Override
+        public int read(ByteBuffer dst, long position) throws IOException {
+            if (reads.incrementAndGet() > maxReads) {
+                throw new IOException("Injected read failure");
+            }
+            return channel.read(dst, position);
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            return channel.read(dst);
+        }
+
+        @Override
+        public long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+            return channel.read(dsts, offset, length);
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            return channel.write(src);
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+            return channel.write(srcs, offset, length);
+        }
+
+        @Override
+        public int write(ByteBuffer src, long position) throws IOException {
+            return channel.write(src, position);
+        }
+
+        @Override
+        public long position() throws IOException {
+            return channel.position();
+        }
+
+        @Override
+        public FileChannel position(long newPosition) throws IOException {
+            channel.position(newPosition);
+            return this;
+        }
+
+        @Override
+        public long size() throws IOException {
+            return channel.size();
+        }
+
+        @Override
+        public FileChannel truncate(long size) throws IOException {
+            channel.truncate(size);
+            return this;
+        }
+
+        @Override
+        public void force(boolean metaData) throws IOException {
+            channel.force(metaData);
+        }
+
+        @Override
+        public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+            return channel.transferTo(position, count, target);
+        }
+
+        @Override
+        public long transferFrom(ReadableByteChannel src, long position, long count) throws IOException {
+            return channel.transferFrom(src, position, count);
+        }
+
+        @Override
+        public MappedByteBuffer map(MapMode mode, long position, long size) throws IOException {
+            return channel.map(mode, position, size);
+        }
+
+        @Override
+        public FileLock lock(long position, long size, boolean shared) throws IOException {
+            return channel.lock(position, size, shared);
+        }
+
+        @Override
+        public FileLock tryLock(long position, long size, boolean shared) throws IOException {
+            return channel.tryLock(position, size, shared);
+        }
+
+        @Override
+        protected void implCloseChannel() throws IOException {
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright or © or Copr. Moribus (2013)
+ * Copyright or © or Copr. ProkopyL <prokopylmc@gmail.com> (2015)
+ * Copyright or © or Copr. Amaury Carrade <amaury@carrade.eu> (2016 – 2021)
+ * Copyright or © or Copr. Vlammar <valentin.jabre@gmail.com> (2019 – 2021)
+ *
+ * This software is a computer program whose purpose is to allow insertion of
+ * custom images in a Minecraft world.
+ *
+ * This software is governed by the CeCILL license under French law and
+ * abiding by the rules of distribution of free software.  You can  use,
+ * modify and/ or redistribute the software under the terms of the CeCILL
+ * license as circulated by CEA, CNRS and INRIA at the following URL
+ * "http://www.cecill.info".
+ *
+ * As a counterpart to the access to the source code and  rights to copy,
+ * modify and redistribute granted by the license, users are provided only
+ * with a limited warranty  and the software's author,  the holder of the
+ * economic rights,  and the successive licensors  have only  limited
+ * liability.
+ *
+ * In this respect, the user's attention is drawn to the risks associated
+ * with loading,  using,  modifying and/or developing or reproducing the
+ * software by the user in light of its specific status of free software,
+ * that may mean  that it is complicated to manipulate,  and  that  also
+ * therefore means  that it is reserved for developers  and  experienced
+ * professionals having in-depth computer knowledge. Users are therefore
+ * encouraged to load and test the software's suitability as regards their
+ * requirements in conditions enabling the security of their systems and/or
+ * data to be ensured and,  more generally, to use and operate it in the
+ * same conditions as regards security.
+ *
+ * The fact that you are presently reading this means that you have had
+ * knowledge of the CeCILL license and that you accept its terms.
+ */
+
+package fr.moribus.imageonmap.image;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+class TileCacheTest {
+
+    private static final int TILE_SIZE = 100;
+
+    private static byte[] tile(int seed) {
+        byte[] pixels = new byte[TILE_SIZE];
+        pixels[0] = (byte) seed;
+        return pixels;
+    }
+
+    private static void fill(TileCache cache, int mapID) {
+        cache.beginFill(mapID);
+        cache.endFill(mapID, tile(mapID));
+    }
+
+    @Test
+    void returnsFilledTiles() {
+        TileCache cache = new TileCache(10 * TILE_SIZE);
+        assertNull(cache.get(1));
+        fill(cache, 1);
+
+        assertArrayEquals(tile(1), cache.get(1));
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+        assertEquals(TILE_SIZE, cache.getSize());
+    }
+
+    @Test
+    void dropsInvalidatedTiles() {
+        TileCache cache = new TileCache(10 * TILE_SIZE);
+        fill(cache, 1);
+        fill(cache, 2);
+        cache.get(2);
+
+        cache.invalidate(1);
+        cache.invalidate(2);
+        assertNull(cache.get(1));
+        assertNull(cache.get(2));
+        assertEquals(0, cache.getSize());
+    }
+
+    @Test
+    void skipsTilesInvalidatedWhileRead() {
+        TileCache cache = new TileCache(10 * TILE_SIZE);
+        cache.beginFill(1);
+        cache.beginFill(2);
+        cache.invalidate(1);
+        cache.endFill(1, tile(1));
+        cache.endFill(2, tile(2));
+
+        assertNull(cache.get(1));
+        assertArrayEquals(tile(2), cache.get(2), "only the fills of the invalidated map are stale");
+
+        // Later reads are cached again.
+        fill(cache, 1);
+        assertArrayEquals(tile(1), cache.get(1));
+    }
+
+    @Test
+    void keepsTheTilesReadAgainThroughABurst() {
+        TileCache cache = new TileCache(10 * TILE_SIZE);
+        fill(cache, 1);
+        cache.get(1);
+
+        for (int mapID = 100; mapID < 200; mapID++) {
+            fill(cache, mapID);
+        }
+
+        assertArrayEquals(tile(1), cache.get(1));
+        assertNull(cache.get(100));
+        assertTrue(cache.getEvictions() > 0);
+    }
+
+    @Test
+    void staysWithinItsBudget() {
+        TileCache cache = new TileCache(10 * TILE_SIZE);
+        for (int mapID = 0; mapID < 50; mapID++) {
+            fill(cache, mapID);
+            cache.get(mapID);
+            cache.get(mapID / 2);
+            assertTrue(cache.getSize() <= 10 * TILE_SIZE);
+        }
+    }
+
+    @Test
+    void cachesNothingWhenDisabled() {
+        TileCache cache = new TileCache(0);
+        fill(cache, 1);
+        assertNull(cache.get(1));
+        assertEquals(0, cache.getSize());
+    }
+}
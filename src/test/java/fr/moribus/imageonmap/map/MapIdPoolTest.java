@@ -0,0 +1,147 @@
+/*
+ * Copyright or © or Copr. Moribus (2013)
+ * Copyright or © or Copr. ProkopyL <prokopylmc@gmail.com> (2015)
+ * Copyright or © or Copr. Amaury Carrade <amaury@carrade.eu> (2016 – 2021)
+ * Copyright or © or Copr. Vlammar <valentin.jabre@gmail.com> (2019 – 2021)
+ *
+ * This software is a computer program whose purpose is to allow insertion of
+ * custom images in a Minecraft world.
+ *
+ * This software is governed by the CeCILL license under French law and
+ * abiding by the rules of distribution of free software.  You can  use,
+ * modify and/ or redistribute the software under the terms of the CeCILL
+ * license as circulated by CEA, CNRS and INRIA at the following URL
+ * "http://www.cecill.info".
+ *
+ * As a counterpart to the access to the source code and  rights to copy,
+ * modify and redistribute granted by the license, users are provided only
+ * with a limited warranty  and the software's author,  the holder of the
+ * economic rights,  and the successive licensors  have only  limited
+ * liability.
+ *
+ * In this respect, the user's attention is drawn to the risks associated
+ * with loading,  using,  modifying and/or developing or reproducing the
+ * software by the user in light of its specific status of free software,
+ * that may mean  that it is complicated to manipulate,  and  that  also
+ * therefore means  that it is reserved for developers  and  experienced
+ * professionals having in-depth computer knowledge. Users are therefore
+ * encouraged to load and test the software's suitability as regards their
+ * requirements in conditions enabling the security of their systems and/or
+ * data to be ensured and,  more generally, to use and operate it in the
+ * same conditions as regards security.
+ *
+ * The fact that you are presently reading this means that you have had
+ * knowledge of the CeCILL license and that you accept its terms.
+ */
+
+package fr.moribus.imageonmap.map;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class MapIdPoolTest {
+
+    private static final long HOUR = TimeUnit.HOURS.toMillis(1);
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void savesAndLoadsTheReserveAndTheQuarantine() throws IOException {
+        Path file = directory.resolve("pool.bin");
+        MapIdPool pool = new MapIdPool();
+        pool.release(new int[] {1, 2, 3});
+        pool.quarantine(new int[] {4, 5});
+        assertTrue(pool.isDirty());
+        pool.save(file);
+        assertFalse(pool.isDirty());
+
+        MapIdPool loaded = new MapIdPool();
+        loaded.load(file, mapID -> true);
+        assertEquals(3, loaded.size());
+        assertEquals(2, loaded.quarantineSize());
+        assertArrayEquals(new int[] {1, 2, 3}, loaded.take(3).join());
+
+        loaded.reuseQuarantined(0);
+        assertArrayEquals(new int[] {4, 5}, loaded.take(2).join());
+    }
+
+    @Test
+    void dropsTheIDsTakenSinceTheSave() throws IOException {
+        Path file = directory.resolve("pool.bin");
+        MapIdPool pool = new MapIdPool();
+        pool.release(new int[] {1, 2, 3});
+        pool.quarantine(new int[] {4, 5});
+        pool.save(file);
+
+        MapIdPool loaded = new MapIdPool();
+        loaded.load(file, mapID -> mapID != 2 && mapID != 5);
+        assertArrayEquals(new int[] {1, 3}, loaded.take(2).join());
+        assertEquals(1, loaded.quarantineSize());
+    }
+
+    @Test
+    void loadsVersion1Files() throws IOException {
+        Path file = directory.resolve("pool.bin");
+        try (DataOutputStream out = new DataOutputStream(Files.newOutputStream(file))) {
+            out.writeInt(0x494f4d44);
+            out.writeInt(1);
+            out.writeInt(2);
+            out.writeInt(7);
+            out.writeInt(8);
+        }
+
+        MapIdPool pool = new MapIdPool();
+        pool.load(file, mapID -> true);
+        assertArrayEquals(new int[] {7, 8}, pool.take(2).join());
+        assertEquals(0, pool.quarantineSize());
+    }
+
+    @Test
+    void ignoresOtherFiles() throws IOException {
+        Path file = directory.resolve("pool.bin");
+        Files.write(file, new byte[] {1, 2, 3, 4, 0, 0, 0, 1, 0, 0, 0, 1, 0, 0, 0, 9});
+
+        MapIdPool pool = new MapIdPool();
+        pool.load(file, mapID -> true);
+        assertEquals(0, pool.size());
+    }
+
+    @Test
+    void keepsDeletedMapsQuarantined() {
+        MapIdPool pool = new MapIdPool();
+        pool.quarantine(new int[] {4, 5});
+
+        pool.reuseQuarantined(HOUR);
+        assertEquals(0, pool.size());
+        pool.reuseQuarantined(-1);
+        assertEquals(0, pool.size());
+
+        pool.reuseQuarantined(0);
+        assertEquals(2, pool.size());
+        assertEquals(0, pool.quarantineSize());
+    }
+
+    @Test
+    void servesWaitingRequestsWithReusedMaps() {
+        MapIdPool pool = new MapIdPool();
+        CompletableFuture<int[]> request = pool.take(2);
+        assertFalse(request.isDone());
+
+        pool.quarantine(new int[] {4, 5});
+        assertFalse(request.isDone());
+        pool.reuseQuarantined(0);
+        assertArrayEquals(new int[] {4, 5}, request.join());
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright or © or Copr. Moribus (2013)
+ * Copyright or © or Copr. ProkopyL <prokopylmc@gmail.com> (2015)
+ * Copyright or © or Copr. Amaury Carrade <amaury@carrade.eu> (2016 – 2021)
+ * Copyright or © or Copr. Vlammar <valentin.jabre@gmail.com> (2019 – 2021)
+ *
+ * This software is a computer program whose purpose is to allow insertion of
+ * custom images in a Minecraft world.
+ *
+ * This software is governed by the CeCILL license under French law and
+ * abiding by the rules of distribution of free software.  You can  use,
+ * modify and/ or redistribute the software under the terms of the CeCILL
+ * license as circulated by CEA, CNRS and INRIA at the following URL
+ * "http://www.cecill.info".
+ *
+ * As a counterpart to the access to the source code and  rights to copy,
+ * modify and redistribute granted by the license, users are provided only
+ * with a limited warranty  and the software's author,  the holder of the
+ * economic rights,  and the successive licensors  have only  limited
+ * liability.
+ *
+ * In this respect, the user's attention is drawn to the risks associated
+ * with loading,  using,  modifying and/or developing or reproducing the
+ * software by the user in light of its specific status of free software,
+ * that may mean  that it is complicated to manipulate,  and  that  also
+ * therefore means  that it is reserved for developers  and  experienced
+ * professionals having in-depth computer knowledge. Users are therefore
+ * encouraged to load and test the software's suitability as regards their
+ * requirements in conditions enabling the security of their systems and/or
+ * data to be ensured and,  more generally, to use and operate it in the
+ * same conditions as regards security.
+ *
+ * The fact that you are presently reading this means that you have had
+ * knowledge of the CeCILL license and that you accept its terms.
+ */
+
+package fr.moribus.imageonmap.map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class MapSummaryTest {
+
+    private static final UUID ALICE = new UUID(1, 1);
+    private static final UUID BOB = new UUID(2, 2);
+
+    @TempDir
+    Path directory;
+
+    private static ImageMap poster(UUID owner, int... mapsIDs) {
+        return new PosterMap(owner, mapsIDs, "poster" + mapsIDs[0], "poster", mapsIDs.length, 1);
+    }
+
+    @Test
+    void savesAndLoadsTheOwners() throws IOException {
+        Path file = directory.resolve("summary.bin");
+        MapSummary summary = new MapSummary();
+        summary.register(new SingleMap(ALICE, 1, "single", "single"));
+        summary.register(poster(ALICE, 2, 3, 4));
+        summary.register(poster(BOB, 10, 11));
+        assertTrue(summary.isDirty());
+        summary.save(file);
+        assertFalse(summary.isDirty());
+
+        MapSummary loaded = new MapSummary();
+        assertTrue(loaded.load(file));
+        assertEquals(6, loaded.getMapCount());
+        assertEquals(ALICE, loaded.getOwner(1));
+        assertEquals(ALICE, loaded.getOwner(4));
+        assertEquals(BOB, loaded.getOwner(11));
+        assertNull(loaded.getOwner(5));
+        assertEquals(summary.getSavedAt(), loaded.getSavedAt());
+    }
+
+    @Test
+    void forgetsUnregisteredAndVanishedMaps() {
+        MapSummary summary = new MapSummary();
+        ImageMap kept = poster(ALICE, 1, 2);
+        ImageMap deleted = poster(ALICE, 3);
+        summary.register(kept);
+        summary.register(deleted);
+        summary.register(poster(ALICE, 4));
+        summary.register(poster(BOB, 5));
+
+        summary.unregister(deleted);
+        assertNull(summary.getOwner(3));
+
+        // Alice's maps file no longer has the poster of map 4.
+        summary.retainOnly(ALICE, List.of(kept));
+        assertNull(summary.getOwner(4));
+        assertEquals(ALICE, summary.getOwner(1));
+        assertEquals(BOB, summary.getOwner(5));
+        assertEquals(3, summary.getMapCount());
+    }
+
+    @Test
+    void movesMapsToTheirNewOwner() {
+        MapSummary summary = new MapSummary();
+        summary.register(poster(ALICE, 1, 2));
+        summary.register(poster(BOB, 2));
+
+        assertEquals(BOB, summary.getOwner(2));
+        // Alice's store no longer lists map 2, and must not take it back from Bob.
+        summary.retainOnly(ALICE, List.of(poster(ALICE, 1)));
+        assertEquals(BOB, summary.getOwner(2));
+        summary.unregister(poster(ALICE, 2));
+        assertEquals(BOB, summary.getOwner(2));
+    }
+
+    @Test
+    void ignoresMissingAndOtherFiles() throws IOException {
+        MapSummary summary = new MapSummary();
+        assertFalse(summary.load(directory.resolve("missing.bin")));
+
+        Path other = directory.resolve("other.bin");
+        Files.write(other, new byte[] {1, 2, 3, 4, 5, 6, 7, 8});
+        assertFalse(summary.load(other));
+    }
+
+    @Test
+    void rejectsTruncatedFiles() throws IOException {
+        Path file = directory.resolve("summary.bin");
+        MapSummary summary = new MapSummary();
+        summary.register(poster(ALICE, 1, 2, 3));
+        summary.save(file);
+        byte[] content = Files.readAllBytes(file);
+        Files.write(file, Arrays.copyOf(content, content.length - 2));
+
+        MapSummary loaded = new MapSummary();
+        assertThrows(IOException.class, () -> loaded.load(file));
+        assertEquals(0, loaded.getMapCount());
+    }
+}